@@ -10,6 +10,7 @@ import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.Properties;
+import java.util.concurrent.Executor;
 
 import net.vhati.ftldat.FTLDat.FTLPack;
 import net.vhati.modmanager.core.ComparableVersion;
@@ -28,6 +29,7 @@ import org.jdom2.input.JDOMParseException;
 import com.kartoflane.superluminal2.components.Hotkey;
 import com.kartoflane.superluminal2.components.enums.Hotkeys;
 import com.kartoflane.superluminal2.core.Database;
+import com.kartoflane.superluminal2.core.DatabaseLoader;
 import com.kartoflane.superluminal2.core.Manager;
 import com.kartoflane.superluminal2.core.SuperluminalConfig;
 import com.kartoflane.superluminal2.ui.EditorWindow;
@@ -46,6 +48,7 @@ public class Superluminal {
 
 	public static final String HOTKEYS_FILE = "hotkeys.xml";
 	public static final String CONFIG_FILE = "editor.cfg";
+	public static final String CACHE_DIR = "cache";
 
 	/**
 	 * settings ideas:
@@ -125,6 +128,8 @@ public class Superluminal {
 		Manager.startMaximised = Boolean.parseBoolean(config.getProperty(SuperluminalConfig.START_MAX));
 		Manager.closeLoader = Boolean.parseBoolean(config.getProperty(SuperluminalConfig.CLOSE_LOADER));
 		Manager.allowRoomOverlap = Boolean.parseBoolean(config.getProperty(SuperluminalConfig.ALLOW_OVERLAP));
+		Manager.lazyDatabaseLoading = Boolean.parseBoolean(config.getProperty(SuperluminalConfig.LAZY_LOADING));
+		Manager.memoryMapResources = Boolean.parseBoolean(config.getProperty(SuperluminalConfig.MAP_RESOURCES));
 		Manager.shownSlotWarning = Boolean.parseBoolean(config.getProperty(SuperluminalConfig.SLOT_WARNING));
 		Manager.windowSize = appConfig.getPropertyAsPoint(SuperluminalConfig.GEOMETRY, 0, 0);
 
@@ -194,16 +199,31 @@ public class Superluminal {
 				File dataFile = new File(datsDir + "/data.dat");
 				File resourceFile = new File(datsDir + "/resource.dat");
 				FTLPack data = new FTLPack(dataFile, "r");
-				FTLPack resource = new FTLPack(resourceFile, "r");
+				// Mapping resource.dat speeds up reading images from it in many small chunks, but takes
+				// up hundreds of MB of address space, which 32-bit JVMs can't spare, so it's opt-in
+				FTLPack resource = new FTLPack(resourceFile, Manager.memoryMapResources ? "rm" : "r");
 
 				final Database db = new Database(data, resource);
+				db.setSnapshotDirectory(new File(CACHE_DIR));
+				// Changes to mods loaded from folders are applied on the UI thread, since that's where the database is read
+				final Display uiDisplay = display;
+				db.setRefreshExecutor(new Executor() {
+					public void execute(Runnable task) {
+						if (!uiDisplay.isDisposed())
+							uiDisplay.asyncExec(task);
+					}
+				});
 
 				log.trace("Loading database...");
 
 				UIUtils.showLoadDialog(editorWindow.getShell(), null, null, new LoadTask() {
 					public void execute() {
-						db.getCore().load();
-						db.cacheAnimations();
+						DatabaseLoader loader = new DatabaseLoader();
+						loader.setSnapshotDirectory(db.getSnapshotDirectory());
+						loader.setLazy(Manager.lazyDatabaseLoading);
+						loader.load(db.getCore());
+						// Load the rest once the editor's window is up
+						db.warmUp(1000);
 					}
 				});
 			} catch (IOException e) {
@@ -254,6 +274,8 @@ public class Superluminal {
 			appConfig.setProperty(SuperluminalConfig.CHECK_UPDATES, "" + Manager.checkUpdates);
 			appConfig.setProperty(SuperluminalConfig.CLOSE_LOADER, "" + Manager.closeLoader);
 			appConfig.setProperty(SuperluminalConfig.ALLOW_OVERLAP, "" + Manager.allowRoomOverlap);
+			appConfig.setProperty(SuperluminalConfig.LAZY_LOADING, "" + Manager.lazyDatabaseLoading);
+			appConfig.setProperty(SuperluminalConfig.MAP_RESOURCES, "" + Manager.memoryMapResources);
 			appConfig.setProperty(SuperluminalConfig.SLOT_WARNING, "" + Manager.shownSlotWarning);
 			if (Manager.rememberGeometry && !Manager.startMaximised)
 				appConfig.setProperty(SuperluminalConfig.GEOMETRY, Manager.windowSize.x + "," + Manager.windowSize.y);
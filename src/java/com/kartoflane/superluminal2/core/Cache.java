@@ -1,5 +1,6 @@
 package com.kartoflane.superluminal2.core;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -85,7 +86,16 @@ public class Cache {
 			try {
 				if (image == null) {
 					InputStream is = Manager.getInputStream(path);
-					image = new Image(Display.getCurrent(), is);
+					try {
+						image = new Image(Display.getCurrent(), is);
+					} finally {
+						// Streams of zip: paths keep their archive open until they're closed
+						try {
+							if (is != null)
+								is.close();
+						} catch (IOException e) {
+						}
+					}
 					cachedImageMap.put(path, image);
 				}
 
@@ -0,0 +1,135 @@
+package com.kartoflane.superluminal2.core;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the differences between the files of two database entries: inner paths that were
+ * added, removed, or whose contents changed. Entries can be backed by either dat files or
+ * mod archives, so this can compare two packs, or a pack against a mod.<br>
+ * <br>
+ * The sorted {@link PathIndex}es of both entries are walked in a single merged pass. Files present
+ * in both entries are compared by size first, and only the ones of equal size are hashed, in parallel
+ * (see {@link DatabaseEntry#getContentHashes(java.util.Collection, int)}).
+ *
+ * @author kartoFlane
+ *
+ */
+public class ContentDiff {
+
+	private final List<String> added;
+	private final List<String> removed;
+	private final List<String> changed;
+
+	/**
+	 * Compares the entries, using one thread per available processor for hashing.
+	 *
+	 * @see #ContentDiff(DatabaseEntry, DatabaseEntry, int)
+	 */
+	public ContentDiff(DatabaseEntry base, DatabaseEntry other) throws IOException {
+		this(base, other, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param base
+	 *            the entry to compare against, eg. the core entry
+	 * @param other
+	 *            the entry being compared, eg. a mod
+	 * @param threads
+	 *            number of threads used to hash files. Must be at least 1.
+	 * @throws IOException
+	 *             when one of the files could not be read
+	 */
+	public ContentDiff(DatabaseEntry base, DatabaseEntry other, int threads) throws IOException {
+		if (base == null || other == null)
+			throw new IllegalArgumentException("Entries must not be null.");
+
+		List<String> basePaths = base.getPathIndex().list();
+		List<String> otherPaths = other.getPathIndex().list();
+
+		ArrayList<String> addedList = new ArrayList<String>();
+		ArrayList<String> removedList = new ArrayList<String>();
+		ArrayList<String> changedList = new ArrayList<String>();
+		// Files of equal size have to be hashed to tell whether they changed
+		ArrayList<String> toHash = new ArrayList<String>();
+
+		int i = 0;
+		int j = 0;
+		while (i < basePaths.size() || j < otherPaths.size()) {
+			int cmp;
+			if (i == basePaths.size())
+				cmp = 1;
+			else if (j == otherPaths.size())
+				cmp = -1;
+			else
+				cmp = basePaths.get(i).compareTo(otherPaths.get(j));
+
+			if (cmp < 0) {
+				removedList.add(basePaths.get(i++));
+			} else if (cmp > 0) {
+				addedList.add(otherPaths.get(j++));
+			} else {
+				String path = basePaths.get(i);
+				if (isSameSize(base, other, path))
+					toHash.add(path);
+				else
+					changedList.add(path);
+				i++;
+				j++;
+			}
+		}
+
+		Map<String, String> baseHashes = base.getContentHashes(toHash, threads);
+		Map<String, String> otherHashes = other.getContentHashes(toHash, threads);
+		for (String path : toHash) {
+			if (!baseHashes.get(path).equals(otherHashes.get(path)))
+				changedList.add(path);
+		}
+		Collections.sort(changedList);
+
+		added = Collections.unmodifiableList(addedList);
+		removed = Collections.unmodifiableList(removedList);
+		changed = Collections.unmodifiableList(changedList);
+	}
+
+	/**
+	 * @return true if the file has the same size in both entries, or if either entry doesn't record it
+	 */
+	private static boolean isSameSize(DatabaseEntry base, DatabaseEntry other, String innerPath) throws FileNotFoundException {
+		long baseSize = base.getContentSize(innerPath);
+		long otherSize = other.getContentSize(innerPath);
+		return baseSize == -1 || otherSize == -1 || baseSize == otherSize;
+	}
+
+	/**
+	 * @return inner paths present only in the compared entry, in lexicographical order
+	 */
+	public List<String> getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return inner paths present only in the base entry, in lexicographical order
+	 */
+	public List<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @return inner paths present in both entries, whose contents differ, in lexicographical order
+	 */
+	public List<String> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * @return true if the entries hold the same files, with the same contents
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+}
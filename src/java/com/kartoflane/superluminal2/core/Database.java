@@ -1,15 +1,24 @@
 package com.kartoflane.superluminal2.core;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import net.vhati.ftldat.FTLDat.FTLPack;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.input.JDOMParseException;
 
 import com.kartoflane.superluminal2.components.enums.DroneTypes;
 import com.kartoflane.superluminal2.components.enums.PlayerShipBlueprints;
@@ -47,6 +56,11 @@ public class Database {
 	 */
 	public static final int ENEMY_SHIELD_Y_OFFSET = 110;
 
+	/** Time between scans of folder entries for changes, in milliseconds */
+	private static final long WATCH_INTERVAL = 1000;
+	/** Most documents kept by the document cache */
+	private static final int DOCUMENT_CACHE_SIZE = 32;
+
 	private static Database instance;
 
 	// Constant
@@ -55,6 +69,37 @@ public class Database {
 	// Dynamically loaded
 	private ArrayList<DatabaseEntry> dataEntries = new ArrayList<DatabaseEntry>();
 
+	/** Contents of all entries with mod precedence resolved, rebuilt when the entries change */
+	private MergedView mergedView = null;
+	private int mergedViewStamp = 0;
+
+	/** Maps inner paths to the entries that take precedence in providing them, rebuilt when the entries change */
+	private HashMap<String, DatabaseEntry> pathOwners = null;
+	/** Sorted index of the inner paths of all entries, rebuilt when the entries change */
+	private PathIndex pathIndex = null;
+
+	/** Incremented each time the winning definition of some animations may have changed */
+	private int animGeneration = 0;
+	/** Maps animNames to the generation in which their winning definition last may have changed */
+	private HashMap<String, Integer> animGenerations = new HashMap<String, Integer>();
+
+	/** Directory in which snapshots of loaded entries are kept, or null */
+	private File snapshotDir = null;
+
+	/** Watchers of folder entries' files, see {@link #refreshEntry(DatabaseEntry, Collection)} */
+	private final HashMap<DatabaseEntry, FolderWatcher> watchers = new HashMap<DatabaseEntry, FolderWatcher>();
+	/** Documents parsed from the entries' files, see {@link #getDocument(String)} */
+	private final DocumentCache documentCache = new DocumentCache(DOCUMENT_CACHE_SIZE);
+	/** Executor on which changes to folder entries are applied, or null to apply them on the watchers' threads */
+	private Executor refreshExecutor = null;
+
+	/** Guards the loading of lazily loaded entries' contents */
+	private final Object contentsLock = new Object();
+	/** Whether any entry has contents pending, see {@link #loadContents()} */
+	private volatile boolean contentsPending = false;
+	/** Set while the contents are being loaded, so that lookups made during the load do not recurse */
+	private boolean loadingContents = false;
+
 	private Database() {
 	}
 
@@ -135,13 +180,113 @@ public class Database {
 	}
 
 	public void addEntry(DatabaseEntry de) {
+		loadContents();
 		dataEntries.add(de);
+		invalidateMergedView();
 		de.load();
+		invalidateAnimations(de);
+		watch(de);
+	}
+
+	/**
+	 * Adds the entries at the end of the entry list, and loads them in parallel.
+	 * 
+	 * @see DatabaseLoader
+	 */
+	public void addEntries(List<DatabaseEntry> entries) {
+		loadContents();
+		dataEntries.addAll(entries);
+		invalidateMergedView();
+		DatabaseLoader loader = new DatabaseLoader();
+		loader.setSnapshotDirectory(snapshotDir);
+		loader.load(entries);
+		for (DatabaseEntry de : entries)
+			watch(de);
+	}
+
+	/**
+	 * Changes the entry list to match the one supplied in argument, doing as little work as possible:
+	 * 
+	 * <pre>
+	 *   - entries that are not in the list are closed and removed, without touching the others
+	 *   - entries that are new to the database are loaded, see {@link #addEntries(List)}
+	 *   - the remaining entries are reordered, which only requires the merged view to be rebuilt
+	 * </pre>
+	 * 
+	 * Only the animations defined by entries that were added, removed or moved are invalidated,
+	 * see {@link #getAnimationGeneration(String)}.
+	 * 
+	 * @param entries
+	 *            the new list of entries, in the order of their precedence. Must start with the core entry.
+	 */
+	public void reconfigure(List<DatabaseEntry> entries) {
+		if (entries == null)
+			throw new IllegalArgumentException("Entry list must not be null.");
+		if (entries.isEmpty() || entries.get(0) != getCore())
+			throw new IllegalArgumentException("Entry list must start with the core entry.");
+
+		loadContents();
+		long start = System.nanoTime();
+
+		ArrayList<DatabaseEntry> removed = new ArrayList<DatabaseEntry>();
+		for (DatabaseEntry de : dataEntries) {
+			if (!entries.contains(de))
+				removed.add(de);
+		}
+		ArrayList<DatabaseEntry> added = new ArrayList<DatabaseEntry>();
+		for (DatabaseEntry de : entries) {
+			if (!dataEntries.contains(de))
+				added.add(de);
+		}
+
+		// Remove first, so that added entries are not resolved against removed ones
+		for (DatabaseEntry de : removed)
+			removeEntry(de);
+		if (!added.isEmpty())
+			addEntries(added);
+
+		// Entries as they are before reordering, which is the order that their weapons were resolved in
+		ArrayList<DatabaseEntry> previous = new ArrayList<DatabaseEntry>(dataEntries);
+		dataEntries.clear();
+		dataEntries.addAll(entries);
+		invalidateMergedView();
+
+		// An animation can only win or lose if an entry defining it was added, removed or changed its position.
+		// Added and removed entries have already been taken care of.
+		int moved = 0;
+		for (int i = 0; i < dataEntries.size(); i++) {
+			DatabaseEntry de = dataEntries.get(i);
+			if (previous.get(i) != de && !added.contains(de)) {
+				invalidateAnimations(de);
+				moved++;
+			}
+		}
+
+		log.debug(String.format("Database reconfigured in %d ms: %d entries removed, %d added, %d moved.",
+				(System.nanoTime() - start) / 1000000, removed.size(), added.size(), moved));
+	}
+
+	/**
+	 * @param dir
+	 *            directory in which {@link DatabaseSnapshot}s of entries added with
+	 *            {@link #addEntries(List)} are kept, or null to disable snapshots
+	 */
+	public void setSnapshotDirectory(File dir) {
+		snapshotDir = dir;
+	}
+
+	public File getSnapshotDirectory() {
+		return snapshotDir;
 	}
 
 	public void removeEntry(DatabaseEntry de) {
+		loadContents();
 		try {
 			dataEntries.remove(de);
+			unwatch(de);
+			invalidateMergedView();
+			invalidateAnimations(de);
+			documentCache.invalidate(de);
 			de.close();
 		} catch (IOException e) {
 			log.error(String.format("An error has occured while closing database entry '%s': ", de.getName()), e);
@@ -149,18 +294,270 @@ public class Database {
 	}
 
 	public void reorderEntry(DatabaseEntry de, int index) {
+		loadContents();
 		dataEntries.remove(de);
 		dataEntries.add(index, de);
+		invalidateMergedView();
+		invalidateAnimations(de);
+	}
+
+	/**
+	 * @param executor
+	 *            executor on which changes to the files of folder entries are applied, eg. one that
+	 *            runs tasks on the UI thread. If null, changes are applied on the threads watching the folders.
+	 * 
+	 * @see #refreshEntry(DatabaseEntry, Collection)
+	 */
+	public void setRefreshExecutor(Executor executor) {
+		refreshExecutor = executor;
+	}
+
+	public Executor getRefreshExecutor() {
+		return refreshExecutor;
+	}
+
+	/**
+	 * Brings an entry backed by a folder up to date with changes made to its files, without reloading the others.
+	 * Only the data files among the changed ones are parsed again, see {@link DatabaseEntry#refresh(Collection)}.<br>
+	 * <br>
+	 * Folder entries are watched for changes while they are in the database, and this method is called
+	 * automatically, on the refresh executor. Entries that follow the refreshed one keep referring to its
+	 * previous contents (eg. blueprint lists including its weapons) until they are reloaded themselves.
+	 * 
+	 * @param de
+	 *            the entry to refresh. Does nothing if it is not in the database.
+	 * @param innerPaths
+	 *            inner paths of the files that were added, removed or modified
+	 */
+	public void refreshEntry(DatabaseEntry de, Collection<String> innerPaths) {
+		if (de == null)
+			throw new IllegalArgumentException("Entry must not be null.");
+		if (de.getFolder() == null)
+			throw new IllegalArgumentException(de.getName() + " is not backed by a folder.");
+		if (innerPaths == null)
+			throw new IllegalArgumentException("Inner paths must not be null.");
+
+		loadContents();
+		if (!dataEntries.contains(de))
+			return;
+
+		long start = System.nanoTime();
+		// Animations that the entry used to define may no longer be there
+		invalidateAnimations(de);
+		boolean reloaded = de.refresh(innerPaths);
+		invalidateMergedView();
+		if (reloaded)
+			invalidateAnimations(de);
+
+		log.debug(String.format("%s: %d changed files refreshed in %d ms%s.", de.getName(), innerPaths.size(),
+				(System.nanoTime() - start) / 1000000, reloaded ? ", contents reloaded" : ""));
+	}
+
+	/**
+	 * Starts watching the files of the entry, if it is backed by a folder.
+	 */
+	private void watch(final DatabaseEntry de) {
+		if (de.getFolder() == null)
+			return;
+
+		FolderWatcher watcher = new FolderWatcher(de.getFolder(), WATCH_INTERVAL, new FolderWatcher.ChangeListener() {
+			public void filesChanged(final Set<String> innerPaths) {
+				Runnable task = new Runnable() {
+					public void run() {
+						refreshEntry(de, innerPaths);
+					}
+				};
+
+				Executor executor = refreshExecutor;
+				if (executor == null)
+					task.run();
+				else
+					executor.execute(task);
+			}
+		});
+		synchronized (watchers) {
+			FolderWatcher previous = watchers.put(de, watcher);
+			if (previous != null)
+				previous.stop();
+		}
+		watcher.start();
+	}
+
+	private void unwatch(DatabaseEntry de) {
+		synchronized (watchers) {
+			FolderWatcher watcher = watchers.remove(de);
+			if (watcher != null)
+				watcher.stop();
+		}
+	}
+
+	private synchronized void invalidateMergedView() {
+		mergedView = null;
+		pathOwners = null;
+		pathIndex = null;
+	}
+
+	/**
+	 * @return map of all inner paths to the entries that provide them, building it first if needed
+	 */
+	private synchronized HashMap<String, DatabaseEntry> getPathOwners() {
+		if (pathOwners == null) {
+			int size = 0;
+			for (DatabaseEntry de : dataEntries)
+				size += de.getPathIndex().size();
+
+			HashMap<String, DatabaseEntry> owners = new HashMap<String, DatabaseEntry>(size * 4 / 3 + 1);
+			// Later entries take precedence, so let them overwrite the earlier ones
+			for (DatabaseEntry de : dataEntries) {
+				for (String path : de.getPathIndex().list())
+					owners.put(path, de);
+			}
+			pathOwners = owners;
+		}
+		return pathOwners;
+	}
+
+	/**
+	 * @return sorted index of the inner paths of all entries
+	 */
+	public synchronized PathIndex getPathIndex() {
+		if (pathIndex == null)
+			pathIndex = new PathIndex(getPathOwners().keySet());
+		return pathIndex;
+	}
+
+	/**
+	 * @return the merged view of all entries' contents, rebuilding it first
+	 *         if the entries or their contents have changed since it was created
+	 */
+	private synchronized MergedView getMergedView() {
+		int stamp = 0;
+		for (DatabaseEntry de : dataEntries)
+			stamp += de.getModificationCount();
+
+		if (mergedView == null || mergedViewStamp != stamp) {
+			mergedView = new MergedView(dataEntries);
+			mergedViewStamp = stamp;
+		}
+		return mergedView;
+	}
+
+	/**
+	 * Notifies the database that some of its entries were loaded lazily.
+	 * 
+	 * @see DatabaseLoader#setLazy(boolean)
+	 */
+	void setContentsPending() {
+		contentsPending = true;
+	}
+
+	/**
+	 * @return true if some of the entries were loaded lazily, and their contents other than
+	 *         ship metadata have not been loaded yet
+	 */
+	public boolean hasPendingContents() {
+		return contentsPending;
 	}
 
-	public void cacheAnimations() {
-		for (WeaponTypes type : WeaponTypes.values()) {
-			for (WeaponObject object : getWeaponsByType(type)) {
-				object.cacheAnimation();
+	/**
+	 * Loads the contents of lazily loaded entries, in the order of their precedence.
+	 * Does nothing if there are no pending contents.<br>
+	 * <br>
+	 * This is called by all getters except {@link #getShipMetadata()}, so that the contents are
+	 * loaded on first access. If another thread is already loading the contents, this method
+	 * blocks until it is done.<br>
+	 * <br>
+	 * If an entry fails to load, the exception is passed on, and that entry and the ones after
+	 * it are left pending, to be loaded again on next access.
+	 * 
+	 * @see #warmUp(long)
+	 */
+	public void loadContents() {
+		if (!contentsPending)
+			return;
+
+		synchronized (contentsLock) {
+			if (!contentsPending || loadingContents)
+				return;
+
+			loadingContents = true;
+			try {
+				long start = System.nanoTime();
+				for (DatabaseEntry de : getDatabaseEntries()) {
+					if (de.hasPendingContents()) {
+						de.loadPendingContents();
+						invalidateAnimations(de);
+					}
+				}
+				log.debug(String.format("Loaded pending database contents in %d ms.", (System.nanoTime() - start) / 1000000));
+			} finally {
+				loadingContents = false;
+				// If an entry failed to load, it and the entries after it still have their contents
+				// pending, and are loaded again on next access
+				boolean pending = false;
+				for (DatabaseEntry de : getDatabaseEntries())
+					pending |= de.hasPendingContents();
+				contentsPending = pending;
 			}
 		}
 	}
 
+	/**
+	 * Starts a background thread that loads the pending contents after the specified delay,
+	 * so that they are ready by the time they are first needed.
+	 * 
+	 * @param delay
+	 *            time to wait before loading, in milliseconds
+	 */
+	public void warmUp(final long delay) {
+		if (!contentsPending)
+			return;
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(delay);
+					loadContents();
+				} catch (InterruptedException e) {
+					// Contents will be loaded on first access instead
+				} catch (Throwable e) {
+					log.error("An error has occured while loading database contents in the background:", e);
+				}
+			}
+		}, "DatabaseWarmup");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * Weapons cache the animation they use, along with the generation of its animName at the time.
+	 * When the generation changes, the weapon looks its animation up again.
+	 * 
+	 * @return the generation in which the winning definition of the given animName last may have changed
+	 * 
+	 * @see WeaponObject#getAnimation()
+	 */
+	public int getAnimationGeneration(String animName) {
+		loadContents();
+		synchronized (animGenerations) {
+			Integer generation = animGenerations.get(animName);
+			return generation == null ? 0 : generation;
+		}
+	}
+
+	/**
+	 * Marks all animations defined by the entry as possibly changed, so that weapons using
+	 * them look them up again.
+	 */
+	void invalidateAnimations(DatabaseEntry de) {
+		synchronized (animGenerations) {
+			animGeneration++;
+			for (AnimationObject anim : de.getAnimations())
+				animGenerations.put(anim.getIdentifier(), animGeneration);
+		}
+	}
+
 	public boolean isPlayerShip(String blueprintName) {
 		try {
 			PlayerShipBlueprints.valueOf(blueprintName.replace("PLAYER_SHIP_", ""));
@@ -178,6 +575,7 @@ public class Database {
 	}
 
 	public AnimationObject getAnimation(String animName) {
+		loadContents();
 		AnimationObject result = null;
 		for (int i = dataEntries.size() - 1; i >= 0 && result == null; i--) {
 			DatabaseEntry de = dataEntries.get(i);
@@ -187,6 +585,7 @@ public class Database {
 	}
 
 	public AugmentObject getAugment(String blueprintName) {
+		loadContents();
 		AugmentObject result = null;
 		for (int i = dataEntries.size() - 1; i >= 0 && result == null; i--) {
 			DatabaseEntry de = dataEntries.get(i);
@@ -196,28 +595,17 @@ public class Database {
 	}
 
 	public ArrayList<AugmentObject> getAugments() {
-		ArrayList<AugmentObject> result = new ArrayList<AugmentObject>();
-		for (int i = dataEntries.size() - 1; i >= 0; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			for (AugmentObject o : de.getAugments())
-				if (!result.contains(o))
-					result.add(o);
-		}
-		return result;
+		loadContents();
+		return new ArrayList<AugmentObject>(getMergedView().augments);
 	}
 
 	public ArrayList<DroneList> getDroneLists() {
-		ArrayList<DroneList> result = new ArrayList<DroneList>();
-		for (int i = dataEntries.size() - 1; i >= 0; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			for (DroneList o : de.getDroneLists())
-				if (!result.contains(o))
-					result.add(o);
-		}
-		return result;
+		loadContents();
+		return new ArrayList<DroneList>(getMergedView().droneLists);
 	}
 
 	public DroneList getDroneList(String name) {
+		loadContents();
 		DroneList result = null;
 		for (int i = dataEntries.size() - 1; i >= 0 && result == null; i--) {
 			DatabaseEntry de = dataEntries.get(i);
@@ -228,6 +616,7 @@ public class Database {
 	}
 
 	public DroneObject getDrone(String blueprint) {
+		loadContents();
 		DroneObject result = null;
 		for (int i = dataEntries.size() - 1; i >= 0 && result == null; i--) {
 			DatabaseEntry de = dataEntries.get(i);
@@ -237,17 +626,12 @@ public class Database {
 	}
 
 	public ArrayList<DroneObject> getDronesByType(DroneTypes type) {
-		ArrayList<DroneObject> result = new ArrayList<DroneObject>();
-		for (int i = dataEntries.size() - 1; i >= 0; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			for (DroneObject o : de.getDronesByType(type))
-				if (!result.contains(o))
-					result.add(o);
-		}
-		return result;
+		loadContents();
+		return new ArrayList<DroneObject>(getMergedView().dronesByType.get(type));
 	}
 
 	public GlowObject getGlow(String id) {
+		loadContents();
 		GlowObject result = null;
 		for (int i = dataEntries.size() - 1; i >= 0 && result == null; i--) {
 			DatabaseEntry de = dataEntries.get(i);
@@ -257,17 +641,12 @@ public class Database {
 	}
 
 	public ArrayList<GlowObject> getGlows() {
-		ArrayList<GlowObject> result = new ArrayList<GlowObject>();
-		for (int i = dataEntries.size() - 1; i >= 0; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			for (GlowObject o : de.getGlows())
-				if (!result.contains(o))
-					result.add(o);
-		}
-		return result;
+		loadContents();
+		return new ArrayList<GlowObject>(getMergedView().glows);
 	}
 
 	public GlowSet getGlowSet(String id) {
+		loadContents();
 		GlowSet result = null;
 		for (int i = dataEntries.size() - 1; i >= 0 && result == null; i--) {
 			DatabaseEntry de = dataEntries.get(i);
@@ -277,14 +656,8 @@ public class Database {
 	}
 
 	public ArrayList<GlowSet> getGlowSets() {
-		ArrayList<GlowSet> result = new ArrayList<GlowSet>();
-		for (int i = dataEntries.size() - 1; i >= 0; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			for (GlowSet o : de.getGlowSets())
-				if (!result.contains(o))
-					result.add(o);
-		}
-		return result;
+		loadContents();
+		return new ArrayList<GlowSet>(getMergedView().glowSets);
 	}
 
 	public HashMap<String, ArrayList<ShipMetadata>> getShipMetadata() {
@@ -302,17 +675,12 @@ public class Database {
 	}
 
 	public ArrayList<WeaponList> getWeaponLists() {
-		ArrayList<WeaponList> result = new ArrayList<WeaponList>();
-		for (int i = dataEntries.size() - 1; i >= 0; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			for (WeaponList o : de.getWeaponLists())
-				if (!result.contains(o))
-					result.add(o);
-		}
-		return result;
+		loadContents();
+		return new ArrayList<WeaponList>(getMergedView().weaponLists);
 	}
 
 	public WeaponList getWeaponList(String name) {
+		loadContents();
 		WeaponList result = null;
 		for (int i = dataEntries.size() - 1; i >= 0 && result == null; i--) {
 			DatabaseEntry de = dataEntries.get(i);
@@ -322,6 +690,7 @@ public class Database {
 	}
 
 	public WeaponObject getWeapon(String blueprint) {
+		loadContents();
 		WeaponObject result = null;
 		for (int i = dataEntries.size() - 1; i >= 0 && result == null; i--) {
 			DatabaseEntry de = dataEntries.get(i);
@@ -331,34 +700,115 @@ public class Database {
 	}
 
 	public ArrayList<WeaponObject> getWeaponsByType(WeaponTypes type) {
-		ArrayList<WeaponObject> result = new ArrayList<WeaponObject>();
-		for (int i = dataEntries.size() - 1; i >= 0; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			for (WeaponObject o : de.getWeaponsByType(type))
-				if (!result.contains(o))
-					result.add(o);
-		}
-		return result;
+		loadContents();
+		return new ArrayList<WeaponObject>(getMergedView().weaponsByType.get(type));
 	}
 
 	public boolean contains(String innerPath) {
-		boolean result = false;
-		for (int i = dataEntries.size() - 1; i >= 0 && !result; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			result = de.contains(innerPath);
-		}
-		return result;
+		if (innerPath == null)
+			throw new IllegalArgumentException("Inner path must not be null.");
+		return getPathOwners().containsKey(innerPath);
+	}
+
+	/**
+	 * @return the entry that takes precedence in providing the inner path, or null if none of them has it
+	 */
+	public DatabaseEntry getOwner(String innerPath) {
+		if (innerPath == null)
+			throw new IllegalArgumentException("Inner path must not be null.");
+		return getPathOwners().get(innerPath);
 	}
 
 	public InputStream getInputStream(String innerPath) throws FileNotFoundException, IOException {
-		InputStream is = null;
-		for (int i = dataEntries.size() - 1; i >= 0 && is == null; i--) {
-			DatabaseEntry de = dataEntries.get(i);
-			if (de.contains(innerPath))
-				is = de.getInputStream(innerPath);
-		}
-		if (is == null)
+		if (innerPath == null)
+			throw new IllegalArgumentException("Inner path must not be null.");
+		DatabaseEntry de = getPathOwners().get(innerPath);
+		if (de == null)
+			throw new FileNotFoundException(String.format("Inner path '%s' was not found in the database.", innerPath));
+		return de.getInputStream(innerPath);
+	}
+
+	/**
+	 * Returns the parsed XML file from the entry that takes precedence in providing it.<br>
+	 * Documents are cached, and only parsed again once their entry's files change, or a different
+	 * entry takes precedence. They are shared, and must not be modified.
+	 * 
+	 * @see DocumentCache
+	 */
+	public Document getDocument(String innerPath) throws FileNotFoundException, IOException, JDOMParseException {
+		if (innerPath == null)
+			throw new IllegalArgumentException("Inner path must not be null.");
+		DatabaseEntry de = getPathOwners().get(innerPath);
+		if (de == null)
 			throw new FileNotFoundException(String.format("Inner path '%s' was not found in the database.", innerPath));
-		return is;
+		return documentCache.getDocument(de, innerPath);
+	}
+
+	public DocumentCache getDocumentCache() {
+		return documentCache;
+	}
+
+	/**
+	 * Holds the contents of all database entries, with each identifier resolved
+	 * to the object from the entry that takes precedence over the others.<br>
+	 * Objects are ordered the same way the old per-call merges ordered them:
+	 * newest entry first, and by identifier within each entry.
+	 */
+	private static class MergedView {
+		private final ArrayList<AugmentObject> augments = new ArrayList<AugmentObject>();
+		private final ArrayList<DroneList> droneLists = new ArrayList<DroneList>();
+		private final ArrayList<GlowObject> glows = new ArrayList<GlowObject>();
+		private final ArrayList<GlowSet> glowSets = new ArrayList<GlowSet>();
+		private final ArrayList<WeaponList> weaponLists = new ArrayList<WeaponList>();
+		private final EnumMap<DroneTypes, ArrayList<DroneObject>> dronesByType =
+				new EnumMap<DroneTypes, ArrayList<DroneObject>>(DroneTypes.class);
+		private final EnumMap<WeaponTypes, ArrayList<WeaponObject>> weaponsByType =
+				new EnumMap<WeaponTypes, ArrayList<WeaponObject>>(WeaponTypes.class);
+
+		private MergedView(ArrayList<DatabaseEntry> entries) {
+			for (DroneTypes type : DroneTypes.values())
+				dronesByType.put(type, new ArrayList<DroneObject>());
+			for (WeaponTypes type : WeaponTypes.values())
+				weaponsByType.put(type, new ArrayList<WeaponObject>());
+
+			HashSet<String> seenAugments = new HashSet<String>();
+			HashSet<String> seenDroneLists = new HashSet<String>();
+			HashSet<String> seenGlows = new HashSet<String>();
+			HashSet<String> seenGlowSets = new HashSet<String>();
+			HashSet<String> seenWeaponLists = new HashSet<String>();
+			HashSet<String> seenDrones = new HashSet<String>();
+			HashSet<String> seenWeapons = new HashSet<String>();
+
+			for (int i = entries.size() - 1; i >= 0; i--) {
+				DatabaseEntry de = entries.get(i);
+
+				for (AugmentObject o : de.getAugments())
+					if (seenAugments.add(o.getIdentifier()))
+						augments.add(o);
+				for (DroneList o : de.getDroneLists())
+					if (seenDroneLists.add(o.getIdentifier()))
+						droneLists.add(o);
+				for (GlowObject o : de.getGlows())
+					if (seenGlows.add(o.getIdentifier()))
+						glows.add(o);
+				for (GlowSet o : de.getGlowSets())
+					if (seenGlowSets.add(o.getIdentifier()))
+						glowSets.add(o);
+				for (WeaponList o : de.getWeaponLists())
+					if (seenWeaponLists.add(o.getIdentifier()))
+						weaponLists.add(o);
+
+				for (DroneTypes type : DroneTypes.values()) {
+					for (DroneObject o : de.getDronesByType(type))
+						if (seenDrones.add(o.getIdentifier()))
+							dronesByType.get(type).add(o);
+				}
+				for (WeaponTypes type : WeaponTypes.values()) {
+					for (WeaponObject o : de.getWeaponsByType(type))
+						if (seenWeapons.add(o.getIdentifier()))
+							weaponsByType.get(type).add(o);
+				}
+			}
+		}
 	}
 }
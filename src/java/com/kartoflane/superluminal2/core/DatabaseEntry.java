@@ -1,19 +1,35 @@
 package com.kartoflane.superluminal2.core;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
+import net.vhati.ftldat.FTLDat;
 import net.vhati.ftldat.FTLDat.FTLPack;
+import net.vhati.ftldat.FTLDat.FolderPack;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -23,7 +39,6 @@ import org.jdom2.input.JDOMParseException;
 
 import com.kartoflane.superluminal2.components.enums.DroneTypes;
 import com.kartoflane.superluminal2.components.enums.WeaponTypes;
-import com.kartoflane.superluminal2.components.interfaces.Predicate;
 import com.kartoflane.superluminal2.ftl.AnimationObject;
 import com.kartoflane.superluminal2.ftl.AugmentObject;
 import com.kartoflane.superluminal2.ftl.BlueprintList;
@@ -37,14 +52,22 @@ import com.kartoflane.superluminal2.ftl.WeaponList;
 import com.kartoflane.superluminal2.ftl.WeaponObject;
 import com.kartoflane.superluminal2.utils.DataUtils;
 import com.kartoflane.superluminal2.utils.IOUtils;
-import com.kartoflane.superluminal2.utils.Utils;
 
 public class DatabaseEntry {
 
 	private static final Logger log = LogManager.getLogger(DatabaseEntry.class);
 
+	private static final String[] EXTENSIONS = { ".xml", ".xml.append", ".append.xml" };
+	private static final String[] ANIM_FILES = { "data/animations", "data/dlcAnimations" };
+	private static final String[] BLUEPRINT_FILES = { "data/blueprints", "data/autoBlueprints",
+			"data/dlcBlueprints", "data/dlcBlueprintsOverwrite" };
+	private static final String[] ROOM_FILES = { "data/rooms" };
+	/** Matches names of glow images in img/ship/interior/ */
+	private static final Pattern GLOW_PTRN = Pattern.compile("[0-9]\\.png|_glow\\.png$");
+
 	private final File file;
 	private final ZipFile archive;
+	private final FolderPack folder;
 	private final FTLPack data;
 	private final FTLPack resource;
 
@@ -57,15 +80,64 @@ public class DatabaseEntry {
 	private TreeSet<GlowSet> glowSets = new TreeSet<GlowSet>();
 	private TreeSet<WeaponList> weaponLists = new TreeSet<WeaponList>();
 	private TreeSet<DroneList> droneLists = new TreeSet<DroneList>();
+
+	// Hash indexes by identifier, kept in sync with the sets above by the store() methods
+	private HashMap<String, AnimationObject> animationMap = new HashMap<String, AnimationObject>();
+	private HashMap<String, WeaponObject> weaponMap = new HashMap<String, WeaponObject>();
+	private HashMap<String, DroneObject> droneMap = new HashMap<String, DroneObject>();
+	private HashMap<String, AugmentObject> augmentMap = new HashMap<String, AugmentObject>();
+	private HashMap<String, GlowObject> glowMap = new HashMap<String, GlowObject>();
+	private HashMap<String, GlowSet> glowSetMap = new HashMap<String, GlowSet>();
+	private HashMap<String, WeaponList> weaponListMap = new HashMap<String, WeaponList>();
+	private HashMap<String, DroneList> droneListMap = new HashMap<String, DroneList>();
+
+	// Sorted array views of the sets above, created on demand and discarded when the set changes
+	private ShipMetadata[] shipMetadataArray = null;
+	private AugmentObject[] augmentArray = null;
+	private GlowObject[] glowArray = null;
+	private GlowSet[] glowSetArray = null;
+	private WeaponList[] weaponListArray = null;
+	private DroneList[] droneListArray = null;
+
+	/** Sorted index of inner paths, created on demand */
+	private PathIndex pathIndex = null;
+	/** Filter of inner paths that rules out lookups of paths absent from this entry, created on demand */
+	private volatile PathFilter pathFilter = null;
+	private final AtomicLong filterHits = new AtomicLong();
+	private final AtomicLong filterMisses = new AtomicLong();
+
+	/** Hashes of the mod's files, computed on demand. The core entry's packs keep their own. */
+	private final HashMap<String, String> fileHashes = new HashMap<String, String>();
+	/** Whether the packs' hashes were loaded from the snapshot directory */
+	private boolean packHashesLoaded = false;
+
+	/** Lazily computed result of {@link #getSourceKey()} */
+	private String sourceKey = null;
+
+	/** Incremented whenever the contents of this entry change */
+	private int modCount = 0;
+	/** Incremented whenever the files of this entry change */
+	private volatile int fileGeneration = 0;
+
+	/** Parsed data files whose contents have yet to be loaded, if the entry was loaded lazily */
+	private Map<String, Document> pendingDocuments = null;
+	/** Snapshot to be saved once the pending contents are loaded */
+	private DatabaseSnapshot pendingSnapshot = null;
+	/** Parsed data files of a folder entry, kept so that only the changed ones have to be parsed again */
+	private Map<String, Document> folderDocuments = null;
+
 	/** Temporary map to hold anim sheets, since they need to be loaded before weaponAnims, which reference them */
 	private HashMap<String, Element> animSheetMap = new HashMap<String, Element>();
 
 	/**
 	 * Creates a DatabaseEntry representing an installed mod.<br>
-	 * The entry then has to be loaded using {@link #load()}
+	 * The entry then has to be loaded using {@link #load()}<br>
+	 * <br>
+	 * Mods can also be read from an unpacked folder, laid out like the mod's archive. Changes to
+	 * the folder's files can then be applied with {@link Database#refreshEntry(DatabaseEntry, Collection)}.
 	 * 
 	 * @param f
-	 *            the .ftl or .zip file from which the data will be read
+	 *            the .ftl or .zip file, or the folder, from which the data will be read
 	 * @throws ZipException
 	 *             when the file is not a zip archive
 	 * @throws IOException
@@ -73,7 +145,13 @@ public class DatabaseEntry {
 	 */
 	public DatabaseEntry(File f) throws ZipException, IOException {
 		file = f;
-		archive = new ZipFile(f);
+		if (f.isDirectory()) {
+			archive = null;
+			folder = new FolderPack(f);
+		} else {
+			archive = new ZipFile(f);
+			folder = null;
+		}
 		data = null;
 		resource = null;
 	}
@@ -89,6 +167,7 @@ public class DatabaseEntry {
 	public DatabaseEntry(FTLPack data, FTLPack resource) {
 		file = new File("DatabaseCore");
 		archive = null;
+		folder = null;
 		this.data = data;
 		this.resource = resource;
 	}
@@ -100,14 +179,25 @@ public class DatabaseEntry {
 		return file == null ? "" : file.getName();
 	}
 
+	/**
+	 * @return the folder from which the entry's data is read, or null if it is read from an archive
+	 */
+	public FolderPack getFolder() {
+		return folder;
+	}
+
 	/**
 	 * @return true if the entry contains the innerPath, false otherwise
 	 */
 	public boolean contains(String innerPath) {
 		if (innerPath == null)
 			throw new IllegalArgumentException("Inner path must not be null.");
+		if (isFilteredOut(innerPath))
+			return false;
 
-		if (archive == null) {
+		if (folder != null) {
+			return folder.getFile(innerPath).isFile();
+		} else if (archive == null) {
 			boolean result = data.contains(innerPath);
 			if (!result)
 				result = resource.contains(innerPath);
@@ -130,13 +220,13 @@ public class DatabaseEntry {
 	public InputStream getInputStream(String innerPath) throws FileNotFoundException, IOException {
 		if (innerPath == null)
 			throw new IllegalArgumentException("Inner path must not be null.");
+		if (isFilteredOut(innerPath))
+			throw new FileNotFoundException("Inner path not found: " + innerPath);
 
-		if (archive == null) {
-			if (innerPath.endsWith(".txt") || innerPath.endsWith(".xml") ||
-					innerPath.endsWith(".xml.append") || innerPath.endsWith(".append.xml"))
-				return data.getInputStream(innerPath);
-			else
-				return resource.getInputStream(innerPath);
+		if (folder != null) {
+			return folder.getInputStream(innerPath);
+		} else if (archive == null) {
+			return getPack(innerPath).getInputStream(innerPath);
 		} else {
 			ZipEntry ze = archive.getEntry(innerPath);
 			if (ze == null)
@@ -145,12 +235,207 @@ public class DatabaseEntry {
 		}
 	}
 
+	/**
+	 * @return the pack of the core entry that holds the inner path
+	 */
+	private FTLPack getPack(String innerPath) {
+		if (innerPath.endsWith(".txt") || innerPath.endsWith(".xml") ||
+				innerPath.endsWith(".xml.append") || innerPath.endsWith(".append.xml"))
+			return data;
+		else
+			return resource;
+	}
+
+	/**
+	 * @param innerPath
+	 *            the inner path of the sought file
+	 * @return size of the file in bytes, or -1 if the archive doesn't record it
+	 * 
+	 * @throws FileNotFoundException
+	 *             when the inner path was not found in the entry
+	 */
+	public long getContentSize(String innerPath) throws FileNotFoundException {
+		if (innerPath == null)
+			throw new IllegalArgumentException("Inner path must not be null.");
+
+		if (folder != null) {
+			File f = folder.getFile(innerPath);
+			if (!f.isFile())
+				throw new FileNotFoundException("Inner path not found: " + innerPath);
+			return f.length();
+		} else if (archive == null) {
+			return getPack(innerPath).getSize(innerPath);
+		} else {
+			ZipEntry ze = archive.getEntry(innerPath);
+			if (ze == null)
+				throw new FileNotFoundException("Inner path not found: " + innerPath);
+			return ze.getSize();
+		}
+	}
+
+	/**
+	 * @param innerPath
+	 *            the inner path of the sought file
+	 * @return MD5 hash of the file's contents, in lowercase hexadecimal. Computed on first request.
+	 * 
+	 * @throws FileNotFoundException
+	 *             when the inner path was not found in the entry
+	 * @throws IOException
+	 *             when an IO error occurs
+	 */
+	public String getContentHash(String innerPath) throws FileNotFoundException, IOException {
+		if (innerPath == null)
+			throw new IllegalArgumentException("Inner path must not be null.");
+
+		if (data != null)
+			return getPack(innerPath).getHash(innerPath);
+
+		synchronized (fileHashes) {
+			String hash = fileHashes.get(innerPath);
+			if (hash != null)
+				return hash;
+		}
+
+		String hash = null;
+		InputStream is = getInputStream(innerPath);
+		try {
+			hash = FTLDat.calcStreamMD5(is);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("MD5 is not supported: " + e.getMessage());
+		} finally {
+			is.close();
+		}
+
+		synchronized (fileHashes) {
+			fileHashes.put(innerPath, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Computes the content hashes of the files, reading them on a pool of threads.<br>
+	 * <br>
+	 * For the core entry, hashes are kept in the database's snapshot directory (if it has one)
+	 * between launches, keyed by the size and modification time of the dat files. A dat's
+	 * hashes are only written back when some of them had to be computed.
+	 * 
+	 * @param innerPaths
+	 *            inner paths of the files to hash
+	 * @param threads
+	 *            number of threads to use. Must be at least 1.
+	 * @return map of inner paths to hashes
+	 * 
+	 * @throws IOException
+	 *             when one of the files could not be read
+	 */
+	public Map<String, String> getContentHashes(Collection<String> innerPaths, int threads) throws IOException {
+		if (innerPaths == null)
+			throw new IllegalArgumentException("Inner paths must not be null.");
+		if (threads < 1)
+			throw new IllegalArgumentException("Thread count must be at least 1.");
+
+		File hashDir = Database.getInstance() == null ? null : Database.getInstance().getSnapshotDirectory();
+		if (data != null && hashDir != null) {
+			synchronized (this) {
+				if (!packHashesLoaded) {
+					packHashesLoaded = true;
+					try {
+						data.loadHashes(new File(hashDir, data.getName() + ".hashes"));
+						resource.loadHashes(new File(hashDir, resource.getName() + ".hashes"));
+					} catch (IOException e) {
+						log.warn(String.format("%s: could not load content hashes: %s", getName(), e.getMessage()));
+					}
+				}
+			}
+		}
+
+		HashMap<String, String> result = new HashMap<String, String>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			LinkedHashMap<String, Future<String>> futures = new LinkedHashMap<String, Future<String>>();
+			for (final String innerPath : innerPaths) {
+				futures.put(innerPath, executor.submit(new Callable<String>() {
+					public String call() throws IOException {
+						return getContentHash(innerPath);
+					}
+				}));
+			}
+
+			for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
+				try {
+					result.put(entry.getKey(), entry.getValue().get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException(String.format("%s: could not hash file '%s': %s", getName(), entry.getKey(), e.getCause()));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(getName() + ": interrupted while hashing files.");
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (data != null && hashDir != null && !result.isEmpty()) {
+			try {
+				hashDir.mkdirs();
+				data.saveHashes(new File(hashDir, data.getName() + ".hashes"));
+				resource.saveHashes(new File(hashDir, resource.getName() + ".hashes"));
+			} catch (IOException e) {
+				log.warn(String.format("%s: could not save content hashes: %s", getName(), e.getMessage()));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return a string identifying the current state of the files backing this entry:
+	 *         size and modification time of the dat files for the core entry,
+	 *         the MD5 hash of the archive for mods, or the MD5 hash of the
+	 *         paths, sizes and modification times of the files for folders.
+	 * 
+	 * @throws IOException
+	 *             when the archive could not be read
+	 */
+	String getSourceKey() throws IOException {
+		if (sourceKey == null) {
+			if (folder != null) {
+				StringBuilder buf = new StringBuilder();
+				for (String innerPath : getPathIndex().list()) {
+					File f = folder.getFile(innerPath);
+					buf.append(String.format("%s:%d:%d%n", innerPath, f.length(), f.lastModified()));
+				}
+				try {
+					sourceKey = "folder:" + FTLDat.calcStreamMD5(new ByteArrayInputStream(buf.toString().getBytes("UTF-8")));
+				} catch (NoSuchAlgorithmException e) {
+					throw new IOException("MD5 is not supported: " + e.getMessage());
+				}
+			} else if (data != null) {
+				File dataFile = data.getDatFile();
+				File resourceFile = resource.getDatFile();
+				sourceKey = String.format("dats:%d:%d:%d:%d", dataFile.length(), dataFile.lastModified(),
+						resourceFile.length(), resourceFile.lastModified());
+			} else {
+				try {
+					sourceKey = "md5:" + FTLDat.calcFileMD5(file);
+				} catch (NoSuchAlgorithmException e) {
+					throw new IOException("MD5 is not supported: " + e.getMessage());
+				}
+			}
+		}
+		return sourceKey;
+	}
+
 	/**
 	 * @return a list of all inner paths
 	 */
 	public ArrayList<String> list() {
 		ArrayList<String> result = new ArrayList<String>();
-		if (archive == null) {
+		if (folder != null) {
+			result.addAll(folder.list());
+		} else if (archive == null) {
 			result.addAll(data.list());
 			result.addAll(resource.list());
 		} else {
@@ -164,67 +449,172 @@ public class DatabaseEntry {
 		return result;
 	}
 
+	/**
+	 * @return sorted index of all inner paths in this entry, for prefix and pattern queries
+	 * 
+	 * @see #list()
+	 */
+	public synchronized PathIndex getPathIndex() {
+		if (pathIndex == null)
+			pathIndex = new PathIndex(list());
+		return pathIndex;
+	}
+
+	/**
+	 * Checks the inner path against the entry's {@link PathFilter}, and updates the filter's counters.
+	 * 
+	 * @return true if the path is definitely absent from this entry
+	 */
+	private boolean isFilteredOut(String innerPath) {
+		PathFilter filter = pathFilter;
+		if (filter == null) {
+			synchronized (this) {
+				if (pathFilter == null)
+					pathFilter = new PathFilter(getPathIndex().list());
+				filter = pathFilter;
+			}
+		}
+
+		if (filter.mightContain(innerPath)) {
+			filterMisses.incrementAndGet();
+			return false;
+		} else {
+			filterHits.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * @return number of lookups of inner paths that were ruled out by the entry's
+	 *         path filter, without consulting the archive
+	 */
+	public long getFilterHitCount() {
+		return filterHits.get();
+	}
+
+	/**
+	 * @return number of lookups of inner paths that passed the entry's path filter,
+	 *         and had to be looked up in the archive
+	 */
+	public long getFilterMissCount() {
+		return filterMisses.get();
+	}
+
 	/**
 	 * Closes this entry and releases any system resources associated with the stream.
 	 */
 	public void close() throws IOException {
-		if (archive == null) {
+		if (folder != null) {
+			// Nothing to release
+		} else if (archive == null) {
 			data.close();
 			resource.close();
 		} else
 			archive.close();
 	}
 
+	/**
+	 * @return a counter that is incremented each time the contents of this entry change,
+	 *         used by the {@link Database} to detect when its merged view has become stale
+	 */
+	public int getModificationCount() {
+		return modCount;
+	}
+
+	/**
+	 * @return a counter that is incremented each time the files of this entry change,
+	 *         used by the {@link DocumentCache} to detect when its documents have become stale
+	 */
+	public int getFileGeneration() {
+		return fileGeneration;
+	}
+
 	public void store(AnimationObject anim) {
-		animationObjects.add(anim);
+		// The first object stored under a given identifier takes precedence
+		if (animationObjects.add(anim)) {
+			animationMap.put(anim.getIdentifier(), anim);
+			modCount++;
+		}
 	}
 
 	public void store(AugmentObject augment) {
-		augmentObjects.add(augment);
+		if (augmentObjects.add(augment)) {
+			augmentMap.put(augment.getIdentifier(), augment);
+			augmentArray = null;
+			modCount++;
+		}
 	}
 
 	public void store(BlueprintList<?> list) {
 		if (list instanceof WeaponList) {
-			weaponLists.add((WeaponList) list);
+			WeaponList weaponList = (WeaponList) list;
+			if (weaponLists.add(weaponList)) {
+				weaponListMap.put(weaponList.getIdentifier(), weaponList);
+				weaponListArray = null;
+				modCount++;
+			}
 		} else if (list instanceof DroneList) {
-			droneLists.add((DroneList) list);
+			DroneList droneList = (DroneList) list;
+			if (droneLists.add(droneList)) {
+				droneListMap.put(droneList.getIdentifier(), droneList);
+				droneListArray = null;
+				modCount++;
+			}
 		} else {
 			// Not interested in any other lists
 		}
 	}
 
 	public void store(DroneObject drone) {
-		droneObjects.add(drone);
+		if (droneObjects.add(drone)) {
+			droneMap.put(drone.getIdentifier(), drone);
+			modCount++;
+		}
 	}
 
 	public void store(GlowObject glow) {
-		glowObjects.add(glow);
+		if (glowObjects.add(glow)) {
+			glowMap.put(glow.getIdentifier(), glow);
+			glowArray = null;
+			modCount++;
+		}
 	}
 
 	public void store(GlowSet set) {
-		glowSets.add(set);
+		if (glowSets.add(set)) {
+			glowSetMap.put(set.getIdentifier(), set);
+			glowSetArray = null;
+			modCount++;
+		}
 	}
 
 	public void store(ShipMetadata metadata) {
 		shipMetadata.add(metadata);
+		shipMetadataArray = null;
+		modCount++;
 	}
 
 	public void store(WeaponObject weapon) {
-		weaponObjects.add(weapon);
+		if (weaponObjects.add(weapon)) {
+			weaponMap.put(weapon.getIdentifier(), weapon);
+			modCount++;
+		}
+	}
+
+	/**
+	 * @return an array of all animations in this entry, sorted by animName
+	 */
+	public AnimationObject[] getAnimations() {
+		return animationObjects.toArray(new AnimationObject[0]);
 	}
 
 	/**
 	 * @param animName
 	 *            the animName of the sought animation (eg. laser_burst_1)
-	 * @return
+	 * @return the animation with the given animName, or null if not found
 	 */
 	public AnimationObject getAnimation(String animName) {
-		AnimationObject[] anims = animationObjects.toArray(new AnimationObject[0]);
-		try {
-			return anims[Utils.binarySearch(anims, animName, 0, anims.length)];
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		return animationMap.get(animName);
 	}
 
 	/**
@@ -233,26 +623,27 @@ public class DatabaseEntry {
 	 * @return the augment with the given blueprint, or null if not found
 	 */
 	public AugmentObject getAugment(String blueprint) {
-		AugmentObject[] augments = getAugments();
-		try {
-			return augments[Utils.binarySearch(augments, blueprint, 0, augments.length)];
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		return augmentMap.get(blueprint);
 	}
 
 	/**
-	 * @return an array of all augments in this entry
+	 * @return an array of all augments in this entry, sorted by blueprint name.<br>
+	 *         The array is shared between calls, and must not be modified.
 	 */
 	public AugmentObject[] getAugments() {
-		return augmentObjects.toArray(new AugmentObject[0]);
+		if (augmentArray == null)
+			augmentArray = augmentObjects.toArray(new AugmentObject[0]);
+		return augmentArray;
 	}
 
 	/**
-	 * @return an array of all drone lists in this entry
+	 * @return an array of all drone lists in this entry, sorted by name.<br>
+	 *         The array is shared between calls, and must not be modified.
 	 */
 	public DroneList[] getDroneLists() {
-		return droneLists.toArray(new DroneList[0]);
+		if (droneListArray == null)
+			droneListArray = droneLists.toArray(new DroneList[0]);
+		return droneListArray;
 	}
 
 	/**
@@ -261,12 +652,14 @@ public class DatabaseEntry {
 	 * @return the blueprint list with the given name
 	 */
 	public DroneList getDroneList(String name) {
-		DroneList[] lists = getDroneLists();
-		try {
-			return lists[Utils.binarySearch(lists, name, 0, lists.length)];
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		return droneListMap.get(name);
+	}
+
+	/**
+	 * @return an array of all drones in this entry, sorted by blueprint name
+	 */
+	public DroneObject[] getDrones() {
+		return droneObjects.toArray(new DroneObject[0]);
 	}
 
 	/**
@@ -275,12 +668,7 @@ public class DatabaseEntry {
 	 * @return the drone with the given blueprint name, or null if not found
 	 */
 	public DroneObject getDrone(String blueprint) {
-		DroneObject[] drones = droneObjects.toArray(new DroneObject[0]);
-		try {
-			return drones[Utils.binarySearch(drones, blueprint, 0, drones.length)];
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		return droneMap.get(blueprint);
 	}
 
 	/**
@@ -304,19 +692,17 @@ public class DatabaseEntry {
 	 * @return the glow object wit the given name, or null if not found
 	 */
 	public GlowObject getGlow(String id) {
-		GlowObject[] glows = getGlows();
-		try {
-			return glows[Utils.binarySearch(glows, id, 0, glows.length)];
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		return glowMap.get(id);
 	}
 
 	/**
-	 * @return an array of all glow objects in this entry
+	 * @return an array of all glow objects in this entry, sorted by name.<br>
+	 *         The array is shared between calls, and must not be modified.
 	 */
 	public GlowObject[] getGlows() {
-		return glowObjects.toArray(new GlowObject[0]);
+		if (glowArray == null)
+			glowArray = glowObjects.toArray(new GlowObject[0]);
+		return glowArray;
 	}
 
 	/**
@@ -325,33 +711,37 @@ public class DatabaseEntry {
 	 * @return the glow image set with the given namespace, or null if not found
 	 */
 	public GlowSet getGlowSet(String id) {
-		GlowSet[] glowSets = getGlowSets();
-		try {
-			return glowSets[Utils.binarySearch(glowSets, id, 0, glowSets.length)];
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		return glowSetMap.get(id);
 	}
 
 	/**
-	 * @return an array of all glow sets in this entry
+	 * @return an array of all glow sets in this entry, sorted by namespace.<br>
+	 *         The array is shared between calls, and must not be modified.
 	 */
 	public GlowSet[] getGlowSets() {
-		return glowSets.toArray(new GlowSet[0]);
+		if (glowSetArray == null)
+			glowSetArray = glowSets.toArray(new GlowSet[0]);
+		return glowSetArray;
 	}
 
 	/**
-	 * @return an array of all ships in this entry
+	 * @return an array of all ships in this entry, in the order they were loaded.<br>
+	 *         The array is shared between calls, and must not be modified.
 	 */
 	public ShipMetadata[] getShipMetadata() {
-		return shipMetadata.toArray(new ShipMetadata[0]);
+		if (shipMetadataArray == null)
+			shipMetadataArray = shipMetadata.toArray(new ShipMetadata[0]);
+		return shipMetadataArray;
 	}
 
 	/**
-	 * @return an array of all weapon lists in this entry
+	 * @return an array of all weapon lists in this entry, sorted by name.<br>
+	 *         The array is shared between calls, and must not be modified.
 	 */
 	public WeaponList[] getWeaponLists() {
-		return weaponLists.toArray(new WeaponList[0]);
+		if (weaponListArray == null)
+			weaponListArray = weaponLists.toArray(new WeaponList[0]);
+		return weaponListArray;
 	}
 
 	/**
@@ -360,12 +750,14 @@ public class DatabaseEntry {
 	 * @return the blueprint list with the given name
 	 */
 	public WeaponList getWeaponList(String name) {
-		WeaponList[] lists = getWeaponLists();
-		try {
-			return lists[Utils.binarySearch(lists, name, 0, lists.length)];
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		return weaponListMap.get(name);
+	}
+
+	/**
+	 * @return an array of all weapons in this entry, sorted by blueprint name
+	 */
+	public WeaponObject[] getWeapons() {
+		return weaponObjects.toArray(new WeaponObject[0]);
 	}
 
 	/**
@@ -374,12 +766,7 @@ public class DatabaseEntry {
 	 * @return the weapon with the given blueprint name, or null if not found
 	 */
 	public WeaponObject getWeapon(String blueprint) {
-		WeaponObject[] weapons = weaponObjects.toArray(new WeaponObject[0]);
-		try {
-			return weapons[Utils.binarySearch(weapons, blueprint, 0, weapons.length)];
-		} catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		return weaponMap.get(blueprint);
 	}
 
 	/**
@@ -414,203 +801,352 @@ public class DatabaseEntry {
 	 * </pre>
 	 */
 	public void load() {
-		// Animations need to be loaded before weapons, since they reference them
-		preloadAnims();
-		loadGlowSets();
+		HashMap<String, Document> documents = new HashMap<String, Document>();
+		for (String innerPath : getDataFiles()) {
+			Document doc = loadDocument(innerPath);
+			if (doc != null)
+				documents.put(innerPath, doc);
+		}
+		load(documents);
+	}
 
-		String[] extensions = { ".xml", ".xml.append", ".append.xml" };
-		InputStream is = null;
+	/**
+	 * Loads the contents of the database entry from documents that have already been parsed.<br>
+	 * Used by {@link DatabaseLoader}, which parses the files in parallel beforehand.
+	 * 
+	 * @param documents
+	 *            map of inner paths (as returned by {@link #getDataFiles()}) to their parsed documents.
+	 *            Files that are missing from the map are treated as absent from the entry.
+	 */
+	void load(Map<String, Document> documents) {
+		if (folder != null)
+			folderDocuments = documents;
+		loadShips(documents);
+		loadContents(documents);
 
-		String[] blueprintFiles = { "data/blueprints", "data/autoBlueprints",
-				"data/dlcBlueprints", "data/dlcBlueprintsOverwrite" };
+		log.trace(getName() + " was loaded successfully.");
+	}
 
-		for (String ext : extensions) {
-			for (String innerPath : blueprintFiles) {
-				try {
-					is = getInputStream(innerPath + ext);
-					IOUtils.DecodeResult dr = IOUtils.decodeText(is, null);
-
-					ArrayList<Element> elements = DataUtils.findTagsNamed(dr.text, "shipBlueprint");
-					for (Element e : elements) {
-						try {
-							store(DataUtils.loadShipMetadata(e));
-						} catch (IllegalArgumentException ex) {
-							log.warn(getName() + ": could not load ship metadata: " + ex.getMessage());
-						}
-					}
+	/**
+	 * Loads only the ship metadata of the database entry, and keeps the documents so that
+	 * the rest of its contents can be loaded later, with {@link #loadPendingContents()}.
+	 * 
+	 * @param documents
+	 *            same as in {@link #load(Map)}
+	 * @param snapshot
+	 *            snapshot to be saved once the rest of the contents is loaded, or null
+	 */
+	void loadLazily(Map<String, Document> documents, DatabaseSnapshot snapshot) {
+		if (folder != null)
+			folderDocuments = documents;
+		loadShips(documents);
+		pendingDocuments = documents;
+		pendingSnapshot = snapshot;
+
+		log.trace(getName() + " was loaded lazily.");
+	}
 
-					elements.clear();
-					elements = null;
-					elements = DataUtils.findTagsNamed(dr.text, "weaponBlueprint");
-					for (Element e : elements) {
-						try {
-							store(DataUtils.loadWeapon(e));
-						} catch (IllegalArgumentException ex) {
-							log.warn(getName() + ": could not load weapon: " + ex.getMessage());
-						}
-					}
+	/**
+	 * @return true if the entry was loaded with {@link #loadLazily(Map, DatabaseSnapshot)},
+	 *         and its contents other than ship metadata have yet to be loaded
+	 */
+	public boolean hasPendingContents() {
+		return pendingDocuments != null;
+	}
 
-					elements.clear();
-					elements = null;
-					elements = DataUtils.findTagsNamed(dr.text, "droneBlueprint");
-					for (Element e : elements) {
-						try {
-							store(DataUtils.loadDrone(e));
-						} catch (IllegalArgumentException ex) {
-							log.warn(getName() + ": could not load drone: " + ex.getMessage());
-						}
-					}
+	/**
+	 * Loads the contents that were deferred by {@link #loadLazily(Map, DatabaseSnapshot)}.<br>
+	 * Entries preceding this one in the database have to have their contents loaded first, since
+	 * this entry's contents reference them. Use {@link Database#loadContents()} instead.
+	 */
+	void loadPendingContents() {
+		if (pendingDocuments == null)
+			return;
 
-					elements.clear();
-					elements = null;
-					elements = DataUtils.findTagsNamed(dr.text, "augBlueprint");
-					for (Element e : elements) {
-						try {
-							store(DataUtils.loadAugment(e));
-						} catch (IllegalArgumentException ex) {
-							log.warn(getName() + ": could not load augment: " + ex.getMessage());
-						}
-					}
-				} catch (FileNotFoundException e) {
-					// Spammy and not very useful.
-					// log.trace(String.format("Inner path '%s' could not be found.", innerPath + ext));
-				} catch (IOException e) {
-					log.error(getName() + ": an error has occured while loading file '" + innerPath + "':", e);
-				} catch (JDOMParseException e) {
-					log.error(getName() + ": an error has occured while parsing file '" + innerPath + "':", e);
-				} finally {
+		// Keep the documents until they're loaded, so that a failed load can be retried
+		loadContents(pendingDocuments);
+		pendingDocuments = null;
+
+		if (pendingSnapshot != null) {
+			try {
+				pendingSnapshot.save(this);
+			} catch (IOException e) {
+				log.warn(String.format("%s: database snapshot could not be saved: %s", getName(), e.getMessage()));
+			}
+			pendingSnapshot = null;
+		}
+
+		log.trace(getName() + " finished loading.");
+	}
+
+	/**
+	 * Brings a folder entry up to date with changes made to its files. Only the data files among
+	 * the changed ones are parsed again, the documents of the others are reused. Contents of the
+	 * entry are only reloaded if a data file or a glow image has changed.<br>
+	 * This method should not be called directly. Use {@link Database#refreshEntry(DatabaseEntry, Collection)} instead.
+	 * 
+	 * @param innerPaths
+	 *            inner paths of the files that were added, removed or modified
+	 * @return true if the contents of the entry were reloaded
+	 */
+	boolean refresh(Collection<String> innerPaths) {
+		if (folder == null)
+			throw new IllegalStateException(getName() + " is not backed by a folder.");
+
+		fileGeneration++;
+		synchronized (this) {
+			pathIndex = null;
+			pathFilter = null;
+		}
+		sourceKey = null;
+		synchronized (fileHashes) {
+			for (String innerPath : innerPaths)
+				fileHashes.remove(innerPath);
+		}
+
+		List<String> dataFiles = getDataFiles();
+		ArrayList<String> changedDataFiles = new ArrayList<String>();
+		boolean reload = false;
+		for (String innerPath : innerPaths) {
+			if (dataFiles.contains(innerPath))
+				changedDataFiles.add(innerPath);
+			else if (innerPath.startsWith("img/ship/interior/") && GLOW_PTRN.matcher(innerPath).find())
+				reload = true;
+		}
+		if (changedDataFiles.isEmpty() && !reload)
+			return false;
+
+		// Entries restored from a snapshot have no documents to reuse
+		Map<String, Document> documents = folderDocuments;
+		if (documents == null) {
+			documents = new HashMap<String, Document>();
+			changedDataFiles = new ArrayList<String>(dataFiles);
+		}
+		for (String innerPath : changedDataFiles) {
+			Document doc = loadDocument(innerPath);
+			if (doc == null)
+				documents.remove(innerPath);
+			else
+				documents.put(innerPath, doc);
+		}
+
+		clearContents();
+		load(documents);
+		return true;
+	}
+
+	/**
+	 * Removes all contents of the entry, so that it can be loaded again.
+	 */
+	private void clearContents() {
+		shipMetadata.clear();
+		animationObjects.clear();
+		weaponObjects.clear();
+		droneObjects.clear();
+		augmentObjects.clear();
+		glowObjects.clear();
+		glowSets.clear();
+		weaponLists.clear();
+		droneLists.clear();
+
+		animationMap.clear();
+		weaponMap.clear();
+		droneMap.clear();
+		augmentMap.clear();
+		glowMap.clear();
+		glowSetMap.clear();
+		weaponListMap.clear();
+		droneListMap.clear();
+
+		shipMetadataArray = null;
+		augmentArray = null;
+		glowArray = null;
+		glowSetArray = null;
+		weaponListArray = null;
+		droneListArray = null;
+
+		animSheetMap = new HashMap<String, Element>();
+		modCount++;
+	}
+
+	private void loadShips(Map<String, Document> documents) {
+		for (String ext : EXTENSIONS) {
+			for (String innerPath : BLUEPRINT_FILES) {
+				Document doc = documents.get(innerPath + ext);
+				if (doc == null)
+					continue;
+
+				for (Element e : getTopLevelElements(doc)) {
+					if (!e.getName().equals("shipBlueprint"))
+						continue;
 					try {
-						if (is != null)
-							is.close();
-					} catch (IOException e) {
+						store(DataUtils.loadShipMetadata(e));
+					} catch (IllegalArgumentException ex) {
+						log.warn(getName() + ": could not load shipBlueprint: " + ex.getMessage());
 					}
 				}
 			}
 		}
+	}
 
-		for (String ext : extensions) {
-			// Lists reference their contents directly, so they have to be loaded in a separate loop
-			for (String innerPath : blueprintFiles) {
-				try {
-					is = getInputStream(innerPath + ext);
-					IOUtils.DecodeResult dr = IOUtils.decodeText(is, null);
-
-					ArrayList<Element> elements = DataUtils.findTagsNamed(dr.text, "blueprintList");
-					for (Element e : elements) {
-						try {
-							store(DataUtils.loadList(e));
-						} catch (IllegalArgumentException ex) {
-							log.warn(getName() + ": could not load blueprint list: " + ex.getMessage());
-						}
-					}
+	/**
+	 * Loads everything but ship metadata.
+	 */
+	private void loadContents(Map<String, Document> documents) {
+		// Animations need to be loaded before weapons, since they reference them
+		preloadAnims(documents);
+		loadGlowSets();
+
+		// Lists reference their contents directly, so they can only be linked once all blueprint files have been read
+		ArrayList<Element> listElements = new ArrayList<Element>();
+
+		for (String ext : EXTENSIONS) {
+			for (String innerPath : BLUEPRINT_FILES) {
+				Document doc = documents.get(innerPath + ext);
+				if (doc == null)
+					continue;
 
-					elements.clear();
-					elements = null;
-				} catch (FileNotFoundException e) {
-					// Spammy and not very useful.
-					// log.trace(String.format("Inner path '%s' could not be found.", innerPath + ext));
-				} catch (IOException e) {
-					log.error(getName() + ": an error has occured while loading file '" + innerPath + "':", e);
-				} catch (JDOMParseException e) {
-					log.error(getName() + ": an error has occured while parsing file '" + innerPath + "':", e);
-				} finally {
+				for (Element e : getTopLevelElements(doc)) {
+					String tagName = e.getName();
 					try {
-						if (is != null)
-							is.close();
-					} catch (IOException e) {
+						if (tagName.equals("weaponBlueprint")) {
+							store(DataUtils.loadWeapon(e));
+						} else if (tagName.equals("droneBlueprint")) {
+							store(DataUtils.loadDrone(e));
+						} else if (tagName.equals("augBlueprint")) {
+							store(DataUtils.loadAugment(e));
+						} else if (tagName.equals("blueprintList")) {
+							listElements.add(e);
+						}
+					} catch (IllegalArgumentException ex) {
+						log.warn(getName() + ": could not load " + tagName + ": " + ex.getMessage());
 					}
 				}
 			}
 		}
 
-		// Scan rooms.xml alone
-		for (String ext : extensions) {
+		for (Element e : listElements) {
 			try {
-				is = getInputStream("data/rooms" + ext);
-				IOUtils.DecodeResult dr = IOUtils.decodeText(is, null);
+				store(DataUtils.loadList(e));
+			} catch (IllegalArgumentException ex) {
+				log.warn(getName() + ": could not load blueprint list: " + ex.getMessage());
+			}
+		}
+		listElements.clear();
 
-				ArrayList<Element> elements = DataUtils.findTagsNamed(dr.text, "roomLayout");
-				for (Element e : elements) {
+		// Scan rooms.xml alone
+		for (String ext : EXTENSIONS) {
+			for (String innerPath : ROOM_FILES) {
+				Document doc = documents.get(innerPath + ext);
+				if (doc == null)
+					continue;
+
+				for (Element e : getTopLevelElements(doc)) {
+					if (!e.getName().equals("roomLayout"))
+						continue;
 					try {
 						store(DataUtils.loadGlow(e));
 					} catch (IllegalArgumentException ex) {
 						log.warn(getName() + ": could not load glow object: " + ex.getMessage());
 					}
 				}
-
-				elements.clear();
-				elements = null;
-			} catch (FileNotFoundException e) {
-				// log.trace(String.format("Inner path '%s' could not be found.", "data/rooms" + ext));
-			} catch (IOException e) {
-				log.error(getName() + ": an error has occured while loading file 'data/rooms.xml':", e);
-			} catch (JDOMParseException e) {
-				log.error(getName() + ": an error has occured while parsing file 'data/rooms.xml':", e);
-			} finally {
-				try {
-					if (is != null)
-						is.close();
-				} catch (IOException e) {
-				}
 			}
 		}
 
 		// Clear anim sheets, as they're no longer needed
 		clearAnimSheets();
-
-		log.trace(getName() + " was loaded successfully.");
 	}
 
-	private void preloadAnims() {
-		String[] extensions = { ".xml", ".xml.append", ".append.xml" };
-		String[] animPaths = new String[] { "data/animations", "data/dlcAnimations" };
-
-		for (String ext : extensions) {
-			for (String innerPath : animPaths) {
-				InputStream is = null;
-				try {
-					is = getInputStream(innerPath + ext);
-					IOUtils.DecodeResult dr = IOUtils.decodeText(is, null);
-
-					Document doc = null;
-					doc = IOUtils.parseXML(dr.text);
-					Element root = doc.getRootElement();
-
-					// Preload anim sheets
-					for (Element e : root.getChildren("animSheet")) {
-						String name = e.getAttributeValue("name");
-						// If older entries are allowed to be overwritten by newer ones, bomb weapons
-						// load the bomb projectile images instead of weapon images, since their sheets
-						// share the same name
-						if (name != null && !animSheetMap.containsKey(name))
-							animSheetMap.put(name, e);
-					}
+	private void preloadAnims(Map<String, Document> documents) {
+		for (String ext : EXTENSIONS) {
+			for (String innerPath : ANIM_FILES) {
+				Document doc = documents.get(innerPath + ext);
+				if (doc == null)
+					continue;
+				Element root = doc.getRootElement();
+
+				// Preload anim sheets
+				for (Element e : root.getChildren("animSheet")) {
+					String name = e.getAttributeValue("name");
+					// If older entries are allowed to be overwritten by newer ones, bomb weapons
+					// load the bomb projectile images instead of weapon images, since their sheets
+					// share the same name
+					if (name != null && !animSheetMap.containsKey(name))
+						animSheetMap.put(name, e);
+				}
 
-					// Load and store weaponAnims
-					for (Element e : root.getChildren("weaponAnim")) {
-						try {
-							store(DataUtils.loadAnim(this, e));
-						} catch (IllegalArgumentException ex) {
-							log.warn(getName() + ": could not load animation: " + ex.getMessage());
-						}
-					}
-				} catch (FileNotFoundException e) {
-					// log.trace(String.format("Inner path '%s' could not be found.", innerPath + ext));
-				} catch (IOException e) {
-					log.error(getName() + ": an error has occured while loading file " + innerPath + ":", e);
-				} catch (JDOMParseException e) {
-					log.error(getName() + ": an error has occured while parsing file " + innerPath + ":", e);
-				} finally {
+				// Load and store weaponAnims
+				for (Element e : root.getChildren("weaponAnim")) {
 					try {
-						if (is != null)
-							is.close();
-					} catch (IOException e) {
+						store(DataUtils.loadAnim(this, e));
+					} catch (IllegalArgumentException ex) {
+						log.warn(getName() + ": could not load animation: " + ex.getMessage());
 					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * @return inner paths of all XML files read by {@link #load()}, in the order in which
+	 *         their contents are loaded. Not all of them necessarily exist in this entry.
+	 */
+	public List<String> getDataFiles() {
+		ArrayList<String> result = new ArrayList<String>();
+		for (String[] files : new String[][] { ANIM_FILES, BLUEPRINT_FILES, ROOM_FILES }) {
+			for (String ext : EXTENSIONS) {
+				for (String innerPath : files)
+					result.add(innerPath + ext);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decodes and parses the XML file with the given inner path.<br>
+	 * Safe to call from multiple threads at once, as long as the entry is not being closed.
+	 * 
+	 * @return the parsed document, or null if the file does not exist in this entry or could not be read
+	 */
+	Document loadDocument(String innerPath) {
+		InputStream is = null;
+		try {
+			is = getInputStream(innerPath);
+			IOUtils.DecodeResult dr = IOUtils.decodeText(is, innerPath, getContentSize(innerPath));
+			return IOUtils.parseXML(dr.text);
+		} catch (FileNotFoundException e) {
+			// Spammy and not very useful.
+			// log.trace(String.format("Inner path '%s' could not be found.", innerPath));
+		} catch (IOException e) {
+			log.error(getName() + ": an error has occured while loading file '" + innerPath + "':", e);
+		} catch (JDOMParseException e) {
+			log.error(getName() + ": an error has occured while parsing file '" + innerPath + "':", e);
+		} finally {
+			try {
+				if (is != null)
+					is.close();
+			} catch (IOException e) {
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the elements that make up the top level of the document's contents;
+	 *         either the root itself, if it is a blueprint tag, or the root's children.
+	 */
+	private static List<Element> getTopLevelElements(Document doc) {
+		Element root = doc.getRootElement();
+		String rootName = root.getName();
+		if (rootName.equals("shipBlueprint") || rootName.equals("weaponBlueprint") ||
+				rootName.equals("droneBlueprint") || rootName.equals("augBlueprint") ||
+				rootName.equals("blueprintList") || rootName.equals("roomLayout")) {
+			return Collections.singletonList(root);
+		} else {
+			return root.getChildren();
+		}
+	}
+
 	private void clearAnimSheets() {
 		animSheetMap.clear();
 		animSheetMap = null;
@@ -626,57 +1162,33 @@ public class DatabaseEntry {
 	}
 
 	private void loadGlowSets() {
-		final Pattern glowPtrn = Pattern.compile("[0-9]\\.png");
-
-		Predicate<String> filter = new Predicate<String>() {
-			@Override
-			public boolean accept(String path) {
-				return path.contains("img/ship/interior/") &&
-						(glowPtrn.matcher(path).find() || path.endsWith("_glow.png"));
-			}
-		};
-
-		TreeSet<String> eligiblePaths = new TreeSet<String>();
-		for (String path : list()) {
-			if (filter.accept(path))
-				eligiblePaths.add(path);
-		}
+		final String interior = "img/ship/interior/";
+		PathIndex index = getPathIndex();
 
-		for (String s1 : eligiblePaths) {
+		for (String s1 : index.list(interior, GLOW_PTRN)) {
 			if (s1.endsWith("_glow.png")) {
 				String namespace = s1.replaceAll("_glow.png", "");
-				namespace = namespace.replace("img/ship/interior/", "");
+				namespace = namespace.replace(interior, "");
 				GlowSet set = new GlowSet(namespace);
 				set.setImage(Glows.CLOAK, "db:" + s1);
-				glowSets.add(set);
+				store(set);
 			} else if (s1.endsWith("1.png")) {
 				String namespace = s1.replaceAll("[0-9]\\.png", "");
-				String s2 = find(eligiblePaths, namespace + "2.png");
-				String s3 = find(eligiblePaths, namespace + "3.png");
+				String s2 = namespace + "2.png";
+				String s3 = namespace + "3.png";
 
-				if (s1 != null && s2 != null && s3 != null) {
-					namespace = namespace.replace("img/ship/interior/", "");
+				if (index.contains(s2) && index.contains(s3)) {
+					namespace = namespace.replace(interior, "");
 					GlowSet set = new GlowSet(namespace);
 					set.setImage(Glows.BLUE, "db:" + s1);
 					set.setImage(Glows.GREEN, "db:" + s2);
 					set.setImage(Glows.YELLOW, "db:" + s3);
-					glowSets.add(set);
+					store(set);
 				}
 			}
 		}
 	}
 
-	private static String find(TreeSet<String> list, String name) {
-		for (String s : list) {
-			if (s.equals(name))
-				return s;
-			// Break if the current string is greater than the sought one
-			else if (s.compareTo(name) > 0)
-				break;
-		}
-		return null;
-	}
-
 	@Override
 	public int hashCode() {
 		return file.hashCode();
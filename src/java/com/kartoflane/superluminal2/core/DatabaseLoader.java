@@ -0,0 +1,308 @@
+package com.kartoflane.superluminal2.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Document;
+
+/**
+ * Loads database entries, decoding and parsing their XML files in parallel.<br>
+ * <br>
+ * Loading is done in two phases:
+ *
+ * <pre>
+ *   - parse: every data file of every entry is decoded and parsed on a pool of worker threads
+ *   - apply: the parsed documents are turned into game objects one entry at a time, in the
+ *            order the entries were given, on the calling thread
+ * </pre>
+ *
+ * The apply phase remains sequential, since entries reference the contents of entries
+ * loaded before them (weapons look up animations, lists look up blueprints), so the
+ * result is the same as loading the entries one by one with {@link DatabaseEntry#load()}.<br>
+ * <br>
+ * If a snapshot directory is set, entries with an up-to-date {@link DatabaseSnapshot} are restored
+ * from it instead of being parsed, and entries that had to be parsed get their snapshot saved.<br>
+ * <br>
+ * In lazy mode, only ship metadata of parsed entries is loaded during the apply phase. The rest
+ * of their contents is loaded by {@link Database#loadContents()}, on first access.
+ *
+ * @author kartoFlane
+ *
+ */
+public class DatabaseLoader {
+
+	private static final Logger log = LogManager.getLogger(DatabaseLoader.class);
+
+	private final int threadCount;
+	private File snapshotDir = null;
+	private boolean lazy = false;
+
+	private long parseTime = 0;
+	private long applyTime = 0;
+
+	/**
+	 * Creates a loader that uses one thread per available processor.
+	 */
+	public DatabaseLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads
+	 *            number of worker threads used to parse files. Must be at least 1.
+	 */
+	public DatabaseLoader(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Thread count must be at least 1.");
+		threadCount = threads;
+	}
+
+	/**
+	 * @param dir
+	 *            directory in which {@link DatabaseSnapshot}s are kept, or null to always parse entries' files
+	 */
+	public void setSnapshotDirectory(File dir) {
+		snapshotDir = dir;
+	}
+
+	public File getSnapshotDirectory() {
+		return snapshotDir;
+	}
+
+	/**
+	 * @param lazy
+	 *            if true, only ship metadata of entries that have to be parsed is loaded right away.
+	 *            Entries following such an entry are always parsed, since restoring them from their
+	 *            snapshots requires the contents of the entries preceding them.
+	 * 
+	 * @see Database#loadContents()
+	 * @see Database#warmUp(long)
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * @see #load(List)
+	 */
+	public void load(DatabaseEntry... entries) {
+		load(Arrays.asList(entries));
+	}
+
+	/**
+	 * Loads the entries' contents. The entries should already have been added to the {@link Database}.
+	 *
+	 * @param entries
+	 *            the entries to load, in the order of their precedence (last one takes precedence)
+	 */
+	public void load(List<DatabaseEntry> entries) {
+		if (entries == null)
+			throw new IllegalArgumentException("Entry list must not be null.");
+
+		Database db = Database.getInstance();
+		// Entries reference the contents of those preceding them, so these have to be loaded
+		if (db != null)
+			db.loadContents();
+		// Deferred contents are loaded through the database, so there has to be one
+		boolean defer = lazy && db != null;
+		boolean deferred = false;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, new LoaderThreadFactory());
+		try {
+			// Snapshot lookup
+			long start = System.nanoTime();
+			DatabaseSnapshot[] snapshots = new DatabaseSnapshot[entries.size()];
+			boolean[] restorable = new boolean[entries.size()];
+			if (snapshotDir != null) {
+				boolean parsing = false;
+				for (int i = 0; i < entries.size(); i++) {
+					snapshots[i] = createSnapshot(entries.get(i));
+					restorable[i] = !parsing && snapshots[i] != null && snapshots[i].isValid();
+					if (defer && !restorable[i])
+						parsing = true;
+				}
+				log.debug(String.format("Checked database snapshots in %d ms.", (System.nanoTime() - start) / 1000000));
+			}
+
+			// Parse phase
+			start = System.nanoTime();
+			int fileCount = 0;
+			ArrayList<Map<String, Future<Document>>> pending = new ArrayList<Map<String, Future<Document>>>(entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				final DatabaseEntry de = entries.get(i);
+				Map<String, Future<Document>> futures = new LinkedHashMap<String, Future<Document>>();
+				pending.add(futures);
+				if (restorable[i])
+					continue;
+
+				for (final String innerPath : de.getDataFiles()) {
+					if (!de.contains(innerPath))
+						continue;
+
+					futures.put(innerPath, executor.submit(new Callable<Document>() {
+						public Document call() {
+							return de.loadDocument(innerPath);
+						}
+					}));
+					fileCount++;
+				}
+			}
+
+			ArrayList<Map<String, Document>> parsed = new ArrayList<Map<String, Document>>(entries.size());
+			for (int i = 0; i < entries.size(); i++)
+				parsed.add(collect(entries.get(i), pending.get(i)));
+			pending.clear();
+
+			parseTime = System.nanoTime() - start;
+			log.debug(String.format("Parsed %d files from %d database entries in %d ms, using %d threads.",
+					fileCount, entries.size(), parseTime / 1000000, threadCount));
+
+			// Apply phase
+			start = System.nanoTime();
+			for (int i = 0; i < entries.size(); i++) {
+				long entryStart = System.nanoTime();
+				DatabaseEntry de = entries.get(i);
+
+				boolean restored = false;
+				if (restorable[i]) {
+					try {
+						snapshots[i].restore(de);
+						restored = true;
+					} catch (IOException e) {
+						log.warn(String.format("%s: database snapshot could not be restored, loading files instead: %s", de.getName(), e.getMessage()));
+						snapshots[i].invalidate();
+					}
+				}
+
+				if (!restored && !restorable[i] && defer) {
+					de.loadLazily(parsed.get(i), snapshots[i]);
+					deferred = true;
+				} else if (!restored) {
+					if (restorable[i])
+						de.load();
+					else
+						de.load(parsed.get(i));
+
+					if (snapshots[i] != null) {
+						try {
+							snapshots[i].save(de);
+						} catch (IOException e) {
+							log.warn(String.format("%s: database snapshot could not be saved: %s", de.getName(), e.getMessage()));
+						}
+					}
+				}
+				parsed.set(i, null); // GC hint.
+				if (db != null && !de.hasPendingContents())
+					db.invalidateAnimations(de);
+
+				log.trace(String.format("%s was %s in %d ms.", de.getName(), restored ? "restored" : "applied",
+						(System.nanoTime() - entryStart) / 1000000));
+			}
+
+			if (deferred)
+				db.setContentsPending();
+
+			for (DatabaseEntry de : entries) {
+				log.trace(String.format("%s: %d path lookups ruled out by the path filter, %d looked up in the archive.",
+						de.getName(), de.getFilterHitCount(), de.getFilterMissCount()));
+			}
+
+			applyTime = System.nanoTime() - start;
+			log.debug(String.format("Applied %d database entries in %d ms.", entries.size(), applyTime / 1000000));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return snapshot of the entry, keyed against the entries preceding it in the database,
+	 *         or null if the key could not be computed
+	 */
+	private DatabaseSnapshot createSnapshot(DatabaseEntry de) {
+		ArrayList<DatabaseEntry> predecessors = new ArrayList<DatabaseEntry>();
+		Database db = Database.getInstance();
+		if (db != null) {
+			for (DatabaseEntry pre : db.getDatabaseEntries()) {
+				if (pre == de)
+					break;
+				predecessors.add(pre);
+			}
+		}
+
+		try {
+			return new DatabaseSnapshot(snapshotDir, de, predecessors);
+		} catch (IOException e) {
+			log.warn(String.format("%s: could not compute the database snapshot key: %s", de.getName(), e.getMessage()));
+			return null;
+		}
+	}
+
+	/**
+	 * Waits for the entry's files to finish parsing.
+	 *
+	 * @return map of inner paths to documents that were parsed successfully
+	 */
+	private Map<String, Document> collect(DatabaseEntry de, Map<String, Future<Document>> futures) {
+		HashMap<String, Document> result = new HashMap<String, Document>();
+		for (Map.Entry<String, Future<Document>> entry : futures.entrySet()) {
+			try {
+				Document doc = entry.getValue().get();
+				if (doc != null)
+					result.put(entry.getKey(), doc);
+			} catch (ExecutionException e) {
+				log.error(String.format("%s: an error has occured while loading file '%s':", de.getName(), entry.getKey()), e.getCause());
+			} catch (InterruptedException e) {
+				log.warn(String.format("%s: interrupted while waiting for file '%s' to load.", de.getName(), entry.getKey()));
+				Thread.currentThread().interrupt();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return duration of the last parse phase, in nanoseconds
+	 */
+	public long getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * @return duration of the last apply phase, in nanoseconds
+	 */
+	public long getApplyTime() {
+		return applyTime;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	private static class LoaderThreadFactory implements ThreadFactory {
+		private int count = 0;
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "DatabaseLoader-" + (++count));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,470 @@
+package com.kartoflane.superluminal2.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Element;
+
+import com.kartoflane.superluminal2.Superluminal;
+import com.kartoflane.superluminal2.components.enums.Directions;
+import com.kartoflane.superluminal2.components.enums.DroneStats;
+import com.kartoflane.superluminal2.components.enums.DroneTypes;
+import com.kartoflane.superluminal2.components.enums.WeaponStats;
+import com.kartoflane.superluminal2.components.enums.WeaponTypes;
+import com.kartoflane.superluminal2.ftl.AnimationObject;
+import com.kartoflane.superluminal2.ftl.AugmentObject;
+import com.kartoflane.superluminal2.ftl.BlueprintList;
+import com.kartoflane.superluminal2.ftl.DroneList;
+import com.kartoflane.superluminal2.ftl.DroneObject;
+import com.kartoflane.superluminal2.ftl.GlowObject;
+import com.kartoflane.superluminal2.ftl.GlowSet;
+import com.kartoflane.superluminal2.ftl.GlowSet.Glows;
+import com.kartoflane.superluminal2.ftl.ShipMetadata;
+import com.kartoflane.superluminal2.ftl.WeaponList;
+import com.kartoflane.superluminal2.ftl.WeaponObject;
+
+/**
+ * A binary snapshot of a database entry's loaded contents, saved to disk so that the
+ * next launch can restore the entry without decoding and parsing its XML files.<br>
+ * <br>
+ * Each snapshot is keyed by the state of the files backing its entry (see {@link DatabaseEntry#getSourceKey()}),
+ * as well as the keys of all entries preceding it in the database, since the entry's contents
+ * are resolved against them (eg. weapon lists). Snapshots with a mismatched key are ignored.<br>
+ * <br>
+ * References to other objects (animations of weapons, members of blueprint lists, glow sets of glows)
+ * are stored by name, and resolved against the database when the snapshot is restored, the same
+ * way {@link DatabaseEntry#load()} resolves them.
+ *
+ * @author kartoFlane
+ *
+ */
+public class DatabaseSnapshot {
+
+	private static final Logger log = LogManager.getLogger(DatabaseSnapshot.class);
+
+	/** Bump this whenever the snapshot format, or the way entries are loaded, changes */
+	private static final int FORMAT_VERSION = 1;
+	private static final int MAGIC = 0x534C4442; // "SLDB"
+
+	private static final byte LIST_WEAPONS = 0;
+	private static final byte LIST_DRONES = 1;
+
+	private final File snapshotFile;
+	private final String key;
+
+	/**
+	 * @param snapshotDir
+	 *            directory in which snapshots are kept
+	 * @param de
+	 *            the entry this snapshot describes
+	 * @param predecessors
+	 *            entries that precede the entry in the database, in order
+	 * @throws IOException
+	 *             when the key of one of the entries could not be computed
+	 */
+	public DatabaseSnapshot(File snapshotDir, DatabaseEntry de, List<DatabaseEntry> predecessors) throws IOException {
+		snapshotFile = new File(snapshotDir, de.getName().replaceAll("[^\\w.-]", "_") + ".snapshot");
+
+		StringBuilder buf = new StringBuilder();
+		buf.append(Superluminal.APP_VERSION).append('\n');
+		for (DatabaseEntry pre : predecessors)
+			buf.append(pre.getSourceKey()).append('\n');
+		buf.append(de.getSourceKey());
+		key = digest(buf.toString());
+	}
+
+	public File getFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * @return true if the snapshot exists and matches the current state of the entry
+	 */
+	public boolean isValid() {
+		if (!snapshotFile.isFile())
+			return false;
+
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+			return readHeader(in);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Deletes the snapshot from disk.
+	 */
+	public void invalidate() {
+		if (snapshotFile.exists() && !snapshotFile.delete())
+			log.warn("Could not delete stale database snapshot: " + snapshotFile.getPath());
+	}
+
+	private boolean readHeader(ObjectInputStream in) throws IOException {
+		return in.readInt() == MAGIC && in.readInt() == FORMAT_VERSION && in.readUTF().equals(key);
+	}
+
+	/**
+	 * Stores the contents of the snapshot in the entry, in the same order as {@link DatabaseEntry#load()} would.<br>
+	 * The whole snapshot is read before anything is stored, so if this method throws, the entry is left untouched.
+	 *
+	 * @throws IOException
+	 *             when the snapshot is invalid or could not be read
+	 */
+	public void restore(DatabaseEntry de) throws IOException {
+		ArrayList<AnimationObject> anims = new ArrayList<AnimationObject>();
+		ArrayList<GlowSet> glowSets = new ArrayList<GlowSet>();
+		ArrayList<ShipMetadata> ships = new ArrayList<ShipMetadata>();
+		ArrayList<WeaponObject> weapons = new ArrayList<WeaponObject>();
+		ArrayList<String> weaponAnims = new ArrayList<String>();
+		ArrayList<DroneObject> drones = new ArrayList<DroneObject>();
+		ArrayList<AugmentObject> augments = new ArrayList<AugmentObject>();
+		ArrayList<BlueprintList<?>> lists = new ArrayList<BlueprintList<?>>();
+		ArrayList<String[]> listMembers = new ArrayList<String[]>();
+		ArrayList<GlowObject> glows = new ArrayList<GlowObject>();
+		ArrayList<String> glowSetNames = new ArrayList<String>();
+
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 1 << 16));
+			if (!readHeader(in))
+				throw new IOException("Snapshot does not match the database entry: " + snapshotFile.getPath());
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				AnimationObject anim = new AnimationObject(in.readUTF());
+				anim.setSheetPath(in.readUTF());
+				anim.setSheetSize(in.readInt(), in.readInt());
+				anim.setFrameSize(in.readInt(), in.readInt());
+				anim.setMountOffset(in.readInt(), in.readInt());
+				anims.add(anim);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				GlowSet set = new GlowSet(in.readUTF());
+				for (Glows id : Glows.values())
+					set.setImage(id, readNullableUTF(in));
+				glowSets.add(set);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String blueprint = in.readUTF();
+				ShipMetadata metadata = new ShipMetadata((Element) in.readObject(), blueprint);
+				metadata.setShipClass(in.readUTF());
+				metadata.setShipName(in.readUTF());
+				metadata.setShipDescription(in.readUTF());
+				metadata.setShipImageNamespace(in.readUTF());
+				ships.add(metadata);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				WeaponObject weapon = new WeaponObject(in.readUTF());
+				String type = readNullableUTF(in);
+				weapon.setType(type == null ? null : WeaponTypes.valueOf(type));
+				weapon.setTitle(in.readUTF());
+				weapon.setShortName(in.readUTF());
+				weapon.setDescription(in.readUTF());
+				weaponAnims.add(in.readUTF());
+				for (WeaponStats stat : WeaponStats.values())
+					weapon.setStat(stat, in.readFloat());
+				weapons.add(weapon);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				DroneObject drone = new DroneObject(in.readUTF());
+				String type = readNullableUTF(in);
+				drone.setType(type == null ? null : DroneTypes.valueOf(type));
+				drone.setTitle(in.readUTF());
+				drone.setShortName(in.readUTF());
+				drone.setDescription(in.readUTF());
+				for (DroneStats stat : DroneStats.values())
+					drone.setStat(stat, in.readFloat());
+				drones.add(drone);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				AugmentObject augment = new AugmentObject(in.readUTF());
+				augment.setTitle(in.readUTF());
+				augment.setDescription(in.readUTF());
+				augments.add(augment);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				byte listType = in.readByte();
+				String name = in.readUTF();
+				String[] members = new String[in.readInt()];
+				for (int j = 0; j < members.length; j++)
+					members[j] = in.readUTF();
+				lists.add(listType == LIST_WEAPONS ? new WeaponList(name) : new DroneList(name));
+				listMembers.add(members);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				GlowObject glow = new GlowObject(in.readUTF());
+				glowSetNames.add(readNullableUTF(in));
+				glow.setX(in.readInt());
+				glow.setY(in.readInt());
+				glow.setDirection(Directions.valueOf(in.readUTF()));
+				glows.add(glow);
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Snapshot is corrupt: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Snapshot is corrupt: " + e.getMessage());
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+			}
+		}
+
+		// Store the objects, resolving references the same way load() does
+		Database db = Database.getInstance();
+
+		for (AnimationObject anim : anims)
+			de.store(anim);
+		for (GlowSet set : glowSets)
+			de.store(set);
+		for (ShipMetadata metadata : ships)
+			de.store(metadata);
+
+		for (int i = 0; i < weapons.size(); i++) {
+			WeaponObject weapon = weapons.get(i);
+			String animName = weaponAnims.get(i);
+			if (db.getAnimation(animName) == null) {
+				log.warn(String.format("%s: could not load weaponBlueprint: %s: could not find animation '%s'.",
+						de.getName(), weapon.getBlueprintName(), animName));
+			} else {
+				weapon.setAnimName(animName);
+				de.store(weapon);
+			}
+		}
+		for (DroneObject drone : drones)
+			de.store(drone);
+		for (AugmentObject augment : augments)
+			de.store(augment);
+
+		for (int i = 0; i < lists.size(); i++) {
+			BlueprintList<?> list = lists.get(i);
+			if (list instanceof WeaponList) {
+				WeaponList weaponList = (WeaponList) list;
+				for (String name : listMembers.get(i)) {
+					WeaponObject weapon = db.getWeapon(name);
+					if (weapon != null)
+						weaponList.add(weapon);
+				}
+			} else {
+				DroneList droneList = (DroneList) list;
+				for (String name : listMembers.get(i)) {
+					DroneObject drone = db.getDrone(name);
+					if (drone != null)
+						droneList.add(drone);
+				}
+			}
+			de.store(list);
+		}
+
+		for (int i = 0; i < glows.size(); i++) {
+			GlowObject glow = glows.get(i);
+			String setName = glowSetNames.get(i);
+			if (setName != null) {
+				GlowSet set = db.getGlowSet(setName);
+				if (set == null) {
+					log.warn(de.getName() + ": could not load glow object: glow set could not be found: " + setName);
+					continue;
+				}
+				glow.setGlowSet(set);
+			}
+			de.store(glow);
+		}
+	}
+
+	/**
+	 * Writes the contents of the entry to the snapshot file, replacing the previous snapshot.
+	 *
+	 * @throws IOException
+	 *             when the snapshot could not be written
+	 */
+	public void save(DatabaseEntry de) throws IOException {
+		File tempFile = new File(snapshotFile.getPath() + ".tmp");
+		snapshotFile.getAbsoluteFile().getParentFile().mkdirs();
+
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(key);
+
+			AnimationObject[] anims = de.getAnimations();
+			int count = 0;
+			for (AnimationObject anim : anims) {
+				if (anim != Database.DEFAULT_ANIM_OBJ)
+					count++;
+			}
+			out.writeInt(count);
+			for (AnimationObject anim : anims) {
+				if (anim == Database.DEFAULT_ANIM_OBJ)
+					continue;
+				out.writeUTF(anim.getAnimName());
+				out.writeUTF(anim.getSheetPath());
+				out.writeInt(anim.getSheetSize().x);
+				out.writeInt(anim.getSheetSize().y);
+				out.writeInt(anim.getFrameSize().x);
+				out.writeInt(anim.getFrameSize().y);
+				out.writeInt(anim.getMountOffset().x);
+				out.writeInt(anim.getMountOffset().y);
+			}
+
+			GlowSet[] glowSets = de.getGlowSets();
+			out.writeInt(glowSets.length);
+			for (GlowSet set : glowSets) {
+				out.writeUTF(set.getIdentifier());
+				for (Glows id : Glows.values())
+					writeNullableUTF(out, set.getImage(id));
+			}
+
+			ShipMetadata[] ships = de.getShipMetadata();
+			out.writeInt(ships.length);
+			for (ShipMetadata metadata : ships) {
+				out.writeUTF(metadata.getBlueprintName());
+				out.writeObject(metadata.getElement());
+				out.writeUTF(metadata.getShipClass());
+				out.writeUTF(metadata.getShipName());
+				out.writeUTF(metadata.getShipDescription());
+				out.writeUTF(metadata.getShipImageNamespace());
+			}
+
+			WeaponObject[] weapons = de.getWeapons();
+			out.writeInt(weapons.length);
+			for (WeaponObject weapon : weapons) {
+				out.writeUTF(weapon.getBlueprintName());
+				writeNullableUTF(out, weapon.getType() == null ? null : weapon.getType().name());
+				out.writeUTF(weapon.getTitle());
+				out.writeUTF(weapon.getShortName());
+				out.writeUTF(weapon.getDescription());
+				out.writeUTF(weapon.getAnimName());
+				for (WeaponStats stat : WeaponStats.values())
+					out.writeFloat(weapon.getStat(stat));
+			}
+
+			DroneObject[] drones = de.getDrones();
+			out.writeInt(drones.length);
+			for (DroneObject drone : drones) {
+				out.writeUTF(drone.getBlueprintName());
+				writeNullableUTF(out, drone.getType() == null ? null : drone.getType().name());
+				out.writeUTF(drone.getTitle());
+				out.writeUTF(drone.getShortName());
+				out.writeUTF(drone.getDescription());
+				for (DroneStats stat : DroneStats.values())
+					out.writeFloat(drone.getStat(stat));
+			}
+
+			AugmentObject[] augments = de.getAugments();
+			out.writeInt(augments.length);
+			for (AugmentObject augment : augments) {
+				out.writeUTF(augment.getBlueprintName());
+				out.writeUTF(augment.getTitle());
+				out.writeUTF(augment.getDescription());
+			}
+
+			WeaponList[] weaponLists = de.getWeaponLists();
+			DroneList[] droneLists = de.getDroneLists();
+			out.writeInt(weaponLists.length + droneLists.length);
+			for (WeaponList list : weaponLists)
+				writeList(out, LIST_WEAPONS, list);
+			for (DroneList list : droneLists)
+				writeList(out, LIST_DRONES, list);
+
+			GlowObject[] glows = de.getGlows();
+			out.writeInt(glows.length);
+			for (GlowObject glow : glows) {
+				out.writeUTF(glow.getIdentifier());
+				GlowSet set = glow.getGlowSet();
+				writeNullableUTF(out, set == Database.DEFAULT_GLOW_SET ? null : set.getIdentifier());
+				out.writeInt(glow.getX());
+				out.writeInt(glow.getY());
+				out.writeUTF(glow.getDirection().name());
+			}
+		} catch (IOException e) {
+			if (out != null)
+				out.close();
+			out = null;
+			tempFile.delete();
+			throw e;
+		} finally {
+			if (out != null)
+				out.close();
+		}
+
+		// Replace the old snapshot only once the new one has been written completely
+		if (snapshotFile.exists() && !snapshotFile.delete())
+			throw new IOException("Could not replace database snapshot: " + snapshotFile.getPath());
+		if (!tempFile.renameTo(snapshotFile))
+			throw new IOException("Could not rename database snapshot: " + tempFile.getPath());
+	}
+
+	private static void writeList(ObjectOutputStream out, byte listType, BlueprintList<?> list) throws IOException {
+		out.writeByte(listType);
+		out.writeUTF(list.getBlueprintName());
+		out.writeInt(list.size());
+		for (Object o : list) {
+			if (o instanceof WeaponObject)
+				out.writeUTF(((WeaponObject) o).getBlueprintName());
+			else
+				out.writeUTF(((DroneObject) o).getBlueprintName());
+		}
+	}
+
+	private static void writeNullableUTF(ObjectOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readNullableUTF(ObjectInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static String digest(String s) throws UnsupportedEncodingException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] hashBytes = md.digest(s.getBytes("UTF-8"));
+			StringBuilder buf = new StringBuilder();
+			for (byte b : hashBytes)
+				buf.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+			return buf.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Fall back to the full key, which is long, but still usable
+			return s;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.kartoflane.superluminal2.core;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.jdom2.Document;
+import org.jdom2.input.JDOMParseException;
+
+import com.kartoflane.superluminal2.utils.IOUtils;
+
+/**
+ * Keeps documents parsed from the files of database entries, so that files which are read
+ * repeatedly (eg. a ship's layout, each time the ship is opened) only have to be parsed once.<br>
+ * <br>
+ * Documents are keyed by their entry and inner path, and remember the entry's file generation
+ * (see {@link DatabaseEntry#getFileGeneration()}) from when they were parsed; a document whose
+ * entry's files have changed since then is parsed again. The cache holds at most its capacity of
+ * documents (least recently used are evicted first), and only softly, so they can be reclaimed
+ * when memory runs low.<br>
+ * <br>
+ * Documents are shared between everyone who asks for them, and must not be modified.
+ * Use {@link Document#clone()} to get a copy that can be.
+ *
+ * @author kartoFlane
+ *
+ */
+public class DocumentCache {
+
+	private final int capacity;
+
+	/** Cached documents by entry and inner path, in the order in which they were last used */
+	private final LinkedHashMap<Key, CachedDocument> documents = new LinkedHashMap<Key, CachedDocument>(16, 0.75f, true);
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param capacity
+	 *            most documents kept at once. Must be at least 1.
+	 */
+	public DocumentCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1.");
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param de
+	 *            the entry to read the file from
+	 * @param innerPath
+	 *            the inner path of the XML file
+	 * @return the parsed document, shared with other callers
+	 *
+	 * @throws FileNotFoundException
+	 *             when the inner path was not found in the entry
+	 * @throws JDOMParseException
+	 *             when the file could not be parsed
+	 * @throws IOException
+	 *             when an IO error occurs
+	 */
+	public Document getDocument(DatabaseEntry de, String innerPath) throws FileNotFoundException, IOException, JDOMParseException {
+		if (de == null)
+			throw new IllegalArgumentException("Entry must not be null.");
+		if (innerPath == null)
+			throw new IllegalArgumentException("Inner path must not be null.");
+
+		Key key = new Key(de, innerPath);
+		int generation = de.getFileGeneration();
+		synchronized (this) {
+			CachedDocument cached = documents.get(key);
+			Document doc = cached == null ? null : cached.document.get();
+			if (doc != null && cached.generation == generation) {
+				hits++;
+				return doc;
+			}
+			misses++;
+		}
+
+		// Parse outside of the lock, so that other files can be looked up in the meantime
+		Document doc = null;
+		InputStream is = de.getInputStream(innerPath);
+		try {
+			IOUtils.DecodeResult dr = IOUtils.decodeText(is, innerPath, de.getContentSize(innerPath));
+			doc = IOUtils.parseXML(dr.text);
+		} finally {
+			is.close();
+		}
+
+		synchronized (this) {
+			documents.put(key, new CachedDocument(doc, generation));
+			if (documents.size() > capacity) {
+				Iterator<CachedDocument> it = documents.values().iterator();
+				it.next();
+				it.remove();
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * Discards all documents parsed from the entry's files.
+	 */
+	public synchronized void invalidate(DatabaseEntry de) {
+		Iterator<Key> it = documents.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().entry == de)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Discards all documents.
+	 */
+	public synchronized void clear() {
+		documents.clear();
+	}
+
+	/**
+	 * @return number of documents currently held, including ones that may have been reclaimed
+	 */
+	public synchronized int size() {
+		return documents.size();
+	}
+
+	/**
+	 * @return number of lookups that found their document already parsed
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return number of lookups that had to parse their document
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	private static class Key {
+		private final DatabaseEntry entry;
+		private final String innerPath;
+
+		private Key(DatabaseEntry entry, String innerPath) {
+			this.entry = entry;
+			this.innerPath = innerPath;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(entry) * 31 + innerPath.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key other = (Key) o;
+				return entry == other.entry && innerPath.equals(other.innerPath);
+			}
+			return false;
+		}
+	}
+
+	private static class CachedDocument {
+		private final SoftReference<Document> document;
+		private final int generation;
+
+		private CachedDocument(Document document, int generation) {
+			this.document = new SoftReference<Document>(document);
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.kartoflane.superluminal2.core;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.vhati.ftldat.FTLDat.FolderPack;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Watches the files of a {@link FolderPack} for changes, by periodically comparing their sizes
+ * and modification times against the ones recorded during the previous scan.<br>
+ * <br>
+ * Files are often written in several steps (or several files at once), so changes are only reported
+ * once a scan finds no further ones. All changes found until then are reported together, on the
+ * watcher's own daemon thread.
+ *
+ * @author kartoFlane
+ *
+ */
+public class FolderWatcher {
+
+	private static final Logger log = LogManager.getLogger(FolderWatcher.class);
+
+	public interface ChangeListener {
+		/**
+		 * @param innerPaths
+		 *            inner paths of the files that were added, removed or modified, in lexicographical order
+		 */
+		public void filesChanged(Set<String> innerPaths);
+	}
+
+	private final FolderPack folder;
+	private final long interval;
+	private final ChangeListener listener;
+
+	private Thread thread = null;
+	private volatile boolean running = false;
+
+	/**
+	 * @param folder
+	 *            the folder to watch
+	 * @param interval
+	 *            time between scans, in milliseconds
+	 * @param listener
+	 *            listener notified of the changes
+	 */
+	public FolderWatcher(FolderPack folder, long interval, ChangeListener listener) {
+		if (folder == null)
+			throw new IllegalArgumentException("Folder must not be null.");
+		if (interval <= 0)
+			throw new IllegalArgumentException("Interval must be positive.");
+		if (listener == null)
+			throw new IllegalArgumentException("Listener must not be null.");
+
+		this.folder = folder;
+		this.interval = interval;
+		this.listener = listener;
+	}
+
+	/**
+	 * Records the current state of the folder, and starts watching it for changes.
+	 * Does nothing if the watcher is already running.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+
+		final Map<String, FileStamp> initial = scan();
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				watch(initial);
+			}
+		}, "FolderWatcher-" + folder.getName());
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the folder. Changes that were found but not yet reported are discarded.
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+
+		running = false;
+		thread.interrupt();
+		thread = null;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void watch(Map<String, FileStamp> previous) {
+		TreeSet<String> pending = new TreeSet<String>();
+		try {
+			while (running) {
+				Thread.sleep(interval);
+
+				Map<String, FileStamp> current;
+				try {
+					current = scan();
+				} catch (RuntimeException e) {
+					// Directories can vanish while they're being listed, try again next time
+					log.trace(String.format("%s: could not scan the folder: %s", folder.getName(), e));
+					continue;
+				}
+
+				boolean settled = true;
+				for (Map.Entry<String, FileStamp> entry : current.entrySet()) {
+					if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+						pending.add(entry.getKey());
+						settled = false;
+					}
+				}
+				for (String innerPath : previous.keySet()) {
+					if (!current.containsKey(innerPath)) {
+						pending.add(innerPath);
+						settled = false;
+					}
+				}
+				previous = current;
+
+				// Wait for the folder to settle before reporting
+				if (settled && !pending.isEmpty() && running) {
+					try {
+						listener.filesChanged(pending);
+					} catch (Throwable e) {
+						log.error(String.format("%s: an error has occured while handling changed files:", folder.getName()), e);
+					}
+					pending = new TreeSet<String>();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	private Map<String, FileStamp> scan() {
+		HashMap<String, FileStamp> result = new HashMap<String, FileStamp>();
+		for (String innerPath : folder.list()) {
+			File f = folder.getFile(innerPath);
+			result.put(innerPath, new FileStamp(f.length(), f.lastModified()));
+		}
+		return result;
+	}
+
+	private static class FileStamp {
+		private final long length;
+		private final long lastModified;
+
+		private FileStamp(long length, long lastModified) {
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (length ^ lastModified);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof FileStamp) {
+				FileStamp other = (FileStamp) o;
+				return length == other.length && lastModified == other.lastModified;
+			}
+			return false;
+		}
+	}
+}
@@ -9,9 +9,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -42,6 +40,8 @@ public class Manager {
 
 	/** In 'path/file.ext/inner' matches 'path/file.ext' */
 	private static final Pattern FILE_PTRN = Pattern.compile(".+\\.[^/]+(?=/)");
+	/** Archives read through the zip: protocol, kept open between reads */
+	private static final ZipFilePool ZIP_POOL = new ZipFilePool(8, 30000);
 
 	/**
 	 * SWT uses the default ampersand char (\u0026) for some platform-specific stuff, resulting
@@ -63,6 +63,8 @@ public class Manager {
 	public static Point windowSize = null;
 	public static String resourcePath = "";
 	public static boolean allowRoomOverlap = false;
+	public static boolean lazyDatabaseLoading = true;
+	public static boolean memoryMapResources = false;
 	public static boolean shownSlotWarning = false;
 
 	// Runtime variables
@@ -234,16 +236,8 @@ public class Manager {
 					String zipPath = m.group();
 					String innerPath = loadPath.replace(zipPath + "/", "");
 					try {
-						ZipFile zf = new ZipFile(zipPath);
-						ZipEntry ze = zf.getEntry(innerPath);
-						if (ze == null)
-							throw new IllegalArgumentException(String.format("Inner path '%s' was not found in archive '%s'", innerPath, zipPath));
-
-						// Closing the ZipFile also closes all streams that it opened...
-						// Copy the stream so that it's possible to access the image
-						// without having to keep the archive open
-						result = IOUtils.cloneStream(zf.getInputStream(ze));
-						zf.close();
+						// The pool keeps the archive open until the stream is closed
+						result = ZIP_POOL.getInputStream(new File(zipPath), innerPath);
 					} catch (ZipException e) {
 						log.warn(String.format("File is not a zip archive: '%s'", zipPath));
 					}
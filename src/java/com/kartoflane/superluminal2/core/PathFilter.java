@@ -0,0 +1,78 @@
+package com.kartoflane.superluminal2.core;
+
+import java.util.Collection;
+
+/**
+ * A Bloom filter of inner paths.<br>
+ * <br>
+ * Answers whether a path is definitely absent from a set of paths, without consulting the archive
+ * the paths were listed from. Paths that were added are always reported as possibly present, while
+ * absent paths are occasionally (at a rate of around 1%) reported as possibly present, too.
+ *
+ * @author kartoFlane
+ *
+ */
+public class PathFilter {
+
+	private static final int BITS_PER_PATH = 10;
+	private static final int HASH_COUNT = 4;
+
+	private final long[] bits;
+	private final int mask;
+
+	/**
+	 * @param paths
+	 *            the paths that the filter will report as possibly present
+	 */
+	public PathFilter(Collection<String> paths) {
+		if (paths == null)
+			throw new IllegalArgumentException("Paths must not be null.");
+
+		// Round the number of bits up to a power of two, so that it can be masked instead of divided
+		int bitCount = 64;
+		while (bitCount < paths.size() * BITS_PER_PATH && bitCount < (1 << 30))
+			bitCount <<= 1;
+
+		bits = new long[bitCount / 64];
+		mask = bitCount - 1;
+
+		for (String path : paths) {
+			int h1 = path.hashCode();
+			int h2 = secondaryHash(path);
+			for (int i = 0; i < HASH_COUNT; i++) {
+				int bit = (h1 + i * h2) & mask;
+				bits[bit >>> 6] |= 1L << bit;
+			}
+		}
+	}
+
+	/**
+	 * @return false if the path is definitely absent, true if it might be present
+	 */
+	public boolean mightContain(String path) {
+		if (path == null)
+			throw new IllegalArgumentException("Path must not be null.");
+
+		int h1 = path.hashCode();
+		int h2 = secondaryHash(path);
+		for (int i = 0; i < HASH_COUNT; i++) {
+			int bit = (h1 + i * h2) & mask;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * FNV-1a hash of the string's characters, independent of {@link String#hashCode()}.<br>
+	 * Forced to be odd, so that the probes made with it never all land on the same bit.
+	 */
+	private static int secondaryHash(String s) {
+		int h = 0x811C9DC5;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+		return h | 1;
+	}
+}
@@ -0,0 +1,133 @@
+package com.kartoflane.superluminal2.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable, sorted index of inner paths.<br>
+ * <br>
+ * Paths are kept in a sorted array, so that all paths sharing a prefix (eg. everything under
+ * <tt>img/ship/interior/</tt>) form a contiguous range that can be found with a binary search,
+ * instead of scanning the whole listing of an archive.
+ *
+ * @author kartoFlane
+ *
+ */
+public class PathIndex {
+
+	public static final PathIndex EMPTY = new PathIndex(new ArrayList<String>(0));
+
+	private final String[] paths;
+
+	/**
+	 * @param paths
+	 *            inner paths to index. Duplicates are only indexed once.
+	 */
+	public PathIndex(Collection<String> paths) {
+		if (paths == null)
+			throw new IllegalArgumentException("Paths must not be null.");
+
+		String[] sorted = paths.toArray(new String[paths.size()]);
+		Arrays.sort(sorted);
+
+		// Remove duplicates
+		int count = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (count == 0 || !sorted[i].equals(sorted[count - 1]))
+				sorted[count++] = sorted[i];
+		}
+		this.paths = count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+	}
+
+	/**
+	 * @return number of indexed paths
+	 */
+	public int size() {
+		return paths.length;
+	}
+
+	/**
+	 * @return true if the path is in the index, false otherwise
+	 */
+	public boolean contains(String path) {
+		if (path == null)
+			throw new IllegalArgumentException("Path must not be null.");
+		return Arrays.binarySearch(paths, path) >= 0;
+	}
+
+	/**
+	 * @return all indexed paths, in lexicographical order. The list is unmodifiable.
+	 */
+	public List<String> list() {
+		return Collections.unmodifiableList(Arrays.asList(paths));
+	}
+
+	/**
+	 * @param prefix
+	 *            the prefix, eg. <tt>img/ship/interior/</tt>
+	 * @return all indexed paths starting with the prefix, in lexicographical order.
+	 *         The list is unmodifiable.
+	 */
+	public List<String> list(String prefix) {
+		if (prefix == null)
+			throw new IllegalArgumentException("Prefix must not be null.");
+
+		int from = lowerBound(prefix);
+		int to = from;
+		while (to < paths.length && paths[to].startsWith(prefix))
+			to++;
+		return Collections.unmodifiableList(Arrays.asList(paths).subList(from, to));
+	}
+
+	/**
+	 * @param prefix
+	 *            the prefix, eg. <tt>img/ship/interior/</tt>
+	 * @param suffix
+	 *            the suffix, eg. <tt>_glow.png</tt>
+	 * @return all indexed paths starting with the prefix and ending with the suffix,
+	 *         in lexicographical order
+	 */
+	public List<String> list(String prefix, String suffix) {
+		if (suffix == null)
+			throw new IllegalArgumentException("Suffix must not be null.");
+
+		ArrayList<String> result = new ArrayList<String>();
+		for (String path : list(prefix)) {
+			if (path.endsWith(suffix))
+				result.add(path);
+		}
+		return result;
+	}
+
+	/**
+	 * @param prefix
+	 *            the prefix, eg. <tt>img/ship/interior/</tt>
+	 * @param pattern
+	 *            pattern that has to be found in the part of the path following the prefix
+	 * @return all indexed paths starting with the prefix and matching the pattern,
+	 *         in lexicographical order
+	 */
+	public List<String> list(String prefix, Pattern pattern) {
+		if (pattern == null)
+			throw new IllegalArgumentException("Pattern must not be null.");
+
+		ArrayList<String> result = new ArrayList<String>();
+		for (String path : list(prefix)) {
+			if (pattern.matcher(path).region(prefix.length(), path.length()).find())
+				result.add(path);
+		}
+		return result;
+	}
+
+	/**
+	 * @return index of the first path that is not less than the key
+	 */
+	private int lowerBound(String key) {
+		int i = Arrays.binarySearch(paths, key);
+		return i >= 0 ? i : -(i + 1);
+	}
+}
@@ -22,6 +22,8 @@ public class SuperluminalConfig {
 	public static final String GEOMETRY = "geometry";
 	public static final String CHECK_UPDATES = "checkUpdatesOnStartup";
 	public static final String ALLOW_OVERLAP = "allowRoomOverlap";
+	public static final String LAZY_LOADING = "lazyDatabaseLoading";
+	public static final String MAP_RESOURCES = "memoryMapResources";
 
 	public static final String SLOT_WARNING = "shownSlotWarning";
 
@@ -38,6 +40,8 @@ public class SuperluminalConfig {
 		config.setProperty(SuperluminalConfig.GEOMETRY, "");
 		config.setProperty(SuperluminalConfig.CHECK_UPDATES, "true");
 		config.setProperty(SuperluminalConfig.ALLOW_OVERLAP, "false");
+		config.setProperty(SuperluminalConfig.LAZY_LOADING, "true");
+		config.setProperty(SuperluminalConfig.MAP_RESOURCES, "false");
 		config.setProperty(SuperluminalConfig.SLOT_WARNING, "false");
 	}
 
@@ -103,6 +107,8 @@ public class SuperluminalConfig {
 			configComments += " " + CLOSE_LOADER + " - If true, ship loader window will automatically close after a ship is loaded.\n";
 			configComments += " " + CHECK_UPDATES + " - If true, the program will automatically check for updates each time it is started.\n";
 			configComments += " " + ALLOW_OVERLAP + " - If true, room collision will be disabled, allowing rooms to be placed on top of each other.\n";
+			configComments += " " + LAZY_LOADING + " - If true, only ships are loaded on startup, and the rest of the game's data is loaded in the background.\n";
+			configComments += " " + MAP_RESOURCES + " - If true, resource.dat is memory-mapped, which speeds up reading images. Needs a lot of address space, so best left off on 32-bit Java.\n";
 			configComments += "\n";
 			configComments += " " + GEOMETRY + " - Last saved size of the main window.\n";
 			configComments += "\n";
@@ -0,0 +1,239 @@
+package com.kartoflane.superluminal2.core;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps zip archives open between reads, so that reading several files from the same archive
+ * does not require its central directory to be read each time.<br>
+ * <br>
+ * Archives are keyed by their canonical path. Each stream returned by {@link #getInputStream(File, String)}
+ * holds a reference to its archive until it is closed, so archives are never closed while being read.
+ * Archives that are not being read are closed once they have been idle for longer than the timeout,
+ * or when the pool holds more than its capacity of archives (least recently used first).
+ * Archives that were modified since they were opened are opened again.
+ *
+ * @author kartoFlane
+ *
+ */
+public class ZipFilePool {
+
+	private static final Logger log = LogManager.getLogger(ZipFilePool.class);
+
+	private final int capacity;
+	private final long idleTimeout;
+
+	/** Open archives by canonical path, in the order in which they were last used */
+	private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+	/** Closes idle archives, created when the first archive is opened */
+	private Timer sweeper = null;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param capacity
+	 *            most archives kept open while not being read. Must be at least 1.
+	 * @param idleTimeout
+	 *            time after which an archive that is not being read is closed, in milliseconds
+	 */
+	public ZipFilePool(int capacity, long idleTimeout) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1.");
+		if (idleTimeout <= 0)
+			throw new IllegalArgumentException("Idle timeout must be positive.");
+
+		this.capacity = capacity;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @param zip
+	 *            the zip archive
+	 * @param innerPath
+	 *            the inner path of the sought file
+	 * @return stream of the file's contents, read directly from the archive.
+	 *         The archive is kept open at least until the stream is closed.
+	 *
+	 * @throws IllegalArgumentException
+	 *             when the inner path was not found in the archive
+	 * @throws ZipException
+	 *             when the file is not a zip archive
+	 * @throws IOException
+	 *             when an IO error occurs
+	 */
+	public InputStream getInputStream(File zip, String innerPath) throws ZipException, IOException {
+		if (zip == null)
+			throw new IllegalArgumentException("Zip file must not be null.");
+		if (innerPath == null)
+			throw new IllegalArgumentException("Inner path must not be null.");
+
+		final Handle handle = acquire(zip);
+		try {
+			ZipEntry ze = handle.zip.getEntry(innerPath);
+			if (ze == null)
+				throw new IllegalArgumentException(String.format("Inner path '%s' was not found in archive '%s'", innerPath, zip.getPath()));
+
+			return new FilterInputStream(handle.zip.getInputStream(ze)) {
+				private boolean closed = false;
+
+				@Override
+				public void close() throws IOException {
+					if (closed)
+						return;
+					closed = true;
+					try {
+						super.close();
+					} finally {
+						release(handle);
+					}
+				}
+			};
+		} catch (IOException e) {
+			release(handle);
+			throw e;
+		} catch (RuntimeException e) {
+			release(handle);
+			throw e;
+		}
+	}
+
+	private synchronized Handle acquire(File zip) throws ZipException, IOException {
+		String key = zip.getCanonicalPath();
+		Handle handle = handles.get(key);
+		if (handle != null && (handle.length != zip.length() || handle.lastModified != zip.lastModified())) {
+			// The archive was replaced since it was opened
+			handles.remove(key);
+			handle.retired = true;
+			if (handle.refs == 0)
+				closeQuietly(handle);
+			handle = null;
+		}
+
+		if (handle == null) {
+			misses++;
+			handle = new Handle(key, zip);
+			handles.put(key, handle);
+			if (sweeper == null) {
+				sweeper = new Timer("ZipFilePool", true);
+				sweeper.schedule(new TimerTask() {
+					public void run() {
+						closeIdle();
+					}
+				}, idleTimeout, idleTimeout);
+			}
+		} else {
+			hits++;
+		}
+		handle.refs++;
+		return handle;
+	}
+
+	private synchronized void release(Handle handle) {
+		handle.refs--;
+		handle.lastUsed = System.currentTimeMillis();
+		if (handle.retired) {
+			if (handle.refs == 0)
+				closeQuietly(handle);
+			return;
+		}
+
+		// Evict the least recently used archives that aren't being read
+		int excess = handles.size() - capacity;
+		Iterator<Handle> it = handles.values().iterator();
+		while (excess > 0 && it.hasNext()) {
+			Handle h = it.next();
+			if (h.refs == 0) {
+				it.remove();
+				closeQuietly(h);
+				excess--;
+			}
+		}
+	}
+
+	/**
+	 * Closes archives that have not been read for longer than the idle timeout.
+	 */
+	public synchronized void closeIdle() {
+		long now = System.currentTimeMillis();
+		ArrayList<Handle> idle = new ArrayList<Handle>();
+		Iterator<Handle> it = handles.values().iterator();
+		while (it.hasNext()) {
+			Handle h = it.next();
+			if (h.refs == 0 && now - h.lastUsed >= idleTimeout) {
+				it.remove();
+				idle.add(h);
+			}
+		}
+
+		for (Handle h : idle)
+			closeQuietly(h);
+		if (!idle.isEmpty()) {
+			log.debug(String.format("Closed %d idle zip archives, %d remain open. Pool hit rate: %d of %d (%.1f%%).",
+					idle.size(), handles.size(), hits, hits + misses, getHitRate() * 100));
+		}
+	}
+
+	private void closeQuietly(Handle handle) {
+		try {
+			handle.zip.close();
+		} catch (IOException e) {
+			log.warn(String.format("Could not close zip archive '%s': %s", handle.key, e.getMessage()));
+		}
+	}
+
+	/**
+	 * @return number of reads that found their archive already open
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return number of reads that had to open their archive
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return fraction of reads that found their archive already open, or 0 if there were none
+	 */
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	private static class Handle {
+		private final String key;
+		private final ZipFile zip;
+		private final long length;
+		private final long lastModified;
+
+		/** Number of open streams reading from the archive */
+		private int refs = 0;
+		private long lastUsed = System.currentTimeMillis();
+		/** Set when the handle was removed from the pool while still being read */
+		private boolean retired = false;
+
+		private Handle(String key, File file) throws ZipException, IOException {
+			this.key = key;
+			// Stat the file first, so that a change made while it is being opened is caught next time
+			length = file.length();
+			lastModified = file.lastModified();
+			zip = new ZipFile(file);
+		}
+	}
+}
@@ -27,6 +27,8 @@ public class WeaponObject extends GameObject implements Comparable<WeaponObject>
 	private String animName = "";
 
 	private AnimationObject cachedAnimation = null;
+	/** Database's generation of animName at the time the animation was cached */
+	private int cachedGeneration = 0;
 	private HashMap<WeaponStats, Float> statMap = null;
 
 	/**
@@ -58,21 +60,33 @@ public class WeaponObject extends GameObject implements Comparable<WeaponObject>
 		if (animName == null)
 			throw new IllegalArgumentException(blueprintName + ": animation must not be null.");
 		this.animName = animName;
-		cacheAnimation();
+		cachedAnimation = null;
 	}
 
 	public String getAnimName() {
 		return animName;
 	}
 
-	public void cacheAnimation() {
-		AnimationObject anim = Database.getInstance().getAnimation(animName);
-		if (anim == null)
-			throw new IllegalArgumentException("AnimationObject not found for anim name " + animName);
-		cachedAnimation = anim;
-	}
-
+	/**
+	 * The animation is looked up in the database on first call, and then reused until
+	 * the database reports that the winning definition of the weapon's animName has changed.
+	 * 
+	 * @return the animation used by this weapon, or {@link Database#DEFAULT_ANIM_OBJ}
+	 *         if it could not be found
+	 * 
+	 * @see Database#getAnimationGeneration(String)
+	 */
 	public AnimationObject getAnimation() {
+		Database db = Database.getInstance();
+		if (db == null)
+			return cachedAnimation;
+
+		int generation = db.getAnimationGeneration(animName);
+		if (cachedAnimation == null || cachedGeneration != generation) {
+			AnimationObject anim = db.getAnimation(animName);
+			cachedAnimation = anim == null ? Database.DEFAULT_ANIM_OBJ : anim;
+			cachedGeneration = generation;
+		}
 		return cachedAnimation;
 	}
 
@@ -4,6 +4,7 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Label;
@@ -11,18 +12,32 @@ import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.ProgressBar;
 import org.eclipse.swt.widgets.Shell;
 
+import net.vhati.ftldat.FTLDat.RepackMonitor;
+
 import com.kartoflane.superluminal2.Superluminal;
 
-public class LoadingDialog {
+public class LoadingDialog implements RepackMonitor {
+
+	private static final int PROGRESS_MAXIMUM = 1000;
 
 	private static LoadingDialog instance = null;
 
 	private volatile boolean exit = false;
+	private volatile boolean cancelled = false;
 
 	private Shell shell = null;
 	private Display display = null;
+	private ProgressBar progressBar = null;
 
 	public LoadingDialog(Shell parentShell, String title, String message) {
+		this(parentShell, title, message, false);
+	}
+
+	/**
+	 * @param cancellable
+	 *            if true, the dialog has a Cancel button, which the task can check with {@link #isCancelled()}
+	 */
+	public LoadingDialog(Shell parentShell, String title, String message, boolean cancellable) {
 		if (instance != null)
 			throw new IllegalStateException("Previous instance has not been disposed!");
 		instance = this;
@@ -43,9 +58,25 @@ public class LoadingDialog {
 		gd_lblLoadingPleaseWait.widthHint = 250;
 		lblLoadingPleaseWait.setLayoutData(gd_lblLoadingPleaseWait);
 
-		ProgressBar progressBar = new ProgressBar(shell, SWT.SMOOTH | SWT.INDETERMINATE);
+		progressBar = new ProgressBar(shell, SWT.SMOOTH | SWT.INDETERMINATE);
 		progressBar.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
 
+		if (cancellable) {
+			final Button btnCancel = new Button(shell, SWT.NONE);
+			GridData gd_btnCancel = new GridData(SWT.RIGHT, SWT.CENTER, false, false, 1, 1);
+			gd_btnCancel.widthHint = 80;
+			btnCancel.setLayoutData(gd_btnCancel);
+			btnCancel.setText("Cancel");
+
+			btnCancel.addListener(SWT.Selection, new Listener() {
+				@Override
+				public void handleEvent(Event e) {
+					cancelled = true;
+					btnCancel.setEnabled(false);
+				}
+			});
+		}
+
 		shell.addListener(SWT.Close, new Listener() {
 			@Override
 			public void handleEvent(Event e) {
@@ -72,6 +103,49 @@ public class LoadingDialog {
 		shell.dispose();
 	}
 
+	/**
+	 * Shows how much of the task is done, replacing the indeterminate progress bar
+	 * with one that fills up. Can be called from any thread.
+	 * 
+	 * @param done
+	 *            amount of work done so far
+	 * @param total
+	 *            total amount of work
+	 */
+	public void setProgress(long done, long total) {
+		final int selection = total <= 0 ? 0 : (int) (Math.min(done, total) * PROGRESS_MAXIMUM / total);
+		display.asyncExec(new Runnable() {
+			@Override
+			public void run() {
+				if (shell.isDisposed())
+					return;
+				if ((progressBar.getStyle() & SWT.INDETERMINATE) != 0) {
+					ProgressBar determinateBar = new ProgressBar(shell, SWT.SMOOTH);
+					determinateBar.setLayoutData(progressBar.getLayoutData());
+					determinateBar.setMaximum(PROGRESS_MAXIMUM);
+					determinateBar.moveAbove(progressBar);
+					progressBar.dispose();
+					progressBar = determinateBar;
+					shell.layout();
+				}
+				progressBar.setSelection(selection);
+			}
+		});
+	}
+
+	/**
+	 * @return true if the user pressed the Cancel button. Can be called from any thread.
+	 */
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public void progress(long bytesWritten, long bytesTotal) {
+		setProgress(bytesWritten, bytesTotal);
+	}
+
 	public static LoadingDialog getInstance() {
 		return instance;
 	}
@@ -26,6 +26,7 @@ import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.DirectoryDialog;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Listener;
@@ -51,6 +52,7 @@ public class ModManagementDialog {
 	private Tree tree;
 	private Button btnRemove;
 	private Button btnLoad;
+	private Button btnLoadFolder;
 	private TreeItem trtmCore;
 	private Color disabledColor = null;
 	private Button btnConfirm;
@@ -68,10 +70,10 @@ public class ModManagementDialog {
 
 		shell = new Shell(parent, SWT.DIALOG_TRIM | SWT.APPLICATION_MODAL);
 		shell.setText(Superluminal.APP_NAME + " - Mod Management");
-		shell.setLayout(new GridLayout(4, false));
+		shell.setLayout(new GridLayout(5, false));
 
 		tree = new Tree(shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI);
-		tree.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true, 4, 1));
+		tree.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true, 5, 1));
 
 		trtmCore = new TreeItem(tree, SWT.NONE);
 		trtmCore.setText("DatabaseCore");
@@ -100,6 +102,13 @@ public class ModManagementDialog {
 		btnLoad.setLayoutData(gd_btnLoad);
 		btnLoad.setText("Load Mod");
 
+		btnLoadFolder = new Button(shell, SWT.NONE);
+		GridData gd_btnLoadFolder = new GridData(SWT.LEFT, SWT.CENTER, false, false, 1, 1);
+		gd_btnLoadFolder.widthHint = 80;
+		btnLoadFolder.setLayoutData(gd_btnLoadFolder);
+		btnLoadFolder.setText("Load Folder");
+		btnLoadFolder.setToolTipText("Load an unpacked mod from a folder.\nChanges to its files are applied as soon as they're saved.");
+
 		btnRemove = new Button(shell, SWT.NONE);
 		GridData gd_btnRemove = new GridData(SWT.LEFT, SWT.CENTER, false, false, 1, 1);
 		gd_btnRemove.widthHint = 80;
@@ -182,7 +191,7 @@ public class ModManagementDialog {
 					if (object instanceof String[]) {
 						String fileList[] = (String[]) object;
 						for (String path : fileList) {
-							if (!path.endsWith(".ftl") && !path.endsWith(".zip")) {
+							if (!path.endsWith(".ftl") && !path.endsWith(".zip") && !new File(path).isDirectory()) {
 								e.detail = DND.DROP_NONE;
 								e.feedback = DND.FEEDBACK_NONE;
 								break;
@@ -201,7 +210,7 @@ public class ModManagementDialog {
 					Object object = FileTransfer.getInstance().nativeToJava(e.currentDataType);
 					if (object instanceof String[]) {
 						String fileList[] = (String[]) object;
-						// Already ensured that all items are .ftl or .zip
+						// Already ensured that all items are .ftl, .zip or folders
 						for (String path : fileList) {
 							File file = new File(path);
 							try {
@@ -290,6 +299,29 @@ public class ModManagementDialog {
 			}
 		});
 
+		btnLoadFolder.addSelectionListener(new SelectionAdapter() {
+			@Override
+			public void widgetSelected(SelectionEvent e) {
+				DirectoryDialog dialog = new DirectoryDialog(shell);
+				dialog.setText("Load Mod Folder");
+				dialog.setMessage("Select the folder of an unpacked mod, containing its data/ and img/ directories.");
+
+				String path = dialog.open();
+				if (path != null) {
+					File f = new File(path);
+					try {
+						DatabaseEntry de = new DatabaseEntry(f);
+						if (!entries.contains(de)) {
+							createTreeItem(de);
+							entries.add(de);
+						}
+					} catch (IOException ex) {
+						log.warn(String.format("An error has occured while loading mod folder '%s': ", f.getName()), ex);
+					}
+				}
+			}
+		});
+
 		btnRemove.addSelectionListener(new SelectionAdapter() {
 			@Override
 			public void widgetSelected(SelectionEvent e) {
@@ -310,24 +342,10 @@ public class ModManagementDialog {
 			public void widgetSelected(SelectionEvent e) {
 				UIUtils.showLoadDialog(shell, null, "Loading mods, please wait...", new LoadTask() {
 					public void execute() {
-						// Load added entries
-						DatabaseEntry[] dbEntries = db.getDatabaseEntries();
-						for (DatabaseEntry de : entries) {
-							if (!contains(dbEntries, de))
-								db.addEntry(de);
-						}
-						// Unload deleted entries
-						for (DatabaseEntry de : db.getDatabaseEntries()) {
-							if (!entries.contains(de))
-								db.removeEntry(de);
-						}
-						// Reorder entries to match user input
-						for (DatabaseEntry de : entries) {
-							db.reorderEntry(de, entries.indexOf(de));
-						}
+						// Unload deleted entries, load added ones, and reorder them to match user input
+						db.reconfigure(entries);
 					}
 				});
-				db.cacheAnimations();
 				dispose();
 			}
 		});
@@ -347,7 +365,7 @@ public class ModManagementDialog {
 			}
 		});
 
-		shell.setSize(450, 220);
+		shell.setSize(540, 220);
 		Point size = shell.getSize();
 		Point parSize = parent.getSize();
 		Point parLoc = parent.getLocation();
@@ -5,11 +5,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import net.vhati.modmanager.core.SloppyXMLParser.ElementHandler;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.input.JDOMParseException;
 
@@ -36,41 +38,38 @@ public class DataUtils {
 	public static final Logger log = LogManager.getLogger(DataUtils.class);
 
 	/**
-	 * Finds all ships with the specified blueprintName within the file.
+	 * Finds all ships with the specified blueprintName within the file.<br>
+	 * Only the matching ships are built; the rest of the file is skipped.
 	 * 
 	 * @param f
 	 * @param blueprintName
-	 * @return
+	 * @return the matching shipBlueprint elements, detached from any document
 	 * @throws JDOMParseException
 	 *             when the contents of the stream could not be parsed.
 	 * @throws IOException
 	 */
-	public static ArrayList<Element> findShipsWithName(String blueprintName, InputStream is, String fileName)
+	public static ArrayList<Element> findShipsWithName(final String blueprintName, InputStream is, String fileName)
 			throws IllegalArgumentException, JDOMParseException, IOException {
 		if (blueprintName == null)
 			throw new IllegalArgumentException("Blueprint name must not be null.");
 
 		IOUtils.DecodeResult dr = IOUtils.decodeText(is, null);
 		String contents = dr.text;
-		Document doc = IOUtils.parseXML(contents);
-
-		ArrayList<Element> shipList = new ArrayList<Element>();
 
-		Element root = doc.getRootElement();
+		final ArrayList<Element> shipList = new ArrayList<Element>();
 
-		if (root.getName().equals("shipBlueprint")) {
-			String blueprint = root.getAttributeValue("name");
-
-			if (blueprint != null && blueprint.equals(blueprintName))
-				shipList.add(root);
-		} else {
-			for (Element e : root.getChildren("shipBlueprint")) {
-				String blueprint = e.getAttributeValue("name");
+		IOUtils.scanXML(contents, Collections.singleton("shipBlueprint"), new ElementHandler() {
+			@Override
+			public boolean elementStarted(Element e) {
+				return blueprintName.equals(e.getAttributeValue("name"));
+			}
 
-				if (blueprint != null && blueprint.equals(blueprintName))
-					shipList.add(e);
+			@Override
+			public boolean elementEnded(Element e) {
+				shipList.add(e);
+				return true;
 			}
-		}
+		});
 
 		return shipList;
 	}
@@ -80,19 +79,27 @@ public class DataUtils {
 		return findShipsWithName(blueprintName, new FileInputStream(f), f.getName());
 	}
 
+	/**
+	 * Finds all top-level elements with the specified tag name within the text.<br>
+	 * Only those elements are built; the rest of the text is skipped.
+	 * 
+	 * @return the matching elements, detached from any document
+	 */
 	public static ArrayList<Element> findTagsNamed(String contents, String tagName) throws JDOMParseException {
-		Document doc = null;
-		doc = IOUtils.parseXML(contents);
-		ArrayList<Element> tagList = new ArrayList<Element>();
+		final ArrayList<Element> tagList = new ArrayList<Element>();
 
-		Element root = doc.getRootElement();
+		IOUtils.scanXML(contents, Collections.singleton(tagName), new ElementHandler() {
+			@Override
+			public boolean elementStarted(Element e) {
+				return true;
+			}
 
-		if (root.getName().equals(tagName)) {
-			tagList.add(root);
-		} else {
-			for (Element e : root.getChildren(tagName))
+			@Override
+			public boolean elementEnded(Element e) {
 				tagList.add(e);
-		}
+				return true;
+			}
+		});
 
 		return tagList;
 	}
@@ -330,12 +337,9 @@ public class DataUtils {
 		child = e.getChild("weaponArt");
 		if (child == null)
 			throw new IllegalArgumentException(weapon.getBlueprintName() + " is missing <weaponArt> tag.");
-		try {
-			weapon.setAnimName(child.getValue());
-		} catch (IllegalArgumentException ex) {
-			// Catch an re-throw the error to provide more information
-			throw new IllegalArgumentException(weapon.getBlueprintName() + ": could not find animation '" + child.getValue() + "'.", ex);
-		}
+		if (Database.getInstance().getAnimation(child.getValue()) == null)
+			throw new IllegalArgumentException(weapon.getBlueprintName() + ": could not find animation '" + child.getValue() + "'.");
+		weapon.setAnimName(child.getValue());
 
 		for (WeaponStats stat : WeaponStats.values()) {
 			try {
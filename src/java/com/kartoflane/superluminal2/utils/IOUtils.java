@@ -1,37 +1,47 @@
 package com.kartoflane.superluminal2.utils;
 
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.vhati.ftldat.FTLDat;
 import net.vhati.modmanager.core.SloppyXMLOutputProcessor;
 import net.vhati.modmanager.core.SloppyXMLParser;
+import net.vhati.modmanager.core.SloppyXMLParser.ElementHandler;
+import net.vhati.modmanager.core.SloppyXMLParser.Engine;
 
 import org.jdom2.Document;
 import org.jdom2.input.JDOMParseException;
 
 public class IOUtils {
 
+	/** Buffers kept by decodeText() for the next stream decoded on the same thread */
+	private static final ThreadLocal<SoftReference<byte[]>> pooledBytes = new ThreadLocal<SoftReference<byte[]>>();
+	private static final ThreadLocal<SoftReference<char[]>> pooledChars = new ThreadLocal<SoftReference<char[]>>();
+
 	private static final Pattern PROTOCOL_PTRN = Pattern.compile("^[^:]+:");
 
 	public static String trimProtocol(String input) {
@@ -52,7 +62,7 @@ public class IOUtils {
 
 	public static String readFileText(File f) throws FileNotFoundException, IOException {
 		FileInputStream fis = new FileInputStream(f);
-		DecodeResult dr = decodeText(fis, f.getName());
+		DecodeResult dr = decodeText(fis, f.getName(), f.length());
 		fis.close();
 		return dr.text;
 	}
@@ -123,23 +133,37 @@ public class IOUtils {
 		if (contents == null)
 			throw new IllegalArgumentException("Parsed string must not be null.");
 
-		SloppyXMLParser parser = new SloppyXMLParser();
+		SloppyXMLParser parser = new SloppyXMLParser(null, Engine.SCANNER);
 
 		return parser.build(contents);
 	}
 
+	/**
+	 * Reads the top-level elements with the specified tag names, and passes them to the handler.<br>
+	 * The rest of the document is skipped, without being built.
+	 * 
+	 * @see SloppyXMLParser#scan(CharSequence, Set, ElementHandler)
+	 */
+	public static void scanXML(String contents, Set<String> tagNames, ElementHandler handler) throws JDOMParseException {
+		if (contents == null)
+			throw new IllegalArgumentException("Parsed string must not be null.");
+
+		SloppyXMLParser parser = new SloppyXMLParser(null, Engine.SCANNER);
+
+		parser.scan(contents, tagNames, handler);
+	}
+
 	/**
 	 * Writes the contents of the input stream to the output stream.<br>
 	 * This method fully reads the input stream, and as such after this method has been invoked,
 	 * the stream will have reached EOF.<br>
-	 * This method does not close the streams.
+	 * This method does not close the streams.<br>
+	 * <br>
+	 * If both streams are backed by files, the bytes are transferred without
+	 * being copied through the heap.
 	 */
 	public static void write(InputStream in, OutputStream out) throws IOException {
-		byte[] buffer = new byte[1024 * 10];
-		int len;
-		while ((len = in.read(buffer)) != -1) {
-			out.write(buffer, 0, len);
-		}
+		FTLDat.copyStream(in, out);
 	}
 
 	/**
@@ -161,20 +185,42 @@ public class IOUtils {
 		if (f.isDirectory())
 			throw new IllegalArgumentException("File must not be a directory.");
 
-		BufferedWriter writer = null;
+		FileOutputStream out = null;
 
 		try {
 			f.getAbsoluteFile().getParentFile().mkdirs();
-			writer = new BufferedWriter(new FileWriter(f));
-			SloppyXMLOutputProcessor.sloppyPrint(doc, writer, null);
+			out = new FileOutputStream(f);
+			writeDocument(doc, out, null);
 
 			return true;
 		} finally {
-			if (writer != null)
-				writer.close();
+			if (out != null)
+				out.close();
 		}
 	}
 
+	/**
+	 * Writes the Document to the stream in XML format, without building it as a string first.<br>
+	 * This method uses the {@link SloppyXMLOutputProcessor}, which
+	 * omitts the root element when writing the document.<br>
+	 * This method does not close the stream.
+	 * 
+	 * @param doc
+	 *            the document to be written
+	 * @param out
+	 *            stream to which the document will be written
+	 * @param encoding
+	 *            the name of the Charset used to encode the text, or null for UTF-8
+	 */
+	public static void writeDocument(Document doc, OutputStream out, String encoding) throws IOException {
+		if (doc == null)
+			throw new IllegalArgumentException("Document must not be null.");
+		if (out == null)
+			throw new IllegalArgumentException("Stream must not be null.");
+
+		SloppyXMLOutputProcessor.sloppyPrint(doc, out, encoding);
+	}
+
 	/**
 	 * @return string representation of the Document's XML code
 	 */
@@ -236,83 +282,156 @@ public class IOUtils {
 	 * @author Vhati
 	 */
 	public static DecodeResult decodeText(InputStream is, String description) throws IOException {
-		String result = null;
+		return decodeText(is, description, -1);
+	}
 
-		byte[] buf = new byte[4096];
-		int len;
-		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
-		while ((len = is.read(buf)) >= 0) {
-			tmpData.write(buf, 0, len);
+	/**
+	 * Determines text encoding for an InputStream and decodes its bytes as a string.<br>
+	 * <br>
+	 * The stream is read into a buffer kept for the next call on the same thread, so it
+	 * helps to know its length up front. The encoding is told by the BOM, if there is one.
+	 * Otherwise the text is decoded as UTF-8, falling back to windows-1252 if that fails.
+	 * Leading ASCII is copied straight to chars, since it reads the same in both.<br>
+	 * <br>
+	 * CR and CR-LF line endings will be normalized to LF.<br>
+	 * This method does not close the stream.
+	 * 
+	 * @param is
+	 *            a stream to read
+	 * @param description
+	 *            how error messages should refer to the stream, or null
+	 * @param length
+	 *            number of bytes left in the stream, or -1 if unknown
+	 */
+	public static DecodeResult decodeText(InputStream is, String description, long length) throws IOException {
+		byte[] bytes = borrowBytes(length >= 0 && length < Integer.MAX_VALUE ? (int) length + 1 : 4096);
+		int len = 0;
+		int read;
+		while ((read = is.read(bytes, len, bytes.length - len)) >= 0) {
+			len += read;
+			if (len == bytes.length) {
+				// The length was unknown or wrong, make room and check for EOF again
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
 		}
-		byte[] allBytes = tmpData.toByteArray();
-		tmpData.reset();
-
-		Map<byte[], String> boms = new LinkedHashMap<byte[], String>();
-		boms.put(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF }, "UTF-8");
-		boms.put(new byte[] { (byte) 0xFF, (byte) 0xFE }, "UTF-16LE");
-		boms.put(new byte[] { (byte) 0xFE, (byte) 0xFF }, "UTF-16BE");
+		pooledBytes.set(new SoftReference<byte[]>(bytes));
 
 		String encoding = null;
 		byte[] bom = null;
-
-		for (Map.Entry<byte[], String> entry : boms.entrySet()) {
-			byte[] tmpBom = entry.getKey();
-			byte[] firstBytes = Arrays.copyOfRange(allBytes, 0, tmpBom.length);
-			if (Arrays.equals(tmpBom, firstBytes)) {
-				encoding = entry.getValue();
-				bom = tmpBom;
-				break;
-			}
+		if (len >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+			encoding = "UTF-8";
+			bom = new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+		} else if (len >= 2 && bytes[0] == (byte) 0xFF && bytes[1] == (byte) 0xFE) {
+			encoding = "UTF-16LE";
+			bom = new byte[] { (byte) 0xFF, (byte) 0xFE };
+		} else if (len >= 2 && bytes[0] == (byte) 0xFE && bytes[1] == (byte) 0xFF) {
+			encoding = "UTF-16BE";
+			bom = new byte[] { (byte) 0xFE, (byte) 0xFF };
 		}
 
-		if (encoding != null) {
+		// None of the encodings yields more chars than bytes
+		char[] chars = borrowChars(len);
+		int count = 0;
+
+		if (encoding != null && !encoding.equals("UTF-8")) {
 			// This may throw CharacterCodingException.
-			CharsetDecoder decoder = Charset.forName(encoding).newDecoder();
-			ByteBuffer byteBuffer = ByteBuffer.wrap(allBytes, bom.length, allBytes.length - bom.length);
-			result = decoder.decode(byteBuffer).toString();
-			allBytes = null; // GC hint.
-		}
-		else {
-			ByteBuffer byteBuffer = ByteBuffer.wrap(allBytes);
-
-			Map<String, Exception> errorMap = new LinkedHashMap<String, Exception>();
-			for (String guess : new String[] { "UTF-8", "windows-1252" }) {
-				try {
-					byteBuffer.rewind();
-					byteBuffer.limit(allBytes.length);
-					CharsetDecoder decoder = Charset.forName(guess).newDecoder();
-					result = decoder.decode(byteBuffer).toString();
-					encoding = guess;
-					break;
-				} catch (CharacterCodingException e) {
-					errorMap.put(guess, e);
-				}
+			count = decode(encoding, bytes, bom.length, len, chars, 0);
+		} else {
+			int start = bom == null ? 0 : bom.length;
+			int ascii = start;
+			while (ascii < len && bytes[ascii] >= 0) {
+				chars[ascii - start] = (char) bytes[ascii];
+				ascii++;
 			}
-			if (encoding == null) {
-				// All guesses failed!?
-				String msg = String.format("Could not guess encoding for %s.", (description != null ? "\"" + description + "\"" : "a file"));
-				for (Map.Entry<String, Exception> entry : errorMap.entrySet()) {
-					msg += String.format("\nFailed to decode as %s: %s", entry.getKey(), entry.getValue());
+			int prefix = ascii - start;
+
+			if (encoding != null) {
+				// This may throw CharacterCodingException.
+				count = decode(encoding, bytes, ascii, len, chars, prefix);
+			} else {
+				Map<String, Exception> errorMap = new LinkedHashMap<String, Exception>();
+				for (String guess : new String[] { "UTF-8", "windows-1252" }) {
+					try {
+						count = decode(guess, bytes, ascii, len, chars, prefix);
+						encoding = guess;
+						break;
+					} catch (CharacterCodingException e) {
+						errorMap.put(guess, e);
+					}
+				}
+				if (encoding == null) {
+					// All guesses failed!?
+					String msg = String.format("Could not guess encoding for %s.", (description != null ? "\"" + description + "\"" : "a file"));
+					for (Map.Entry<String, Exception> entry : errorMap.entrySet()) {
+						msg += String.format("\nFailed to decode as %s: %s", entry.getKey(), entry.getValue());
+					}
+					throw new IOException(msg);
 				}
-				throw new IOException(msg);
 			}
-			allBytes = null; // GC hint.
 		}
 
-		// Determine the original line endings.
+		// Determine the original line endings, and normalize them in place.
 		int eol = DecodeResult.EOL_NONE;
-		Matcher m = Pattern.compile("(\r(?!\n))|((?<!\r)\n)|(\r\n)").matcher(result);
-		if (m.find()) {
-			if (m.group(3) != null)
-				eol = DecodeResult.EOL_CRLF;
-			else if (m.group(2) != null)
-				eol = DecodeResult.EOL_LF;
-			else if (m.group(1) != null)
-				eol = DecodeResult.EOL_CR;
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			char c = chars[i];
+			if (c == '\r') {
+				boolean crlf = i + 1 < count && chars[i + 1] == '\n';
+				if (eol == DecodeResult.EOL_NONE)
+					eol = crlf ? DecodeResult.EOL_CRLF : DecodeResult.EOL_CR;
+				if (crlf)
+					i++;
+				chars[n++] = '\n';
+			} else {
+				if (c == '\n' && eol == DecodeResult.EOL_NONE)
+					eol = DecodeResult.EOL_LF;
+				chars[n++] = c;
+			}
 		}
+		pooledChars.set(new SoftReference<char[]>(chars));
+
+		return new DecodeResult(new String(chars, 0, n), encoding, eol, bom);
+	}
 
-		result = result.replaceAll("\r(?!\n)|\r\n", "\n");
-		return new DecodeResult(result, encoding, eol, bom);
+	/**
+	 * Decodes the bytes into the array, starting at the offset.
+	 * 
+	 * @return index in the array after the last decoded char
+	 * @throws CharacterCodingException
+	 *             when the bytes are not valid in the encoding
+	 */
+	private static int decode(String encoding, byte[] bytes, int start, int end, char[] chars, int offset)
+			throws CharacterCodingException {
+		CharsetDecoder decoder = Charset.forName(encoding).newDecoder();
+		ByteBuffer in = ByteBuffer.wrap(bytes, start, end - start);
+		CharBuffer out = CharBuffer.wrap(chars, offset, chars.length - offset);
+
+		CoderResult result = decoder.decode(in, out, true);
+		if (!result.isUnderflow())
+			result.throwException();
+		result = decoder.flush(out);
+		if (!result.isUnderflow())
+			result.throwException();
+
+		return out.position();
+	}
+
+	/**
+	 * @return the thread's pooled byte array if it holds at least the given size, or a new array
+	 */
+	private static byte[] borrowBytes(int size) {
+		SoftReference<byte[]> ref = pooledBytes.get();
+		byte[] buffer = ref == null ? null : ref.get();
+		return buffer != null && buffer.length >= size ? buffer : new byte[size];
+	}
+
+	/**
+	 * @return the thread's pooled char array if it holds at least the given size, or a new array
+	 */
+	private static char[] borrowChars(int size) {
+		SoftReference<char[]> ref = pooledChars.get();
+		char[] buffer = ref == null ? null : ref.get();
+		return buffer != null && buffer.length >= size ? buffer : new char[size];
 	}
 
 	/**
@@ -125,8 +125,8 @@ public class ShipLoadUtils {
 		if (!db.contains(ship.getLayoutXML()))
 			throw new FileNotFoundException("XML layout file could not be found in game's archives: " + ship.getLayoutXML());
 
-		is = db.getInputStream(ship.getLayoutXML());
-		loadLayoutXML(ship, is, ship.getLayoutXML());
+		// Layouts are kept parsed, so that reopening the ship doesn't parse them again
+		loadLayoutXML(ship, db.getDocument(ship.getLayoutXML()));
 
 		// Get the class of the ship
 		child = e.getChild("class");
@@ -582,203 +582,221 @@ public class ShipLoadUtils {
 
 		try {
 			Document doc = IOUtils.readStreamXML(is, fileName);
+			loadLayoutXML(ship, doc);
+		} finally {
+			is.close();
+		}
+	}
 
-			Element root = doc.getRootElement();
-			Element child = null;
-			String attr = null;
+	/**
+	 * Loads the XML layout from the document.
+	 * 
+	 * @param ship
+	 *            ship object in which the loaded data will be saved
+	 * @param doc
+	 *            the parsed layout. It is not modified, so it can be shared.
+	 * @throws IllegalArgumentException
+	 *             when the file is wrongly formatted - a tag or an attribute is missing
+	 */
+	public static void loadLayoutXML(ShipObject ship, Document doc) throws IllegalArgumentException {
+		if (ship == null)
+			throw new IllegalArgumentException("Ship object must not be null.");
+		if (doc == null)
+			throw new IllegalArgumentException("Document must not be null.");
 
-			// Load the total offset of the image set
-			child = root.getChild("img");
-			if (child == null)
-				throw new IllegalArgumentException("Missing <img> tag");
+		Element root = doc.getRootElement();
+		Element child = null;
+		String attr = null;
 
-			Rectangle hullDimensions = new Rectangle(0, 0, 0, 0);
-			attr = child.getAttributeValue("x");
-			if (attr == null)
-				throw new IllegalArgumentException("Img missing 'x' attribute");
-			hullDimensions.x = Integer.valueOf(attr);
+		// Load the total offset of the image set
+		child = root.getChild("img");
+		if (child == null)
+			throw new IllegalArgumentException("Missing <img> tag");
 
-			attr = child.getAttributeValue("y");
-			if (attr == null)
-				throw new IllegalArgumentException("Img missing 'y' attribute");
-			hullDimensions.y = Integer.valueOf(attr);
+		Rectangle hullDimensions = new Rectangle(0, 0, 0, 0);
+		attr = child.getAttributeValue("x");
+		if (attr == null)
+			throw new IllegalArgumentException("Img missing 'x' attribute");
+		hullDimensions.x = Integer.valueOf(attr);
 
-			attr = child.getAttributeValue("w");
-			if (attr == null)
-				throw new IllegalArgumentException("Img missing 'w' attribute");
-			hullDimensions.width = Integer.valueOf(attr);
+		attr = child.getAttributeValue("y");
+		if (attr == null)
+			throw new IllegalArgumentException("Img missing 'y' attribute");
+		hullDimensions.y = Integer.valueOf(attr);
 
-			attr = child.getAttributeValue("h");
-			if (attr == null)
-				throw new IllegalArgumentException("Img missing 'h' attribute");
-			hullDimensions.height = Integer.valueOf(attr);
+		attr = child.getAttributeValue("w");
+		if (attr == null)
+			throw new IllegalArgumentException("Img missing 'w' attribute");
+		hullDimensions.width = Integer.valueOf(attr);
 
-			ship.setHullDimensions(hullDimensions);
+		attr = child.getAttributeValue("h");
+		if (attr == null)
+			throw new IllegalArgumentException("Img missing 'h' attribute");
+		hullDimensions.height = Integer.valueOf(attr);
 
-			// Ignore <glowOffset> - only concerns iPad version of FTL
+		ship.setHullDimensions(hullDimensions);
 
-			// Load additional offsets for other images
-			Point offset = new Point(0, 0);
-			Element offsets = root.getChild("offsets");
+		// Ignore <glowOffset> - only concerns iPad version of FTL
 
-			if (offsets != null) {
-				child = offsets.getChild("cloak");
-				if (child != null) {
-					attr = child.getAttributeValue("x");
-					if (attr == null)
-						throw new IllegalArgumentException("Cloak missing 'x' attribute");
-					offset.x = Integer.valueOf(attr);
+		// Load additional offsets for other images
+		Point offset = new Point(0, 0);
+		Element offsets = root.getChild("offsets");
 
-					attr = child.getAttributeValue("y");
-					if (attr == null)
-						throw new IllegalArgumentException("Cloak missing 'y' attribute");
-					offset.y = Integer.valueOf(attr);
+		if (offsets != null) {
+			child = offsets.getChild("cloak");
+			if (child != null) {
+				attr = child.getAttributeValue("x");
+				if (attr == null)
+					throw new IllegalArgumentException("Cloak missing 'x' attribute");
+				offset.x = Integer.valueOf(attr);
 
-					ship.setCloakOffset(offset);
-				}
+				attr = child.getAttributeValue("y");
+				if (attr == null)
+					throw new IllegalArgumentException("Cloak missing 'y' attribute");
+				offset.y = Integer.valueOf(attr);
 
-				child = offsets.getChild("floor");
-				if (child != null) {
-					attr = child.getAttributeValue("x");
-					if (attr == null)
-						throw new IllegalArgumentException("Floor missing 'x' attribute");
-					offset.x = Integer.valueOf(attr);
+				ship.setCloakOffset(offset);
+			}
 
-					attr = child.getAttributeValue("y");
-					if (attr == null)
-						throw new IllegalArgumentException("Floor missing 'y' attribute");
-					offset.y = Integer.valueOf(attr);
+			child = offsets.getChild("floor");
+			if (child != null) {
+				attr = child.getAttributeValue("x");
+				if (attr == null)
+					throw new IllegalArgumentException("Floor missing 'x' attribute");
+				offset.x = Integer.valueOf(attr);
 
-					ship.setFloorOffset(offset);
-				}
+				attr = child.getAttributeValue("y");
+				if (attr == null)
+					throw new IllegalArgumentException("Floor missing 'y' attribute");
+				offset.y = Integer.valueOf(attr);
+
+				ship.setFloorOffset(offset);
 			}
+		}
 
-			HashMap<MountObject, Integer> gibMap = new HashMap<MountObject, Integer>();
+		HashMap<MountObject, Integer> gibMap = new HashMap<MountObject, Integer>();
 
-			// Load weapon mounts
-			child = root.getChild("weaponMounts");
-			if (child == null)
-				throw new IllegalArgumentException("Missing <weaponMounts> tag");
+		// Load weapon mounts
+		child = root.getChild("weaponMounts");
+		if (child == null)
+			throw new IllegalArgumentException("Missing <weaponMounts> tag");
 
-			int id = 0;
-			for (Element mountEl : child.getChildren("mount")) {
-				MountObject mount = new MountObject();
-				mount.setId(id++);
+		int id = 0;
+		for (Element mountEl : child.getChildren("mount")) {
+			MountObject mount = new MountObject();
+			mount.setId(id++);
 
-				attr = mountEl.getAttributeValue("x");
-				if (attr == null)
-					throw new IllegalArgumentException("Mount missing 'x' attribute");
-				offset.x = Integer.valueOf(attr);
+			attr = mountEl.getAttributeValue("x");
+			if (attr == null)
+				throw new IllegalArgumentException("Mount missing 'x' attribute");
+			offset.x = Integer.valueOf(attr);
 
-				attr = mountEl.getAttributeValue("y");
-				if (attr == null)
-					throw new IllegalArgumentException("Mount missing 'y' attribute");
-				offset.y = Integer.valueOf(attr);
+			attr = mountEl.getAttributeValue("y");
+			if (attr == null)
+				throw new IllegalArgumentException("Mount missing 'y' attribute");
+			offset.y = Integer.valueOf(attr);
 
-				mount.setLocation(offset.x, offset.y);
+			mount.setLocation(offset.x, offset.y);
 
-				attr = mountEl.getAttributeValue("rotate");
-				if (attr == null)
-					throw new IllegalArgumentException("Mount missing 'rotate' attribute");
-				mount.setRotated(Boolean.valueOf(attr));
+			attr = mountEl.getAttributeValue("rotate");
+			if (attr == null)
+				throw new IllegalArgumentException("Mount missing 'rotate' attribute");
+			mount.setRotated(Boolean.valueOf(attr));
 
-				attr = mountEl.getAttributeValue("mirror");
-				if (attr == null)
-					throw new IllegalArgumentException("Moumt missing 'mirror' attribute");
-				mount.setMirrored(Boolean.valueOf(attr));
+			attr = mountEl.getAttributeValue("mirror");
+			if (attr == null)
+				throw new IllegalArgumentException("Moumt missing 'mirror' attribute");
+			mount.setMirrored(Boolean.valueOf(attr));
 
-				attr = mountEl.getAttributeValue("gib");
-				if (attr == null)
-					throw new IllegalArgumentException("Moumt missing 'gib' attribute");
-				gibMap.put(mount, Integer.valueOf(attr));
+			attr = mountEl.getAttributeValue("gib");
+			if (attr == null)
+				throw new IllegalArgumentException("Moumt missing 'gib' attribute");
+			gibMap.put(mount, Integer.valueOf(attr));
 
-				attr = mountEl.getAttributeValue("slide");
-				if (attr != null)
-					mount.setDirection(Directions.parseDir(attr.toUpperCase()));
-				else
-					mount.setDirection(Directions.NONE);
+			attr = mountEl.getAttributeValue("slide");
+			if (attr != null)
+				mount.setDirection(Directions.parseDir(attr.toUpperCase()));
+			else
+				mount.setDirection(Directions.NONE);
 
-				ship.add(mount);
-			}
+			ship.add(mount);
+		}
 
-			// Load gibs
-			child = root.getChild("explosion");
-			if (child == null)
-				throw new IllegalArgumentException("Missing <explosion> tag");
+		// Load gibs
+		child = root.getChild("explosion");
+		if (child == null)
+			throw new IllegalArgumentException("Missing <explosion> tag");
 
-			for (Element gibEl : child.getChildren()) {
-				if (gibEl.getName().startsWith("gib")) {
-					GibObject gib = new GibObject();
+		for (Element gibEl : child.getChildren()) {
+			if (gibEl.getName().startsWith("gib")) {
+				GibObject gib = new GibObject();
 
-					attr = gibEl.getName().substring(3);
-					gib.setId(Integer.valueOf(attr));
+				attr = gibEl.getName().substring(3);
+				gib.setId(Integer.valueOf(attr));
 
-					child = gibEl.getChild("x");
-					if (child == null)
-						throw new IllegalArgumentException("Gib missing <x> tag");
-					offset.x = Integer.valueOf(child.getValue());
+				child = gibEl.getChild("x");
+				if (child == null)
+					throw new IllegalArgumentException("Gib missing <x> tag");
+				offset.x = Integer.valueOf(child.getValue());
 
-					child = gibEl.getChild("y");
-					if (child == null)
-						throw new IllegalArgumentException("Gib missing <y> tag");
-					offset.y = Integer.valueOf(child.getValue());
+				child = gibEl.getChild("y");
+				if (child == null)
+					throw new IllegalArgumentException("Gib missing <y> tag");
+				offset.y = Integer.valueOf(child.getValue());
 
-					gib.setOffset(offset.x, offset.y);
+				gib.setOffset(offset.x, offset.y);
 
-					child = gibEl.getChild("velocity");
-					if (child == null)
-						throw new IllegalArgumentException("Gib missing <velocity> tag");
+				child = gibEl.getChild("velocity");
+				if (child == null)
+					throw new IllegalArgumentException("Gib missing <velocity> tag");
 
-					attr = child.getAttributeValue("min");
-					if (attr == null)
-						throw new IllegalArgumentException("Velocity missing 'min' attribute");
-					gib.setVelocityMin(Float.valueOf(attr));
+				attr = child.getAttributeValue("min");
+				if (attr == null)
+					throw new IllegalArgumentException("Velocity missing 'min' attribute");
+				gib.setVelocityMin(Float.valueOf(attr));
 
-					attr = child.getAttributeValue("max");
-					if (attr == null)
-						throw new IllegalArgumentException("Velocity missing 'max' attribute");
-					gib.setVelocityMax(Float.valueOf(attr));
+				attr = child.getAttributeValue("max");
+				if (attr == null)
+					throw new IllegalArgumentException("Velocity missing 'max' attribute");
+				gib.setVelocityMax(Float.valueOf(attr));
 
-					child = gibEl.getChild("direction");
-					if (child == null)
-						throw new IllegalArgumentException("Missing <direction> tag");
+				child = gibEl.getChild("direction");
+				if (child == null)
+					throw new IllegalArgumentException("Missing <direction> tag");
 
-					attr = child.getAttributeValue("min");
-					if (attr == null)
-						throw new IllegalArgumentException("Direction missing 'min' attribute");
-					gib.setDirectionMin(Integer.valueOf(attr));
+				attr = child.getAttributeValue("min");
+				if (attr == null)
+					throw new IllegalArgumentException("Direction missing 'min' attribute");
+				gib.setDirectionMin(Integer.valueOf(attr));
 
-					attr = child.getAttributeValue("max");
-					if (attr == null)
-						throw new IllegalArgumentException("Direction missing 'max' attribute");
-					gib.setDirectionMax(Integer.valueOf(attr));
+				attr = child.getAttributeValue("max");
+				if (attr == null)
+					throw new IllegalArgumentException("Direction missing 'max' attribute");
+				gib.setDirectionMax(Integer.valueOf(attr));
 
-					child = gibEl.getChild("velocity");
-					if (child == null)
-						throw new IllegalArgumentException("Missing <angular> tag");
+				child = gibEl.getChild("velocity");
+				if (child == null)
+					throw new IllegalArgumentException("Missing <angular> tag");
 
-					attr = child.getAttributeValue("min");
-					if (attr == null)
-						throw new IllegalArgumentException("Angular missing 'min' attribute");
-					gib.setAngularMin(Float.valueOf(attr));
+				attr = child.getAttributeValue("min");
+				if (attr == null)
+					throw new IllegalArgumentException("Angular missing 'min' attribute");
+				gib.setAngularMin(Float.valueOf(attr));
 
-					attr = child.getAttributeValue("max");
-					if (attr == null)
-						throw new IllegalArgumentException("Angular missing 'max' attribute");
-					gib.setAngularMax(Float.valueOf(attr));
+				attr = child.getAttributeValue("max");
+				if (attr == null)
+					throw new IllegalArgumentException("Angular missing 'max' attribute");
+				gib.setAngularMax(Float.valueOf(attr));
 
-					ship.add(gib);
-				}
+				ship.add(gib);
 			}
+		}
 
-			// Link mounts to gibs
-			for (MountObject mount : gibMap.keySet())
-				mount.setGib(ship.getGibById(gibMap.get(mount)));
+		// Link mounts to gibs
+		for (MountObject mount : gibMap.keySet())
+			mount.setGib(ship.getGibById(gibMap.get(mount)));
 
-			gibMap.clear();
-		} finally {
-			is.close();
-		}
+		gibMap.clear();
 	}
 
 	/**
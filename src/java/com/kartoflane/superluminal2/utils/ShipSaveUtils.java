@@ -1,21 +1,22 @@
 package com.kartoflane.superluminal2.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.eclipse.swt.graphics.Rectangle;
@@ -49,72 +50,95 @@ import com.kartoflane.superluminal2.ui.ShipContainer;
 
 public class ShipSaveUtils {
 
+	/**
+	 * Receives the files of a ship as it is being saved.
+	 */
+	public interface SaveTarget {
+		/**
+		 * @param innerPath
+		 *            path of the file, relative to the root of the mod
+		 * @return stream to which the file's contents are written. It is closed once they have been.
+		 */
+		public OutputStream openFile(String innerPath) throws IOException;
+	}
+
 	public static void saveShipFTL(File saveFile, ShipContainer container) throws IllegalArgumentException, IOException {
 		if (saveFile == null)
 			throw new IllegalArgumentException("Destination file must not be null.");
 		if (saveFile.isDirectory())
 			throw new IllegalArgumentException("Not a file: " + saveFile.getName());
 
-		HashMap<String, byte[]> fileMap = saveShip(container);
-
-		// Write the zip archive
-		ZipInputStream in = null;
-		ZipOutputStream out = null;
+		// Write the zip archive next to the destination, so that a failed save doesn't clobber it
+		File tmpFile = new File(saveFile.getPath() + ".tmp");
+		final ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		boolean saved = false;
 		try {
-			in = new ZipInputStream(new ByteArrayInputStream(createZip(fileMap)));
-			out = new ZipOutputStream(new FileOutputStream(saveFile));
-
-			ZipEntry entry = null;
-			while ((entry = in.getNextEntry()) != null) {
-				out.putNextEntry(entry);
-
-				byte[] byteBuff = new byte[4096];
-				int bytesRead = 0;
-				while ((bytesRead = in.read(byteBuff)) != -1)
-					out.write(byteBuff, 0, bytesRead);
-
-				in.closeEntry();
-			}
+			saveShip(container, new SaveTarget() {
+				public OutputStream openFile(String innerPath) throws IOException {
+					zip.putNextEntry(new ZipEntry(innerPath));
+					// Closing the stream only closes the entry
+					return new FilterOutputStream(zip) {
+						@Override
+						public void write(byte[] b, int off, int len) throws IOException {
+							zip.write(b, off, len);
+						}
+
+						@Override
+						public void close() throws IOException {
+							zip.closeEntry();
+						}
+					};
+				}
+			});
+			zip.close();
+			saved = true;
 		} finally {
-			if (in != null)
-				in.close();
-			if (out != null)
-				out.close();
+			if (!saved) {
+				try {
+					zip.close();
+				} catch (IOException e) {
+					// The archive is discarded anyway
+				}
+				tmpFile.delete();
+			}
 		}
+
+		if (saveFile.exists() && !saveFile.delete())
+			throw new IOException("Could not replace " + saveFile.getName());
+		if (!tmpFile.renameTo(saveFile))
+			throw new IOException("Could not rename " + tmpFile.getName() + " to " + saveFile.getName());
 	}
 
-	public static void saveShipXML(File destination, ShipContainer container) throws IllegalArgumentException, IOException {
+	public static void saveShipXML(final File destination, ShipContainer container) throws IllegalArgumentException, IOException {
 		if (destination == null)
 			throw new IllegalArgumentException("Destination file must not be null.");
 		if (!destination.isDirectory())
 			throw new IllegalArgumentException("Not a directory: " + destination.getName());
 
-		HashMap<String, byte[]> fileMap = saveShip(container);
-
 		// Write the files
-		for (String fileName : fileMap.keySet()) {
-			ByteArrayInputStream in = null;
-			FileOutputStream out = null;
-
-			File file = new File(destination.getAbsolutePath() + "/" + fileName);
-			file.getParentFile().mkdirs();
-
-			try {
-				in = new ByteArrayInputStream(fileMap.get(fileName));
-				out = new FileOutputStream(file);
-				IOUtils.write(in, out);
-			} finally {
-				if (in != null)
-					in.close();
-				if (out != null)
-					out.close();
+		saveShip(container, new SaveTarget() {
+			public OutputStream openFile(String innerPath) throws IOException {
+				File file = new File(destination.getAbsolutePath() + "/" + innerPath);
+				file.getParentFile().mkdirs();
+				return new BufferedOutputStream(new FileOutputStream(file));
 			}
-		}
+		});
 	}
 
-	public static HashMap<String, byte[]> saveShip(ShipContainer container) throws IOException {
+	/**
+	 * Generates the ship's files, and writes each of them to the target as soon as it is ready.<br>
+	 * XML files are encoded as UTF-8, and images are copied from their sources without being buffered.
+	 * 
+	 * @param container
+	 *            container of the ship to save
+	 * @param target
+	 *            receives the ship's files
+	 */
+	public static void saveShip(ShipContainer container, SaveTarget target) throws IOException {
 		if (container == null)
 			throw new IllegalArgumentException("ShipContainer must not be null.");
+		if (target == null)
+			throw new IllegalArgumentException("Save target must not be null.");
 
 		ShipObject ship = container.getShipController().getGameObject();
 
@@ -126,40 +150,34 @@ public class ShipSaveUtils {
 		ship.linkDoors();
 		GlowObject[] newGlows = ship.createGlows();
 
-		HashMap<String, byte[]> fileMap = new HashMap<String, byte[]>();
 		String fileName = null;
-		byte[] bytes = null;
 
-		// Create the files in memory
+		// Write the data files
 		fileName = "data/" + Database.getInstance().getAssociatedFile(ship.getBlueprintName()) + ".append";
-		bytes = IOUtils.readDocument(generateBlueprintXML(ship)).getBytes();
-		fileMap.put(fileName, bytes);
+		writeXML(target, fileName, generateBlueprintXML(ship));
 
 		fileName = "data/" + ship.getLayout() + ".txt";
-		bytes = generateLayoutTXT(ship).getBytes();
-		fileMap.put(fileName, bytes);
+		writeText(target, fileName, generateLayoutTXT(ship));
 
 		fileName = "data/" + ship.getLayout() + ".xml";
-		bytes = IOUtils.readDocument(generateLayoutXML(ship)).getBytes();
-		fileMap.put(fileName, bytes);
+		writeXML(target, fileName, generateLayoutXML(ship));
 
 		// Create the rooms.xml.append file for glow locations
 		if (newGlows.length != 0) {
 			fileName = "data/rooms.xml.append";
-			bytes = IOUtils.readDocument(generateRoomsXML(newGlows)).getBytes();
-			fileMap.put(fileName, bytes);
+			writeXML(target, fileName, generateRoomsXML(newGlows));
 		}
 
-		// Copy images
+		// Gather images first, since several objects can share one, and the last one to claim a file name wins
+		LinkedHashMap<String, String> imageMap = new LinkedHashMap<String, String>();
+
 		for (Images img : Images.values()) {
 			ImageObject object = ship.getImage(img);
 			String path = object.getImagePath();
 
 			if (path != null) {
-				InputStream is = Manager.getInputStream(path);
 				fileName = img.getDatRelativePath(ship) + img.getPrefix() + ship.getImageNamespace() + img.getSuffix() + ".png";
-				fileMap.put(fileName, IOUtils.readStream(is));
-				is.close();
+				imageMap.put(fileName, path);
 			}
 		}
 
@@ -168,10 +186,8 @@ public class ShipSaveUtils {
 			String path = object.getInteriorPath();
 
 			if (path != null) {
-				InputStream is = Manager.getInputStream(path);
 				fileName = "img/ship/interior/" + object.getInteriorNamespace() + ".png";
-				fileMap.put(fileName, IOUtils.readStream(is));
-				is.close();
+				imageMap.put(fileName, path);
 			}
 		}
 
@@ -181,19 +197,15 @@ public class ShipSaveUtils {
 
 			if (path != null) {
 				SystemObject cloaking = ship.getSystem(Systems.CLOAKING);
-				InputStream is = Manager.getInputStream(path);
 				fileName = "img/ship/interior/" + cloaking.getInteriorNamespace() + Glows.CLOAK.getSuffix() + ".png";
-				fileMap.put(fileName, IOUtils.readStream(is));
-				is.close();
+				imageMap.put(fileName, path);
 			} else {
 				for (Glows glowId : Glows.getGlows()) {
 					path = set.getImage(glowId);
 
 					if (path != null) {
-						InputStream is = Manager.getInputStream(path);
 						fileName = "img/ship/interior/" + set.getIdentifier() + glowId.getSuffix() + ".png";
-						fileMap.put(fileName, IOUtils.readStream(is));
-						is.close();
+						imageMap.put(fileName, path);
 					}
 				}
 			}
@@ -201,7 +213,42 @@ public class ShipSaveUtils {
 
 		// TODO gib images
 
-		return fileMap;
+		// Copy images
+		for (Map.Entry<String, String> entry : imageMap.entrySet()) {
+			InputStream is = Manager.getInputStream(entry.getValue());
+			if (is == null)
+				throw new FileNotFoundException("Image could not be read: " + entry.getValue());
+
+			OutputStream out = null;
+			try {
+				out = target.openFile(entry.getKey());
+				IOUtils.write(is, out);
+			} finally {
+				is.close();
+				if (out != null)
+					out.close();
+			}
+		}
+	}
+
+	private static void writeXML(SaveTarget target, String fileName, Document doc) throws IOException {
+		OutputStream out = target.openFile(fileName);
+		try {
+			IOUtils.writeDocument(doc, out, "UTF-8");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeText(SaveTarget target, String fileName, String text) throws IOException {
+		OutputStream out = target.openFile(fileName);
+		try {
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			writer.write(text);
+			writer.flush();
+		} finally {
+			out.close();
+		}
 	}
 
 	public static void saveLayoutTXT(ShipObject ship, File f) throws FileNotFoundException, IOException {
@@ -604,22 +651,4 @@ public class ShipSaveUtils {
 		doc.setRootElement(root);
 		return doc;
 	}
-
-	private static byte[] createZip(Map<String, byte[]> files) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		ZipOutputStream zf = new ZipOutputStream(bos);
-		Iterator<String> it = files.keySet().iterator();
-		String fileName = null;
-		ZipEntry ze = null;
-
-		while (it.hasNext()) {
-			fileName = it.next();
-			ze = new ZipEntry(fileName);
-			zf.putNextEntry(ze);
-			zf.write(files.get(fileName));
-		}
-		zf.close();
-
-		return bos.toByteArray();
-	}
 }
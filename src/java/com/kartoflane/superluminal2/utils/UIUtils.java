@@ -1,7 +1,10 @@
 package com.kartoflane.superluminal2.utils;
 
 import java.io.File;
+import java.io.IOException;
 
+import net.vhati.ftldat.FTLDat.FTLPack;
+import net.vhati.ftldat.FTLDat.RepackResult;
 import net.vhati.modmanager.core.FTLUtilities;
 
 import org.eclipse.swt.SWT;
@@ -273,6 +276,58 @@ public class UIUtils {
 		dialog.open();
 	}
 
+	/**
+	 * Repacks the dat in another thread, while displaying a dialog in the UI thread that
+	 * shows the progress of the repack, and lets the user cancel it.
+	 * 
+	 * @param parentShell
+	 *            a shell which will be the parent of the dialog. Must not be null.
+	 * @param pack
+	 *            the dat to repack, opened in "r+" or "w+" mode
+	 * @param threshold
+	 *            fraction of the file (0.0-1.0) that has to be reclaimable, for the repack to happen at all
+	 * @return the result of the repack, or null if the user cancelled it
+	 * 
+	 * @see FTLPack#repack(double, net.vhati.ftldat.FTLDat.RepackMonitor)
+	 */
+	public static RepackResult showRepackDialog(Shell parentShell, final FTLPack pack, final double threshold) throws IOException {
+		if (parentShell == null)
+			throw new IllegalArgumentException("Parent shell must not be null.");
+
+		final LoadingDialog dialog = new LoadingDialog(parentShell, Superluminal.APP_NAME + " - Repacking...",
+				"Repacking " + pack.getName() + ", please wait...", true);
+		final RepackResult[] result = new RepackResult[1];
+		final Exception[] error = new Exception[1];
+		Thread repackThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = pack.repack(threshold, dialog);
+				} catch (IOException e) {
+					error[0] = e;
+				} catch (RuntimeException e) {
+					error[0] = e;
+				} finally {
+					dialog.dispose();
+				}
+			}
+		};
+		repackThread.start();
+		dialog.open();
+
+		try {
+			repackThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (error[0] instanceof IOException)
+			throw (IOException) error[0];
+		if (error[0] instanceof RuntimeException)
+			throw (RuntimeException) error[0];
+		return result[0];
+	}
+
 	public interface LoadTask {
 		public void execute();
 	}
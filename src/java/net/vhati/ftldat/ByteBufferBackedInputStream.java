@@ -0,0 +1,70 @@
+package net.vhati.ftldat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An InputStream that reads the remaining bytes of a ByteBuffer.
+ *
+ * The buffer's position is advanced as bytes are read, so
+ * callers that share a buffer should pass a duplicate() of it.
+ */
+public class ByteBufferBackedInputStream extends InputStream {
+
+	protected ByteBuffer buf;
+
+	public ByteBufferBackedInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return buf.remaining();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!buf.hasRemaining())
+			return -1;
+		return buf.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int bOff, int bLen) throws IOException {
+		if (bOff < 0 || bLen < 0 || bOff + bLen > b.length)
+			throw new IndexOutOfBoundsException(String.format("Offset: %d, Length: %d, Size: %d", bOff, bLen, b.length));
+		if (bLen == 0)
+			return 0;
+		if (!buf.hasRemaining())
+			return -1;
+
+		bLen = Math.min(bLen, buf.remaining());
+		buf.get(b, bOff, bLen);
+		return bLen;
+	}
+
+	/**
+	 * Writes the buffer's remaining bytes to a channel. For direct or
+	 * mapped buffers, this avoids copying them through the heap.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public long transferTo(WritableByteChannel dst) throws IOException {
+		long bytesTotal = buf.remaining();
+		while (buf.hasRemaining())
+			dst.write(buf);
+		return bytesTotal;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0)
+			return 0;
+
+		int skipped = (int) Math.min(n, buf.remaining());
+		buf.position(buf.position() + skipped);
+		return skipped;
+	}
+}
@@ -1,29 +1,53 @@
 package net.vhati.ftldat;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 public class FTLDat {
 
+	/** Size of the buffer through which streams that aren't backed by files are copied. */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
 	/**
 	 * Splits a path on "/" the way FTL expects them in .dat files.
 	 */
@@ -72,11 +96,7 @@ public class FTLDat {
 			is = new FileInputStream(srcFile);
 			os = new FileOutputStream(dstFile);
 
-			byte[] buf = new byte[4096];
-			int len;
-			while ((len = is.read(buf)) >= 0) {
-				os.write(buf, 0, len);
-			}
+			copyStream(is, os);
 		} finally {
 			try {
 				if (is != null)
@@ -92,6 +112,88 @@ public class FTLDat {
 		}
 	}
 
+	/**
+	 * Copies all remaining bytes from an InputStream to an OutputStream.
+	 * 
+	 * If the OutputStream is a FileOutputStream, see copyStream(InputStream, WritableByteChannel).
+	 * Otherwise, bytes are copied through a buffer.
+	 * 
+	 * Neither stream is closed.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	public static long copyStream(InputStream is, OutputStream os) throws IOException {
+		if (os instanceof FileOutputStream) {
+			return copyStream(is, ((FileOutputStream) os).getChannel());
+		}
+
+		long bytesTotal = 0;
+		byte[] buf = new byte[COPY_BUFFER_SIZE];
+		int len;
+		while ((len = is.read(buf)) >= 0) {
+			os.write(buf, 0, len);
+			bytesTotal += len;
+		}
+		return bytesTotal;
+	}
+
+	/**
+	 * Copies all remaining bytes from an InputStream to a channel.
+	 * 
+	 * Streams backed by files (FileInputStream, and those of FTLPack
+	 * and FolderPack) are transferred channel-to-channel, which lets
+	 * the OS move the bytes without copying them through the heap.
+	 * Other streams are copied through a buffer.
+	 * 
+	 * Neither the stream nor the channel is closed.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	public static long copyStream(InputStream is, WritableByteChannel dst) throws IOException {
+		if (is instanceof FileChannelRegionInputStream) {
+			return ((FileChannelRegionInputStream) is).transferTo(dst);
+		}
+		if (is instanceof ByteBufferBackedInputStream) {
+			return ((ByteBufferBackedInputStream) is).transferTo(dst);
+		}
+		long bytesTotal = 0;
+		if (is instanceof FileInputStream) {
+			FileChannel src = ((FileInputStream) is).getChannel();
+			long pos = src.position();
+			long size = src.size();
+			// Special files (pipes, devices) may not report a size.
+			if (size > pos) {
+				long start = pos;
+				while (pos < size) {
+					long len = src.transferTo(pos, size - pos, dst);
+					if (len <= 0) {
+						if (pos >= src.size())
+							throw new IOException("EOF prematurely reached copying stream.");
+						// No progress (eg. a full non-blocking channel), copy the rest through the buffer.
+						break;
+					}
+					pos += len;
+				}
+				src.position(pos);
+				if (pos >= size)
+					return pos - start;
+				bytesTotal = pos - start;
+			}
+		}
+
+		byte[] buf = new byte[COPY_BUFFER_SIZE];
+		ByteBuffer byteBuf = ByteBuffer.wrap(buf);
+		int len;
+		while ((len = is.read(buf)) >= 0) {
+			byteBuf.clear();
+			byteBuf.limit(len);
+			while (byteBuf.hasRemaining())
+				dst.write(byteBuf);
+			bytesTotal += len;
+		}
+		return bytesTotal;
+	}
+
 	/**
 	 * Calculates an MD5 hash of data from an InputStream.
 	 * 
@@ -105,9 +207,15 @@ public class FTLDat {
 			md.update(buf, 0, len);
 		}
 
-		byte[] hashBytes = md.digest();
+		return toHexString(md.digest());
+	}
+
+	/**
+	 * Returns bytes as a lowercase hexadecimal string.
+	 */
+	private static String toHexString(byte[] bytes) {
 		StringBuilder hashStringBuf = new StringBuilder();
-		for (byte b : hashBytes) {
+		for (byte b : bytes) {
 			hashStringBuf.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
 		}
 		return hashStringBuf.toString();
@@ -188,6 +296,21 @@ public class FTLDat {
 		}
 	}
 
+	/**
+	 * Receives progress reports from FTLPack.repack(), and can cancel it.
+	 */
+	public interface RepackMonitor {
+		/**
+		 * Called as the repacked dat is written.
+		 */
+		public void progress(long bytesWritten, long bytesTotal);
+
+		/**
+		 * Returns true to abandon the repack, leaving the dat as it was.
+		 */
+		public boolean isCancelled();
+	}
+
 	public abstract static class AbstractPack {
 
 		/**
@@ -225,6 +348,48 @@ public class FTLDat {
 			throw new UnsupportedOperationException();
 		}
 
+		/**
+		 * Writes the contents of all files whose innerPaths match a pattern
+		 * into a directory, at the same relative paths.
+		 * 
+		 * @param pattern
+		 *            pattern that innerPaths must match in their entirety, or null to extract every file
+		 * @param dstDir
+		 *            the directory to extract into
+		 * @return the extracted innerPaths
+		 */
+		public List<String> extractAll(Pattern pattern, File dstDir) throws IOException {
+			List<String> result = new ArrayList<String>();
+			for (String innerPath : list()) {
+				if (pattern == null || pattern.matcher(innerPath).matches()) {
+					extractTo(innerPath, dstDir);
+					result.add(innerPath);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Writes the contents of the file with innerPath into a directory,
+		 * at the same relative path.
+		 */
+		protected void extractTo(String innerPath, File dstDir) throws IOException {
+			File dstFile = new FolderPack(dstDir).getFile(innerPath);
+			dstFile.getParentFile().mkdirs();
+
+			FileOutputStream os = null;
+			try {
+				os = new FileOutputStream(dstFile);
+				extractTo(innerPath, os);
+			} finally {
+				try {
+					if (os != null)
+						os.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
 		/**
 		 * Removes the file with innerPath from the pack.
 		 */
@@ -326,11 +491,7 @@ public class FTLDat {
 			try {
 				os = new FileOutputStream(dstFile);
 
-				byte[] buf = new byte[4096];
-				int len;
-				while ((len = is.read(buf)) >= 0) {
-					os.write(buf, 0, len);
-				}
+				copyStream(is, os);
 			} finally {
 				try {
 					if (os != null)
@@ -348,11 +509,7 @@ public class FTLDat {
 			try {
 				is = new FileInputStream(srcFile);
 
-				byte[] buf = new byte[4096];
-				int len;
-				while ((len = is.read(buf)) >= 0) {
-					os.write(buf, 0, len);
-				}
+				copyStream(is, os);
 			} finally {
 				try {
 					if (is != null)
@@ -403,14 +560,67 @@ public class FTLDat {
 	}
 
 	public static class FTLPack extends AbstractPack {
+		/** Largest region of the file mapped at once in mapped mode, unless a single innerFile is larger. */
+		private static final long MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+		/** Size of the buffer through which innerFile headers are read. */
+		private static final int INDEX_READ_BUFFER_SIZE = 16 * 1024;
+		/** Size of the buffer through which a batch's innerFiles are written. */
+		private static final int BATCH_WRITE_BUFFER_SIZE = 64 * 1024;
+		/** Most bytes moved by one transfer while repacking, between progress reports. */
+		private static final long REPACK_TRANSFER_SIZE = 8 * 1024 * 1024;
+
 		private CharsetEncoder asciiEncoder = Charset.forName("US-ASCII").newEncoder();
 
 		private File datFile = null;
+		private String mode = null;
 		private RandomAccessFile raf = null;
-		private ArrayList<DatEntry> entryList = null;
-		private Map<String, Integer> pathToIndexMap = null;
 		private ByteBuffer byteBuffer = null;
 
+		// Readers only use positional reads, which don't disturb each
+		// other, so any number may run at once. Anything that seeks,
+		// writes, or alters the index holds the write lock.
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		// The index, stored column-wise: the nth element of each array
+		// describes the nth header index. Vacant indeces have a null
+		// innerPath and an entryOffset of 0. The arrays may be longer
+		// than indexSize, to leave room for growIndex().
+		private int indexSize = 0;
+		private long[] entryOffsets = null;
+		private long[] dataOffsets = null;
+		private long[] dataSizes = null;
+		private String[] innerPaths = null;
+		// MD5 hashes of innerFiles, computed on demand (null until then).
+		private String[] hashes = null;
+		// Set when a hash is computed, cleared when saveHashes() writes it.
+		private final AtomicBoolean hashesDirty = new AtomicBoolean(false);
+		private int entryCount = 0;
+		// Lowest index that might be vacant.
+		private int firstVacancy = 0;
+
+		// Open-addressing hash table of innerPaths, resolving collisions
+		// by linear probing. Slots hold (index + 1), or 0 when empty.
+		private int[] pathSlots = null;
+
+		// Batch mode only: innerFiles to add (in order), already written past
+		// the end of the dat, and innerPaths to remove on commit. The file's
+		// length before the first of them was written (-1 until then) is
+		// what it's truncated back to, if the batch is rolled back.
+		private LinkedHashMap<String, BatchEntry> batchAdds = null;
+		private LinkedHashSet<String> batchRemovals = null;
+		private long batchStartLength = -1;
+
+		// Held while a batch's innerFile is written, and by anything that
+		// begins, alters or ends a batch. Unlike the write lock, it doesn't
+		// keep readers waiting while a slow source stream is read. It's
+		// always taken before the write lock, never while holding it.
+		private final ReentrantLock batchLock = new ReentrantLock();
+
+		// Mapped mode only: read-only windows over the file, and the window holding each entry.
+		private volatile MappedByteBuffer[] windows = null;
+		private long[] windowOffsets = null;
+		private int[] entryWindows = null;
+
 		/**
 		 * Opens or creates a dat in various modes.
 		 * When creating, the initial index size will be 2048.
@@ -426,9 +636,13 @@ public class FTLDat {
 		 * 
 		 * The mode must be one of the following:
 		 * r - opens an existing dat, read-only.
+		 * rm - opens an existing dat, read-only, memory-mapped.
 		 * r+ - opens an existing dat, read/write.
 		 * w+ - creates a new empty dat, read/write.
 		 * 
+		 * When opening a dat that doesn't exist, one left behind by an
+		 * interrupted repack() is restored first, if there is one.
+		 * 
 		 * @param datFile
 		 *            a file to open/create
 		 * @param mode
@@ -438,14 +652,29 @@ public class FTLDat {
 		 */
 		public FTLPack(File datFile, String mode, int indexSize) throws IOException {
 			if (mode.equals("r")) {
+				if (!datFile.exists())
+					recoverRepack(datFile);
+				if (!datFile.exists())
+					throw new FileNotFoundException(String.format("The datFile was not found: %s", datFile.getPath()));
+
+				this.datFile = datFile;
+				raf = new RandomAccessFile(datFile, "r");
+				readIndex();
+			}
+			else if (mode.equals("rm")) {
+				if (!datFile.exists())
+					recoverRepack(datFile);
 				if (!datFile.exists())
 					throw new FileNotFoundException(String.format("The datFile was not found: %s", datFile.getPath()));
 
 				this.datFile = datFile;
 				raf = new RandomAccessFile(datFile, "r");
 				readIndex();
+				mapWindows();
 			}
 			else if (mode.equals("r+")) {
+				if (!datFile.exists())
+					recoverRepack(datFile);
 				if (!datFile.exists())
 					throw new FileNotFoundException(String.format("The datFile was not found: %s", datFile.getPath()));
 
@@ -459,8 +688,42 @@ public class FTLDat {
 				createIndex(indexSize);
 			}
 			else {
-				throw new IllegalArgumentException(String.format("FTLPack constructor's mode arg was not 'r', 'r+', or 'w+' (%s).", mode));
+				throw new IllegalArgumentException(String.format("FTLPack constructor's mode arg was not 'r', 'rm', 'r+', or 'w+' (%s).", mode));
+			}
+			this.mode = mode;
+		}
+
+		/**
+		 * Puts back a dat that a crash, while repack() was swapping files,
+		 * left under a temporary name.
+		 * 
+		 * Prefers the newest "*.old" file (the original, moved aside),
+		 * and otherwise the newest "*.repack" file (the copy, which is
+		 * complete by the time it's renamed). Does nothing if neither exists.
+		 * 
+		 * @see #repack(double, RepackMonitor)
+		 */
+		private static void recoverRepack(File datFile) throws IOException {
+			File dir = datFile.getAbsoluteFile().getParentFile();
+			File[] siblings = dir.listFiles();
+			if (siblings == null)
+				return;
+
+			File newestOld = null;
+			File newestRepack = null;
+			for (File f : siblings) {
+				String name = f.getName();
+				if (!f.isFile() || !name.startsWith(datFile.getName()))
+					continue;
+				if (name.endsWith(".old") && (newestOld == null || f.lastModified() > newestOld.lastModified()))
+					newestOld = f;
+				else if (name.endsWith(".repack") && (newestRepack == null || f.lastModified() > newestRepack.lastModified()))
+					newestRepack = f;
 			}
+
+			File leftover = newestOld != null ? newestOld : newestRepack;
+			if (leftover != null && !leftover.renameTo(datFile))
+				throw new IOException(String.format("Could not restore the datFile from an interrupted repack: %s (left at %s)", datFile.getPath(), leftover.getPath()));
 		}
 
 		/**
@@ -526,11 +789,7 @@ public class FTLDat {
 		 * WARNING: This will erase the file.
 		 */
 		private void createIndex(int indexSize) throws IOException {
-			entryList = new ArrayList<DatEntry>(indexSize);
-			for (int i = 0; i < indexSize; i++)
-				entryList.add(null);
-
-			pathToIndexMap = new HashMap<String, Integer>(indexSize);
+			allocateIndex(indexSize);
 
 			raf.seek(0);
 			raf.setLength(0);
@@ -539,47 +798,417 @@ public class FTLDat {
 				writeLittleUInt(0);
 		}
 
+		/**
+		 * Replaces the in-memory index with an empty one, of the given size.
+		 */
+		private void allocateIndex(int size) {
+			indexSize = size;
+			entryOffsets = new long[size];
+			dataOffsets = new long[size];
+			dataSizes = new long[size];
+			innerPaths = new String[size];
+			hashes = new String[size];
+			entryCount = 0;
+			firstVacancy = 0;
+			pathSlots = new int[getPathTableSize(size)];
+		}
+
+		/**
+		 * Extends the in-memory index with vacant indeces, up to the given size.
+		 */
+		private void extendIndex(int size) {
+			if (size > entryOffsets.length) {
+				int capacity = Math.max(size, entryOffsets.length + entryOffsets.length / 2);
+				entryOffsets = Arrays.copyOf(entryOffsets, capacity);
+				dataOffsets = Arrays.copyOf(dataOffsets, capacity);
+				dataSizes = Arrays.copyOf(dataSizes, capacity);
+				innerPaths = Arrays.copyOf(innerPaths, capacity);
+				hashes = Arrays.copyOf(hashes, capacity);
+			}
+			indexSize = size;
+		}
+
+		/**
+		 * Returns the number of hash table slots needed to hold
+		 * count innerPaths, keeping the table at most half full.
+		 */
+		private static int getPathTableSize(int count) {
+			int size = 16;
+			while (size < count * 2 && size < (1 << 30))
+				size <<= 1;
+			return size;
+		}
+
+		private static int getPathHash(String innerPath) {
+			int h = innerPath.hashCode();
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * Returns the header index of an innerPath, or -1 if absent.
+		 */
+		private int indexOf(String innerPath) {
+			int mask = pathSlots.length - 1;
+			for (int s = getPathHash(innerPath) & mask;; s = (s + 1) & mask) {
+				int slot = pathSlots[s];
+				if (slot == 0)
+					return -1;
+				if (innerPaths[slot - 1].equals(innerPath))
+					return slot - 1;
+			}
+		}
+
+		/**
+		 * Adds the nth index's innerPath to the hash table.
+		 * The innerPath must not be in the table already.
+		 */
+		private void putPath(int n) {
+			if ((entryCount + 1) * 2 > pathSlots.length) {
+				pathSlots = new int[getPathTableSize(entryCount + 1)];
+				for (int i = 0; i < indexSize; i++) {
+					if (innerPaths[i] != null && i != n)
+						insertSlot(i);
+				}
+			}
+			insertSlot(n);
+			entryCount++;
+		}
+
+		private void insertSlot(int n) {
+			int mask = pathSlots.length - 1;
+			int s = getPathHash(innerPaths[n]) & mask;
+			while (pathSlots[s] != 0)
+				s = (s + 1) & mask;
+			pathSlots[s] = n + 1;
+		}
+
+		/**
+		 * Removes the nth index's innerPath from the hash table.
+		 *
+		 * Rather than leaving a tombstone, later slots of the probe
+		 * sequence are shifted back into the hole, so lookups never
+		 * have to step over removed paths.
+		 */
+		private void removePath(int n) {
+			int mask = pathSlots.length - 1;
+			int hole = getPathHash(innerPaths[n]) & mask;
+			while (pathSlots[hole] != n + 1)
+				hole = (hole + 1) & mask;
+
+			for (int s = (hole + 1) & mask; pathSlots[s] != 0; s = (s + 1) & mask) {
+				int home = getPathHash(innerPaths[pathSlots[s] - 1]) & mask;
+				// Move the slot only if the hole lies between its home and itself.
+				if (((s - home) & mask) >= ((s - hole) & mask)) {
+					pathSlots[hole] = pathSlots[s];
+					hole = s;
+				}
+			}
+			pathSlots[hole] = 0;
+			entryCount--;
+		}
+
+		/**
+		 * Returns the lowest vacant index, or -1 if there are none.
+		 */
+		private int findVacancy() {
+			for (int i = firstVacancy; i < indexSize; i++) {
+				if (innerPaths[i] == null && entryOffsets[i] == 0) {
+					firstVacancy = i;
+					return i;
+				}
+			}
+			firstVacancy = indexSize;
+			return -1;
+		}
+
+		/**
+		 * Returns the used indeces, in the order their entries appear in the file.
+		 *
+		 * Entry offsets are unsigned ints, and indeces are below 2^31,
+		 * so each pair is packed into one positive long, which can be
+		 * sorted without boxing.
+		 */
+		private int[] getIndecesByEntryOffset() {
+			long[] keys = new long[indexSize];
+			int count = 0;
+			for (int i = 0; i < indexSize; i++) {
+				if (entryOffsets[i] != 0)
+					keys[count++] = (entryOffsets[i] << 31) | i;
+			}
+			Arrays.sort(keys, 0, count);
+
+			int[] result = new int[count];
+			for (int i = 0; i < count; i++)
+				result[i] = (int) (keys[i] & 0x7FFFFFFFL);
+			return result;
+		}
+
+		/**
+		 * Returns the header index of an innerPath.
+		 *
+		 * @throws FileNotFoundException
+		 *             if the innerPath is absent
+		 */
+		private int getEntryIndex(String innerPath) throws FileNotFoundException {
+			if (innerPath.indexOf("\\") != -1)
+				throw new IllegalArgumentException("InnerPath contains backslashes: " + innerPath);
+			int entryIndex = indexOf(innerPath);
+			if (entryIndex == -1) {
+				throw new FileNotFoundException("InnerPath does not exist: " + innerPath);
+			}
+			return entryIndex;
+		}
+
 		/**
 		 * Reads (or re-reads) the index from the file.
+		 * 
+		 * The header table is read in one go. Then innerFile entries are
+		 * visited in the order they appear in the file, and their headers
+		 * are read through a buffer, so that neighboring small files
+		 * don't each need separate reads.
 		 */
 		private void readIndex() throws IOException {
-			raf.seek(0);
-			int indexSize = (int) readLittleUInt();
-			if (indexSize * 4 > raf.length()) {
+			FileChannel channel = raf.getChannel();
+			long fileLength = channel.size();
+
+			ByteBuffer buf = ByteBuffer.allocate(4);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, buf, 0);
+			long indexSizeLong = buf.getInt(0) & 0x00000000FFFFFFFFL;
+			if (getHeaderIndexPosition(0) + indexSizeLong * 4 > fileLength) {
 				throw new IOException(String.format("Corrupt dat file (%s): Its header claims to be larger than the entire file.", getName()));
 			}
+			int indexSize = (int) indexSizeLong;
 
-			entryList = new ArrayList<DatEntry>(indexSize);
-			for (int i = 0; i < indexSize; i++)
-				entryList.add(null);
+			ByteBuffer headerBuf = ByteBuffer.allocate(indexSize * 4);
+			headerBuf.order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, headerBuf, getHeaderIndexPosition(0));
 
-			pathToIndexMap = new HashMap<String, Integer>(indexSize);
+			allocateIndex(indexSize);
 
-			// Store partial DatEntry objects in entryList (leaving nulls where absent).
+			// Store entry offsets (leaving 0 where absent).
 			for (int i = 0; i < indexSize; i++) {
-				long entryOffset = readLittleUInt();
+				entryOffsets[i] = headerBuf.getInt(i * 4) & 0x00000000FFFFFFFFL;
+			}
+			headerBuf = null; // GC hint.
+
+			int[] order = getIndecesByEntryOffset();
+
+			buf = ByteBuffer.allocate(INDEX_READ_BUFFER_SIZE);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			long bufOffset = 0;
+			buf.limit(0);
 
-				if (entryOffset != 0) {
-					DatEntry entry = new DatEntry();
-					entry.entryOffset = entryOffset;
-					entryList.set(i, entry);
+			for (int i : order) {
+				long entryOffset = entryOffsets[i];
+
+				// Entry header: 4-byte dataSize, 4-byte innerPath length, innerPath.
+				if (entryOffset < bufOffset || entryOffset + 8 > bufOffset + buf.limit()) {
+					bufOffset = entryOffset;
+					buf = fillIndexBuffer(channel, buf, bufOffset, 8, fileLength);
+				}
+				int pos = (int) (entryOffset - bufOffset);
+				dataSizes[i] = buf.getInt(pos) & 0x00000000FFFFFFFFL;
+				long strLen = buf.getInt(pos + 4) & 0x00000000FFFFFFFFL;
+				if (entryOffset + 8 + strLen > fileLength) {
+					throw new IOException(String.format("Corrupt dat file (%s): An entry's innerPath extends past the end of the file.", getName()));
+				}
+
+				if (entryOffset + 8 + strLen > bufOffset + buf.limit()) {
+					bufOffset = entryOffset;
+					buf = fillIndexBuffer(channel, buf, bufOffset, 8 + (int) strLen, fileLength);
 				}
+				pos = (int) (entryOffset - bufOffset);
+				String innerPath = new String(buf.array(), pos + 8, (int) strLen, asciiEncoder.charset().name());
+				dataOffsets[i] = entryOffset + 8 + strLen;
+
+				if (indexOf(innerPath) != -1) {
+					throw new IOException("InnerPath occurs more than once: " + innerPath);
+				}
+				innerPaths[i] = innerPath;
+				putPath(i);
 			}
+		}
 
-			for (int i = 0; i < indexSize; i++) {
-				DatEntry entry = entryList.get(i);
-				if (entry == null)
-					continue;
+		/**
+		 * Fills the buffer with bytes from the channel, starting at offset.
+		 * 
+		 * @param minLength
+		 *            number of bytes that must be read; the buffer is replaced with a larger one if needed
+		 * @return the buffer holding the bytes, with its limit set to the number of bytes read
+		 */
+		private static ByteBuffer fillIndexBuffer(FileChannel channel, ByteBuffer buf, long offset, int minLength, long fileLength) throws IOException {
+			if (buf.capacity() < minLength) {
+				buf = ByteBuffer.allocate(minLength);
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+			}
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), fileLength - offset));
+			if (buf.limit() < minLength) {
+				throw new IOException("EOF prematurely reached reading dat index.");
+			}
+			readFully(channel, buf, offset);
+			return buf;
+		}
+
+		/**
+		 * Reads from the channel at a position until the buffer has no room left.
+		 * The buffer's position will be reset to 0 afterward.
+		 */
+		private static void readFully(FileChannel channel, ByteBuffer buf, long offset) throws IOException {
+			buf.position(0);
+			while (buf.hasRemaining()) {
+				int len = channel.read(buf, offset + buf.position());
+				if (len == -1) {
+					throw new IOException("EOF prematurely reached reading dat.");
+				}
+			}
+			buf.position(0);
+		}
+
+		/**
+		 * Writes the buffer's remaining bytes to the channel, at a position.
+		 * 
+		 * @return the number of bytes written
+		 */
+		private static int writeFully(FileChannel channel, ByteBuffer buf, long offset) throws IOException {
+			int count = buf.remaining();
+			int start = buf.position();
+			while (buf.hasRemaining()) {
+				channel.write(buf, offset + buf.position() - start);
+			}
+			return count;
+		}
+
+		/**
+		 * Maps the file's innerFiles into memory, in windows of at most
+		 * MAX_WINDOW_SIZE bytes. Each innerFile lies entirely within one
+		 * window, so it can be handed out as a slice of it.
+		 * 
+		 * If the file can't be mapped (eg. the address space of a 32bit
+		 * JVM is exhausted), regular reads will be used instead.
+		 */
+		private void mapWindows() throws IOException {
+			int[] order = getIndecesByEntryOffset();
 
-				raf.seek(entry.entryOffset);
-				entry.dataSize = readLittleUInt();
-				entry.innerPath = readLittleUString();
-				entry.dataOffset = raf.getChannel().position();
+			FileChannel channel = raf.getChannel();
+			List<MappedByteBuffer> windowList = new ArrayList<MappedByteBuffer>();
+			List<Long> offsetList = new ArrayList<Long>();
+			int[] entryWindowArray = new int[indexSize];
 
-				if (pathToIndexMap.containsKey(entry.innerPath)) {
-					throw new IOException("InnerPath occurs more than once: " + entry.innerPath);
+			try {
+				long windowStart = -1;
+				long windowEnd = -1;
+				for (int i : order) {
+					long entryEnd = dataOffsets[i] + dataSizes[i];
+
+					if (windowStart == -1 || entryEnd - windowStart > MAX_WINDOW_SIZE) {
+						if (windowStart != -1) {
+							windowList.add(channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart));
+							offsetList.add(windowStart);
+						}
+						windowStart = dataOffsets[i];
+						windowEnd = entryEnd;
+					}
+					windowEnd = Math.max(windowEnd, entryEnd);
+					entryWindowArray[i] = windowList.size();
+				}
+				if (windowStart != -1) {
+					windowList.add(channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart));
+					offsetList.add(windowStart);
+				}
+			}
+			catch (IOException e) {
+				// Fall back to regular reads.
+				for (MappedByteBuffer window : windowList)
+					unmap(window);
+				return;
+			}
+
+			windowOffsets = new long[offsetList.size()];
+			for (int i = 0; i < windowOffsets.length; i++)
+				windowOffsets[i] = offsetList.get(i);
+			entryWindows = entryWindowArray;
+			windows = windowList.toArray(new MappedByteBuffer[windowList.size()]);
+		}
+
+		/**
+		 * Releases a mapped buffer immediately, rather than whenever it
+		 * gets garbage collected. There's no public API for this, so
+		 * failures are ignored, and the buffer is left to the GC.
+		 * 
+		 * The buffer must not be accessed afterward.
+		 */
+		private static void unmap(MappedByteBuffer buf) {
+			try {
+				// Java 6-8: DirectByteBuffer.cleaner().clean()
+				Method cleanerMethod = buf.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buf);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+			catch (Exception e) {
+				try {
+					// Java 9+: Unsafe.invokeCleaner(buf)
+					Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+					Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+					unsafeField.setAccessible(true);
+					Object unsafe = unsafeField.get(null);
+					unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buf);
+				}
+				catch (Exception f) {
+				}
+			}
+		}
+
+		/**
+		 * Returns whether this dat was opened in mapped mode, and was
+		 * successfully mapped.
+		 */
+		public boolean isMapped() {
+			return windows != null;
+		}
+
+		/**
+		 * Returns a read-only buffer with the contents of an innerFile.
+		 * 
+		 * In mapped mode, this is a zero-copy slice of the mapped file.
+		 * It is NOT safe to use once this dat is closed: close() unmaps
+		 * the file, and touching an unmapped buffer can crash the JVM.
+		 * So it's only used while holding the read lock, or by streams
+		 * that take it for each read. Otherwise, the bytes are read into
+		 * a new heap buffer.
+		 */
+		ByteBuffer getByteBuffer(String innerPath) throws FileNotFoundException, IOException {
+			lock.readLock().lock();
+			try {
+				int entryIndex = getEntryIndex(innerPath);
+				long dataOffset = dataOffsets[entryIndex];
+				long dataSize = dataSizes[entryIndex];
+
+				MappedByteBuffer[] tmpWindows = windows;
+				if (tmpWindows != null) {
+					ByteBuffer slice = tmpWindows[entryWindows[entryIndex]].duplicate();
+					int start = (int) (dataOffset - windowOffsets[entryWindows[entryIndex]]);
+					slice.limit(start + (int) dataSize);
+					slice.position(start);
+					return slice.slice().asReadOnlyBuffer();
+				}
+
+				ByteBuffer result = ByteBuffer.allocate((int) dataSize);
+				FileChannel channel = raf.getChannel();
+				while (result.hasRemaining()) {
+					int len = channel.read(result, dataOffset + result.position());
+					if (len == -1) {
+						throw new IOException("EOF prematurely reached reading innerPath: " + innerPath);
+					}
 				}
-				pathToIndexMap.put(entry.innerPath, new Integer(i));
+				result.flip();
+				return result.asReadOnlyBuffer();
+			}
+			finally {
+				lock.readLock().unlock();
 			}
 		}
 
@@ -589,30 +1218,38 @@ public class FTLDat {
 		 * Used by growIndex().
 		 */
 		private void moveEntryToEOF(int n) throws IOException {
-			DatEntry entry = entryList.get(n);
-			long oldOffset = entry.entryOffset;
+			long oldOffset = entryOffsets[n];
 			long newOffset = raf.length();
 
-			long totalBytes = (entry.dataOffset - entry.entryOffset) + entry.dataSize;
-			long bytesRemaining = totalBytes;
-			byte[] buf = new byte[4096];
-			int len;
-			while (bytesRemaining > 0) {
-				raf.seek(oldOffset + totalBytes - bytesRemaining);
-				len = raf.read(buf, 0, (int) Math.min(buf.length, bytesRemaining));
-				if (len == -1) {
-					throw new IOException("EOF prematurely reached reading innerPath: " + entry.innerPath);
-				}
+			long totalBytes = (dataOffsets[n] - entryOffsets[n]) + dataSizes[n];
+			long bytesDone = 0;
 
-				raf.seek(newOffset + totalBytes - bytesRemaining);
-				raf.write(buf, 0, len);
-				bytesRemaining -= len;
+			// Copy channel-to-channel, which spares the seeks, and the trip through the heap.
+			FileChannel channel = raf.getChannel();
+			while (bytesDone < totalBytes) {
+				long len = channel.transferTo(oldOffset + bytesDone, totalBytes - bytesDone, channel.position(newOffset + bytesDone));
+				if (len <= 0)
+					break;
+				bytesDone += len;
+			}
+			if (bytesDone < totalBytes) {
+				// The transfer made no progress. Copy the rest through a buffer.
+				ByteBuffer buf = ByteBuffer.allocate((int) Math.min(BATCH_WRITE_BUFFER_SIZE, totalBytes - bytesDone));
+				while (bytesDone < totalBytes) {
+					buf.clear();
+					buf.limit((int) Math.min(buf.capacity(), totalBytes - bytesDone));
+					if (channel.read(buf, oldOffset + bytesDone) == -1) {
+						throw new IOException("EOF prematurely reached reading innerPath: " + innerPaths[n]);
+					}
+					buf.flip();
+					bytesDone += writeFully(channel, buf, newOffset + bytesDone);
+				}
 			}
 			// Update the index.
 			raf.seek(getHeaderIndexPosition(n));
 			writeLittleUInt(newOffset);
-			entry.dataOffset = (newOffset + (entry.dataOffset - entry.entryOffset));
-			entry.entryOffset = newOffset;
+			dataOffsets[n] = (newOffset + (dataOffsets[n] - entryOffsets[n]));
+			entryOffsets[n] = newOffset;
 		}
 
 		/**
@@ -625,9 +1262,7 @@ public class FTLDat {
 			int freeRoom = -1;
 
 			while (true) {
-				int vacancyCount = Collections.frequency(entryList, null);
-
-				if (entryList.size() - vacancyCount == 0) {
+				if (entryCount == 0) {
 					// There is no innerFile after the index. We can grow
 					// as much as we like. Limit ourselves to amount.
 					freeRoom = amount;
@@ -637,15 +1272,14 @@ public class FTLDat {
 					// Find the used index with the lowest entryOffset.
 					int earliestUsedIndex = -1;
 					long minEntryOffset = Long.MAX_VALUE;
-					for (int i = 0; i < entryList.size(); i++) {
-						DatEntry entry = entryList.get(i);
-						if (entry.entryOffset < minEntryOffset) {
+					for (int i = 0; i < indexSize; i++) {
+						if (entryOffsets[i] != 0 && entryOffsets[i] < minEntryOffset) {
 							earliestUsedIndex = i;
-							minEntryOffset = entry.entryOffset;
+							minEntryOffset = entryOffsets[i];
 						}
 					}
 					// (region between header and first innerFile entry) / (possible 4-byte ints).
-					freeRoom = (int) ((minEntryOffset - getHeaderIndexPosition(entryList.size())) / 4);
+					freeRoom = (int) ((minEntryOffset - getHeaderIndexPosition(indexSize)) / 4);
 
 					if (freeRoom >= amount) {
 						freeRoom = amount; // We don't need hundreds of thousands more.
@@ -657,12 +1291,10 @@ public class FTLDat {
 				}
 			}
 			// Expand the header to claim the vacated region.
-			for (int i = 0; i < freeRoom; i++) {
-				entryList.add(null);
-			}
+			extendIndex(indexSize + freeRoom);
 			raf.seek(0);
-			writeLittleUInt(entryList.size());
-			raf.seek(getHeaderIndexPosition(entryList.size() - freeRoom));
+			writeLittleUInt(indexSize);
+			raf.seek(getHeaderIndexPosition(indexSize - freeRoom));
 			for (int i = 0; i < freeRoom; i++) {
 				writeLittleUInt(0);
 			}
@@ -673,260 +1305,1160 @@ public class FTLDat {
 			return datFile.getName();
 		}
 
-		@Override
-		public List<String> list() {
-			List<String> result = new ArrayList<String>();
-			result.addAll(pathToIndexMap.keySet());
-			return result;
+		/**
+		 * Returns the file backing this dat.
+		 */
+		public File getDatFile() {
+			return datFile;
 		}
 
 		@Override
-		public List<PathAndSize> listSizes() {
-			List<PathAndSize> result = new ArrayList<PathAndSize>();
-			for (DatEntry entry : entryList) {
-				if (entry == null)
-					continue;
-				PathAndSize pas = new PathAndSize(entry.innerPath, entry.dataSize);
-				result.add(pas);
+		public List<String> list() {
+			lock.readLock().lock();
+			try {
+				List<String> result = new ArrayList<String>(entryCount);
+				for (int i = 0; i < indexSize; i++) {
+					if (innerPaths[i] != null)
+						result.add(innerPaths[i]);
+				}
+				return result;
+			}
+			finally {
+				lock.readLock().unlock();
 			}
-			return result;
 		}
 
+		/**
+		 * Returns a list of pairs of (innerPath, filesize).
+		 * 
+		 * The list is a read-only view of the index, creating
+		 * its elements on demand, and must not be used after
+		 * the dat is modified.
+		 */
 		@Override
-		public void add(String innerPath, InputStream is) throws IOException {
-			if (innerPath.indexOf("\\") != -1)
+		public List<PathAndSize> listSizes() {
+			lock.readLock().lock();
+			try {
+				final int[] used = new int[entryCount];
+				int count = 0;
+				for (int i = 0; i < indexSize; i++) {
+					if (innerPaths[i] != null)
+						used[count++] = i;
+				}
+
+				return new AbstractList<PathAndSize>() {
+					@Override
+					public PathAndSize get(int n) {
+						int i = used[n];
+						return new PathAndSize(innerPaths[i], dataSizes[i]);
+					}
+
+					@Override
+					public int size() {
+						return used.length;
+					}
+				};
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Adds bytes read from an InputStream to the dat, as innerPath.
+		 * 
+		 * In batch mode, the innerFile is written past the end of the
+		 * dat right away, but the header doesn't list it until
+		 * commitBatch(). The stream is read without holding the lock
+		 * that readers wait on, so a slow stream only holds up the
+		 * batch itself.
+		 */
+		@Override
+		public void add(String innerPath, InputStream is) throws IOException {
+			if (innerPath.indexOf("\\") != -1)
 				throw new IllegalArgumentException("InnerPath contains backslashes: " + innerPath);
-			if (pathToIndexMap.containsKey(innerPath)) {
-				throw new IOException("InnerPath already exists: " + innerPath);
+
+			batchLock.lock();
+			try {
+				long entryOffset;
+				lock.writeLock().lock();
+				try {
+					if (batchAdds != null ? batchAdds.containsKey(innerPath) || (indexOf(innerPath) != -1 && !batchRemovals.contains(innerPath)) : indexOf(innerPath) != -1) {
+						throw new IOException("InnerPath already exists: " + innerPath);
+					}
+					if (!asciiEncoder.canEncode(innerPath)) {
+						throw new IllegalArgumentException("InnerPath contains non-ascii characters: " + innerPath);
+					}
+
+					if (batchAdds == null) {
+						addEntry(innerPath, is);
+						return;
+					}
+
+					entryOffset = raf.length();
+					if (batchStartLength == -1)
+						batchStartLength = entryOffset;
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+
+				// Nothing else writes past the end of the dat during a batch,
+				// and readers only look at innerFiles the header lists.
+				BatchEntry entry = null;
+				try {
+					entry = writeBatchEntry(innerPath, is, entryOffset);
+				}
+				finally {
+					if (entry == null)
+						truncateBatch(entryOffset);
+				}
+
+				lock.writeLock().lock();
+				try {
+					batchAdds.put(innerPath, entry);
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
 			}
-			if (!asciiEncoder.canEncode(innerPath)) {
-				throw new IllegalArgumentException("InnerPath contains non-ascii characters: " + innerPath);
+			finally {
+				batchLock.unlock();
 			}
+		}
 
+		/**
+		 * Appends an innerFile to the dat, and lists it in the header.
+		 * Used by add(), outside of batch mode.
+		 */
+		private void addEntry(String innerPath, InputStream is) throws IOException {
 			// Find a vacancy in the header, or create one.
-			int entryIndex = entryList.indexOf(null);
+			int entryIndex = findVacancy();
 			if (entryIndex == -1) {
 				growIndex(50); // Save effort for 49 future adds.
-				entryIndex = entryList.indexOf(null);
+				entryIndex = findVacancy();
 			}
 
-			DatEntry entry = new DatEntry();
-			entry.entryOffset = raf.length();
-			entry.innerPath = innerPath;
-			entry.dataSize = 0; // Write this later.
+			long entryOffset = raf.length();
+			long dataSize = 0; // Write this later.
 
 			raf.seek(getHeaderIndexPosition(entryIndex));
-			writeLittleUInt(entry.entryOffset);
+			writeLittleUInt(entryOffset);
 
-			raf.seek(entry.entryOffset);
-			writeLittleUInt(entry.dataSize);
-			writeLittleUString(entry.innerPath);
-			entry.dataOffset = raf.getChannel().position();
+			raf.seek(entryOffset);
+			writeLittleUInt(dataSize);
+			writeLittleUString(innerPath);
+			long dataOffset = raf.getChannel().position();
 
-			byte[] buf = new byte[4096];
+			copyStream(is, raf.getChannel());
+
+			// Go back and fill in the dataSize.
+			dataSize = raf.getChannel().position() - dataOffset;
+			raf.seek(entryOffset);
+			writeLittleUInt(dataSize);
+
+			entryOffsets[entryIndex] = entryOffset;
+			dataOffsets[entryIndex] = dataOffset;
+			dataSizes[entryIndex] = dataSize;
+			innerPaths[entryIndex] = innerPath;
+			hashes[entryIndex] = null;
+			putPath(entryIndex);
+		}
+
+		/**
+		 * Writes an innerFile's entry at an offset past the end of the dat,
+		 * without listing it in the header. Used by add(), in batch mode.
+		 * 
+		 * The stream is read into a buffer, which is written each time it
+		 * fills up, so the innerFile never has to fit in memory at once.
+		 */
+		private BatchEntry writeBatchEntry(String innerPath, InputStream is, long entryOffset) throws IOException {
+			byte[] pathBytes = innerPath.getBytes(asciiEncoder.charset().name());
+			FileChannel channel = raf.getChannel();
+
+			// Entry header: 4-byte dataSize (filled in last), 4-byte innerPath length, innerPath.
+			ByteBuffer buf = ByteBuffer.allocate(Math.max(BATCH_WRITE_BUFFER_SIZE, 8 + pathBytes.length));
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(0);
+			buf.putInt(pathBytes.length);
+			buf.put(pathBytes);
+
+			long bufOffset = entryOffset;
+			long dataSize = 0;
 			int len;
-			while ((len = is.read(buf)) >= 0) {
-				raf.write(buf, 0, len);
+			while ((len = is.read(buf.array(), buf.position(), buf.remaining())) != -1) {
+				buf.position(buf.position() + len);
+				dataSize += len;
+				if (!buf.hasRemaining()) {
+					buf.flip();
+					bufOffset += writeFully(channel, buf, bufOffset);
+					buf.clear();
+				}
 			}
 
-			// Go back and fill in the dataSize.
-			entry.dataSize = raf.getChannel().position() - entry.dataOffset;
-			raf.seek(entry.entryOffset);
-			writeLittleUInt(entry.dataSize);
+			if (bufOffset == entryOffset) {
+				// Small innerFiles fit in the buffer, and take a single write.
+				buf.putInt(0, (int) dataSize);
+				buf.flip();
+				writeFully(channel, buf, bufOffset);
+			}
+			else {
+				buf.flip();
+				writeFully(channel, buf, bufOffset);
+
+				ByteBuffer sizeBuf = ByteBuffer.allocate(4);
+				sizeBuf.order(ByteOrder.LITTLE_ENDIAN);
+				sizeBuf.putInt(0, (int) dataSize);
+				writeFully(channel, sizeBuf, entryOffset);
+			}
+
+			return new BatchEntry(entryOffset, entryOffset + 8 + pathBytes.length, dataSize);
+		}
 
-			entryList.set(entryIndex, entry);
-			pathToIndexMap.put(innerPath, entryIndex);
+		/**
+		 * Truncates bytes written past the end of the dat during a batch.
+		 * 
+		 * If that fails, they're left as a gap, to be reclaimed by repack(),
+		 * since the header doesn't list them anyway.
+		 */
+		private void truncateBatch(long length) {
+			lock.writeLock().lock();
+			try {
+				if (raf.length() > length)
+					raf.setLength(length);
+			}
+			catch (IOException e) {
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
 		}
 
+		/**
+		 * Writes the contents of the file with innerPath to an OutputStream.
+		 * 
+		 * When writing to a FileOutputStream, the bytes are transferred
+		 * channel-to-channel, without being copied through the heap.
+		 */
 		@Override
 		public void extractTo(String innerPath, OutputStream os) throws FileNotFoundException, IOException {
-			if (innerPath.indexOf("\\") != -1)
-				throw new IllegalArgumentException("InnerPath contains backslashes: " + innerPath);
-			if (!pathToIndexMap.containsKey(innerPath)) {
-				throw new FileNotFoundException("InnerPath does not exist: " + innerPath);
+			lock.readLock().lock();
+			try {
+				InputStream is = getInputStream(innerPath);
+				try {
+					copyStream(is, os);
+				} finally {
+					is.close();
+				}
 			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
 
-			int entryIndex = pathToIndexMap.get(innerPath).intValue();
-			DatEntry entry = entryList.get(entryIndex);
+		/**
+		 * Writes the contents of all files whose innerPaths match a pattern
+		 * into a directory, at the same relative paths.
+		 * 
+		 * Files are extracted in the order they appear in the dat,
+		 * so that it's read sequentially.
+		 * 
+		 * @param pattern
+		 *            pattern that innerPaths must match in their entirety, or null to extract every file
+		 * @param dstDir
+		 *            the directory to extract into
+		 * @return the extracted innerPaths
+		 */
+		@Override
+		public List<String> extractAll(Pattern pattern, File dstDir) throws IOException {
+			lock.readLock().lock();
+			try {
+				List<String> result = new ArrayList<String>();
+				for (int i : getIndecesByEntryOffset()) {
+					String innerPath = innerPaths[i];
+					if (pattern == null || pattern.matcher(innerPath).matches()) {
+						extractTo(innerPath, dstDir);
+						result.add(innerPath);
+					}
+				}
+				return result;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Removes the innerFile with innerPath from the dat.
+		 * 
+		 * In batch mode, an innerFile added during the batch is
+		 * discarded, while others are only removed on commitBatch().
+		 */
+		@Override
+		public void remove(String innerPath) throws FileNotFoundException, IOException {
+			batchLock.lock();
+			try {
+				lock.writeLock().lock();
+				try {
+					if (batchAdds != null) {
+						BatchEntry entry = batchAdds.remove(innerPath);
+						if (entry == null) {
+							if (batchRemovals.contains(innerPath)) {
+								throw new FileNotFoundException("InnerPath does not exist: " + innerPath);
+							}
+							getEntryIndex(innerPath);
+							batchRemovals.add(innerPath);
+						}
+						else if (entry.dataOffset + entry.dataSize == raf.length()) {
+							// It was the last one written. Truncate.
+							raf.setLength(entry.entryOffset);
+						}
+						return;
+					}
 
-			raf.seek(entry.dataOffset);
+					int entryIndex = getEntryIndex(innerPath);
+					long entryOffset = entryOffsets[entryIndex];
+					long dataEnd = dataOffsets[entryIndex] + dataSizes[entryIndex];
 
-			long bytesRemaining = entry.dataSize;
-			byte[] buf = new byte[4096];
-			int len;
-			while (bytesRemaining > 0) {
-				raf.seek(entry.dataOffset + entry.dataSize - bytesRemaining);
-				len = raf.read(buf, 0, (int) Math.min(buf.length, bytesRemaining));
-				if (len == -1) {
-					throw new IOException("EOF prematurely reached reading innerPath: " + entry.innerPath);
+					removePath(entryIndex);
+					entryOffsets[entryIndex] = 0;
+					dataOffsets[entryIndex] = 0;
+					dataSizes[entryIndex] = 0;
+					innerPaths[entryIndex] = null;
+					hashes[entryIndex] = null;
+					firstVacancy = Math.min(firstVacancy, entryIndex);
+
+					raf.seek(getHeaderIndexPosition(entryIndex));
+					writeLittleUInt(0);
+
+					if (dataEnd == raf.length()) {
+						// Data appeared at the end. Truncate.
+						raf.setLength(entryOffset);
+					}
+				}
+				finally {
+					lock.writeLock().unlock();
 				}
+			}
+			finally {
+				batchLock.unlock();
+			}
+		}
 
-				os.write(buf, 0, len);
+		/**
+		 * Starts collecting adds and removals, to be applied together by commitBatch().
+		 * 
+		 * Until then, added innerFiles are only written past the end
+		 * of the file, and the header is left untouched, so other
+		 * methods (list(), contains(), getInputStream(), etc) keep
+		 * seeing the dat as it was before the batch.
+		 * 
+		 * @throws IllegalStateException if a batch is already in progress
+		 */
+		public void beginBatch() {
+			batchLock.lock();
+			try {
+				lock.writeLock().lock();
+				try {
+					if (batchAdds != null)
+						throw new IllegalStateException("A batch is already in progress: " + getName());
+					batchAdds = new LinkedHashMap<String, BatchEntry>();
+					batchRemovals = new LinkedHashSet<String>();
+					batchStartLength = -1;
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+			}
+			finally {
+				batchLock.unlock();
 			}
 		}
 
-		@Override
-		public void remove(String innerPath) throws FileNotFoundException, IOException {
-			if (innerPath.indexOf("\\") != -1)
-				throw new IllegalArgumentException("InnerPath contains backslashes: " + innerPath);
-			if (!pathToIndexMap.containsKey(innerPath)) {
-				throw new FileNotFoundException("InnerPath does not exist: " + innerPath);
+		/**
+		 * Returns whether a batch is in progress.
+		 */
+		public boolean isBatching() {
+			lock.readLock().lock();
+			try {
+				return batchAdds != null;
 			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
 
-			int entryIndex = pathToIndexMap.get(innerPath).intValue();
-			pathToIndexMap.remove(innerPath);
-			DatEntry removedEntry = entryList.set(entryIndex, null);
+		/**
+		 * Discards the adds and removals collected since beginBatch(),
+		 * truncating the innerFiles added since then.
+		 */
+		public void rollbackBatch() {
+			batchLock.lock();
+			try {
+				long startLength;
+				lock.writeLock().lock();
+				try {
+					if (batchAdds == null)
+						throw new IllegalStateException("No batch is in progress: " + getName());
+					startLength = batchStartLength;
+					batchAdds = null;
+					batchRemovals = null;
+					batchStartLength = -1;
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
 
-			raf.seek(getHeaderIndexPosition(entryIndex));
-			writeLittleUInt(0);
+				if (startLength != -1)
+					truncateBatch(startLength);
+			}
+			finally {
+				batchLock.unlock();
+			}
+		}
+
+		/**
+		 * Applies the adds and removals collected since beginBatch().
+		 * 
+		 * The index is grown once, to fit all the added innerFiles,
+		 * which were already written by add(). Then the header is
+		 * written once, listing them.
+		 * 
+		 * If this fails, the index and header are restored, and the
+		 * added innerFiles are truncated, so the dat is left as it was
+		 * before the batch. The exception is a failure after growing
+		 * the index had to move innerFiles to the end of the file:
+		 * that leaves the dat consistent, but can't be undone, since
+		 * the grown header overwrites where they were. Then the batch's
+		 * innerFiles are left as a gap instead, to be reclaimed by
+		 * repack(). Either way, the batch is over afterward.
+		 * 
+		 * Space used by removed innerFiles is left as a gap, too.
+		 */
+		public void commitBatch() throws IOException {
+			batchLock.lock();
+			try {
+				lock.writeLock().lock();
+				try {
+					if (batchAdds == null)
+						throw new IllegalStateException("No batch is in progress: " + getName());
+
+					LinkedHashMap<String, BatchEntry> adds = batchAdds;
+					LinkedHashSet<String> removals = batchRemovals;
+					long startLength = batchStartLength;
+					batchAdds = null;
+					batchRemovals = null;
+					batchStartLength = -1;
+
+					if (adds.isEmpty() && removals.isEmpty()) {
+						// Any innerFiles added were removed again.
+						if (startLength != -1)
+							raf.setLength(startLength);
+						return;
+					}
+
+					// Remember the index, in case it has to be restored.
+					IndexSnapshot snapshot = new IndexSnapshot();
+					long rollbackLength = startLength != -1 ? startLength : raf.length();
+					boolean headerWritten = false;
+					try {
+						// Precompute the index size needed, and grow it in one go.
+						int vacancyCount = indexSize - entryCount + removals.size();
+						if (adds.size() > vacancyCount) {
+							headerWritten = true;
+							long lengthBeforeGrowing = raf.length();
+							growIndex(adds.size() - vacancyCount);
+
+							if (raf.length() != lengthBeforeGrowing) {
+								// InnerFiles were moved past the batch's; keep them there.
+								snapshot = new IndexSnapshot();
+								rollbackLength = raf.length();
+							}
+						}
+
+						for (String innerPath : removals) {
+							int entryIndex = indexOf(innerPath);
+							removePath(entryIndex);
+							entryOffsets[entryIndex] = 0;
+							dataOffsets[entryIndex] = 0;
+							dataSizes[entryIndex] = 0;
+							innerPaths[entryIndex] = null;
+							hashes[entryIndex] = null;
+							firstVacancy = Math.min(firstVacancy, entryIndex);
+						}
+
+						for (Map.Entry<String, BatchEntry> add : adds.entrySet()) {
+							BatchEntry entry = add.getValue();
+
+							int entryIndex = findVacancy();
+							entryOffsets[entryIndex] = entry.entryOffset;
+							dataOffsets[entryIndex] = entry.dataOffset;
+							dataSizes[entryIndex] = entry.dataSize;
+							innerPaths[entryIndex] = add.getKey();
+							hashes[entryIndex] = null;
+							putPath(entryIndex);
+						}
+
+						headerWritten = true;
+						writeHeader();
+					}
+					catch (IOException e) {
+						rollbackCommit(snapshot, rollbackLength, headerWritten);
+						throw e;
+					}
+					catch (RuntimeException e) {
+						rollbackCommit(snapshot, rollbackLength, headerWritten);
+						throw e;
+					}
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+			}
+			finally {
+				batchLock.unlock();
+			}
+		}
+
+		/**
+		 * Restores the index and the file after a failed commitBatch().
+		 */
+		private void rollbackCommit(IndexSnapshot snapshot, long datLength, boolean headerWritten) {
+			snapshot.restore();
 
-			if (removedEntry.dataOffset + removedEntry.dataSize == raf.length()) {
-				// Data appeared at the end. Truncate.
-				raf.setLength(removedEntry.entryOffset);
+			try {
+				if (headerWritten)
+					writeHeader();
+				raf.setLength(datLength);
+			}
+			catch (IOException e) {
+				// Ignore, the caller gets the original exception.
 			}
 		}
 
+		/**
+		 * Writes the index size and the whole header table, in one write.
+		 */
+		private void writeHeader() throws IOException {
+			ByteBuffer header = ByteBuffer.allocate((int) getHeaderIndexPosition(indexSize));
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(indexSize);
+			for (int i = 0; i < indexSize; i++)
+				header.putInt((int) (entryOffsets[i] & 0x00000000FFFFFFFFL));
+			header.flip();
+			writeFully(raf.getChannel(), header, 0);
+		}
+
 		@Override
 		public boolean contains(String innerPath) {
-			if (innerPath.indexOf("\\") != -1)
-				throw new IllegalArgumentException("InnerPath contains backslashes: " + innerPath);
-			return pathToIndexMap.containsKey(innerPath);
+			lock.readLock().lock();
+			try {
+				if (innerPath.indexOf("\\") != -1)
+					throw new IllegalArgumentException("InnerPath contains backslashes: " + innerPath);
+				return indexOf(innerPath) != -1;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
 		}
 
 		@Override
 		public InputStream getInputStream(String innerPath) throws FileNotFoundException, IOException {
-			if (innerPath.indexOf("\\") != -1)
-				throw new IllegalArgumentException("InnerPath contains backslashes: " + innerPath);
-			if (!pathToIndexMap.containsKey(innerPath)) {
-				throw new FileNotFoundException("InnerPath does not exist: " + innerPath);
-			}
+			lock.readLock().lock();
+			try {
+				int entryIndex = getEntryIndex(innerPath);
+
+				if (windows != null) {
+					// Mapped windows are unmapped when this dat is closed, so
+					// the stream must refuse to touch them afterward. Each access
+					// holds the read lock, which keeps close() from unmapping the
+					// windows until it's done.
+					return new ByteBufferBackedInputStream(getByteBuffer(innerPath)) {
+						@Override
+						public int read() throws IOException {
+							lock.readLock().lock();
+							try {
+								if (windows == null)
+									throw new ClosedChannelException();
+								return super.read();
+							}
+							finally {
+								lock.readLock().unlock();
+							}
+						}
 
-			int entryIndex = pathToIndexMap.get(innerPath).intValue();
-			DatEntry entry = entryList.get(entryIndex);
+						@Override
+						public int read(byte[] b, int bOff, int bLen) throws IOException {
+							lock.readLock().lock();
+							try {
+								if (windows == null)
+									throw new ClosedChannelException();
+								return super.read(b, bOff, bLen);
+							}
+							finally {
+								lock.readLock().unlock();
+							}
+						}
 
-			// Create a stream that can only see this region.
-			// Multiple read-only streams can coexist (each has its own position).
-			InputStream stream = new FileChannelRegionInputStream(raf.getChannel(), entry.dataOffset, entry.dataSize);
+						@Override
+						public long transferTo(WritableByteChannel dst) throws IOException {
+							lock.readLock().lock();
+							try {
+								if (windows == null)
+									throw new ClosedChannelException();
+								return super.transferTo(dst);
+							}
+							finally {
+								lock.readLock().unlock();
+							}
+						}
+					};
+				}
 
-			// Mapped regions may not garbage collect promptly.
-			// That would keep the file in use: bad.
-			// Closing raf doesn't affect them. :/
-			// This method has best I/O performance though.
-			// MappedByteBuffer buf = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, entry.dataOffset, entry.dataSize );
-			// buf.load();
-			// InputStream stream = new ByteBufferBackedInputStream( buf );
+				// Create a stream that can only see this region.
+				// Multiple read-only streams can coexist (each has its own position).
+				InputStream stream = new FileChannelRegionInputStream(raf.getChannel(), dataOffsets[entryIndex], dataSizes[entryIndex]);
 
-			return stream;
+				// Mapped regions may not garbage collect promptly.
+				// That would keep the file in use: bad.
+				// Closing raf doesn't affect them. :/
+				// Mapped mode ("rm") unmaps them explicitly in close() instead.
+
+				return stream;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
 		}
 
+		/**
+		 * Closes this dat. In mapped mode, the mapped windows are released,
+		 * so buffers from getByteBuffer() must not be used afterward. Open
+		 * streams from getInputStream() throw ClosedChannelException instead.
+		 */
 		@Override
 		public void close() throws IOException {
-			raf.close();
+			lock.writeLock().lock();
+			try {
+				MappedByteBuffer[] tmpWindows = windows;
+				windows = null;
+				if (tmpWindows != null) {
+					for (MappedByteBuffer window : tmpWindows)
+						unmap(window);
+				}
+				raf.close();
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Returns the size of an innerFile, in bytes.
+		 */
+		public long getSize(String innerPath) throws FileNotFoundException {
+			lock.readLock().lock();
+			try {
+				return dataSizes[getEntryIndex(innerPath)];
+			}
+			finally {
+				lock.readLock().unlock();
+			}
 		}
 
+		/**
+		 * Returns the MD5 hash of an innerFile, as lowercase hexadecimal.
+		 * 
+		 * Hashes are computed on first request, and kept until the
+		 * innerFile is removed or replaced.
+		 * 
+		 * @see #hashAll(int)
+		 */
+		public String getHash(String innerPath) throws FileNotFoundException, IOException {
+			lock.readLock().lock();
+			try {
+				int entryIndex = getEntryIndex(innerPath);
+				String hash = hashes[entryIndex];
+				if (hash == null) {
+					try {
+						if (windows != null) {
+							MessageDigest md = MessageDigest.getInstance("MD5");
+							md.update(getByteBuffer(innerPath));
+							hash = toHexString(md.digest());
+						}
+						else {
+							InputStream is = getInputStream(innerPath);
+							try {
+								hash = calcStreamMD5(is);
+							}
+							finally {
+								is.close();
+							}
+						}
+					}
+					catch (NoSuchAlgorithmException e) {
+						throw new IOException("MD5 is not supported: " + e.getMessage());
+					}
+					// Concurrent readers may race to store the same value, harmlessly.
+					hashes[entryIndex] = hash;
+					hashesDirty.set(true);
+				}
+				return hash;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Computes the hashes of all innerFiles that don't have one yet,
+		 * reading the dat on a pool of threads.
+		 * 
+		 * @param threads
+		 *            number of threads to use. Must be at least 1.
+		 */
+		public void hashAll(int threads) throws IOException {
+			if (threads < 1)
+				throw new IllegalArgumentException("Thread count must be at least 1.");
+
+			List<String> pendingPaths = new ArrayList<String>();
+			lock.readLock().lock();
+			try {
+				for (int i : getIndecesByEntryOffset()) {
+					if (hashes[i] == null)
+						pendingPaths.add(innerPaths[i]);
+				}
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+			if (pendingPaths.isEmpty())
+				return;
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<String>> futures = new ArrayList<Future<String>>(pendingPaths.size());
+				for (final String innerPath : pendingPaths) {
+					futures.add(executor.submit(new Callable<String>() {
+						public String call() throws IOException {
+							return getHash(innerPath);
+						}
+					}));
+				}
+				for (Future<String> future : futures) {
+					try {
+						future.get();
+					}
+					catch (ExecutionException e) {
+						if (e.getCause() instanceof IOException)
+							throw (IOException) e.getCause();
+						throw new IOException("Could not hash innerFile: " + e.getCause());
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while hashing: " + getName());
+					}
+				}
+			}
+			finally {
+				executor.shutdownNow();
+			}
+		}
+
+		/**
+		 * Writes the hashes computed so far to a file, unless
+		 * none were computed since they were last saved.
+		 * 
+		 * The file is keyed by the size and modification time of the dat,
+		 * so that loadHashes() can tell whether they still apply.
+		 * 
+		 * @return true if the file was written
+		 */
+		public boolean saveHashes(File hashFile) throws IOException {
+			// Cleared before writing, so that a hash computed meanwhile marks it again.
+			if (!hashesDirty.getAndSet(false))
+				return false;
+
+			lock.readLock().lock();
+			try {
+				BufferedWriter out = null;
+				boolean written = false;
+				try {
+					out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(hashFile), "US-ASCII"));
+					out.write(getHashKey());
+					out.write('\n');
+					for (int i = 0; i < indexSize; i++) {
+						if (innerPaths[i] != null && hashes[i] != null) {
+							out.write(hashes[i]);
+							out.write('\t');
+							out.write(innerPaths[i]);
+							out.write('\n');
+						}
+					}
+					out.close();
+					written = true;
+					return true;
+				}
+				finally {
+					if (!written) {
+						hashesDirty.set(true);
+						if (out != null) {
+							try {
+								out.close();
+							}
+							catch (IOException e) {
+							}
+						}
+					}
+				}
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Reads hashes written by saveHashes(), unless the dat has changed since.
+		 * 
+		 * @return the number of hashes read, or 0 if the file was stale or missing
+		 */
+		public int loadHashes(File hashFile) throws IOException {
+			if (!hashFile.isFile())
+				return 0;
+
+			lock.writeLock().lock();
+			try {
+				BufferedReader in = null;
+				try {
+					in = new BufferedReader(new InputStreamReader(new FileInputStream(hashFile), "US-ASCII"));
+					if (!getHashKey().equals(in.readLine()))
+						return 0;
+
+					int count = 0;
+					String line;
+					while ((line = in.readLine()) != null) {
+						int tab = line.indexOf('\t');
+						int entryIndex = tab == -1 ? -1 : indexOf(line.substring(tab + 1));
+						if (entryIndex != -1) {
+							hashes[entryIndex] = line.substring(0, tab);
+							count++;
+						}
+					}
+					return count;
+				}
+				finally {
+					if (in != null)
+						in.close();
+				}
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private String getHashKey() {
+			return String.format("FTLPack hashes:%d:%d", datFile.length(), datFile.lastModified());
+		}
+
+		/**
+		 * Returns the index, with nulls for vacant indeces.
+		 * 
+		 * The list is a read-only view, creating its elements on
+		 * demand, and must not be used after the dat is modified.
+		 */
 		public List<DatEntry> listMetadata() {
-			return new ArrayList<DatEntry>(entryList);
+			lock.readLock().lock();
+			try {
+				final int size = indexSize;
+
+				return new AbstractList<DatEntry>() {
+					@Override
+					public DatEntry get(int n) {
+						if (n < 0 || n >= size)
+							throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", n, size));
+						if (innerPaths[n] == null)
+							return null;
+
+						DatEntry entry = new DatEntry();
+						entry.entryOffset = entryOffsets[n];
+						entry.innerPath = innerPaths[n];
+						entry.dataOffset = dataOffsets[n];
+						entry.dataSize = dataSizes[n];
+						return entry;
+					}
+
+					@Override
+					public int size() {
+						return size;
+					}
+				};
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Returns the number of bytes a repack would reclaim: gaps
+		 * between innerFiles, and vacant indeces in the header.
+		 */
+		public long getReclaimableBytes() throws IOException {
+			lock.readLock().lock();
+			try {
+				long usedBytes = getHeaderIndexPosition(entryCount);
+				for (int i = 0; i < indexSize; i++) {
+					if (entryOffsets[i] != 0)
+						usedBytes += (dataOffsets[i] - entryOffsets[i]) + dataSizes[i];
+				}
+				return raf.length() - usedBytes;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
 		}
 
 		/**
 		 * Repacks the dat file. This will remove gaps, which could
 		 * be created when adding, removing or replacing files.
+		 * 
+		 * @see #repack(double, RepackMonitor)
 		 */
 		public RepackResult repack() throws IOException {
-			// Build a list of non-null entries, sorted in the order their data appears.
-
-			ArrayList<DatEntry> tmpEntries = new ArrayList<DatEntry>(pathToIndexMap.size());
-			for (Map.Entry<String, Integer> mapping : pathToIndexMap.entrySet()) {
-				Integer iObj = mapping.getValue();
-				DatEntry entry = entryList.get(iObj.intValue());
-				if (entry != null) {
-					tmpEntries.add(entry);
-				} else { // The following should never happen!
-					throw new IOException("Bad entryIndex for innerPath: " + mapping.getKey());
-				}
-			}
-			Collections.sort(tmpEntries, new Comparator<DatEntry>() {
-				public int compare(DatEntry a, DatEntry b) {
-					if (b == null)
-						return -1;
-					if (a == null)
-						return 1;
-					DatEntry dA = (DatEntry) a;
-					DatEntry dB = (DatEntry) b;
-					if (dA.entryOffset < dB.entryOffset)
-						return -1;
-					if (dA.entryOffset > dB.entryOffset)
-						return 1;
-					return 0;
-				}
-
-				@Override
-				public boolean equals(Object o) {
-					return (o != null ? o == this : false);
-				}
-			});
-
-			for (int i = 0; i < tmpEntries.size() - 1; i++) {
-				DatEntry a = tmpEntries.get(i);
-				DatEntry b = tmpEntries.get(i + 1);
-				if (a.dataOffset + a.dataSize > b.entryOffset) {
-					throw new IOException(String.format("Cannot repack datfile with overlapping entries (\"%s\" and \"%s\").", a.innerPath, b.innerPath));
-				}
-			}
-
-			pathToIndexMap.clear(); // entryList gets replaced later.
-			long bytesChanged = 0;
-
-			// Write the header size.
-			if (tmpEntries.size() != entryList.size()) {
-				raf.seek(0);
-				writeLittleUInt(tmpEntries.size());
-				bytesChanged += 4;
-			}
-
-			long pendingEntryOffset = getHeaderIndexPosition(tmpEntries.size());
-
-			for (int i = 0; i < tmpEntries.size(); i++) {
-				DatEntry entry = tmpEntries.get(i);
-				pathToIndexMap.put(entry.innerPath, new Integer(i));
-
-				// Write the header index.
-				raf.seek(getHeaderIndexPosition(i));
-				writeLittleUInt(pendingEntryOffset);
-				bytesChanged += 4;
-
-				// Shift the entry toward the start of the dat.
-				if (pendingEntryOffset != entry.entryOffset) {
-					long totalBytes = (entry.dataOffset - entry.entryOffset) + entry.dataSize;
-					long bytesRemaining = totalBytes;
-					byte[] buf = new byte[4096];
-					int len;
-					while (bytesRemaining > 0) {
-						raf.seek(entry.entryOffset + totalBytes - bytesRemaining);
-						len = raf.read(buf, 0, (int) Math.min(buf.length, bytesRemaining));
-						if (len == -1) {
-							throw new IOException("EOF prematurely reached reading innerPath: " + entry.innerPath);
+			return repack(0, null);
+		}
+
+		/**
+		 * Repacks the dat file, if enough of it is wasted on gaps.
+		 * 
+		 * The innerFiles are copied, in the order they appear, into a
+		 * temporary file next to the dat, which then replaces it. Runs
+		 * of adjacent innerFiles are moved with large channel transfers.
+		 * Until the replacement, the dat is left untouched, so a
+		 * cancellation, or a crash while copying, leaves it as it was.
+		 * 
+		 * The copy is renamed over the dat, which is atomic on POSIX
+		 * systems. Where File.renameTo() won't replace an existing file
+		 * (eg. Windows), the original is first renamed aside, to a
+		 * uniquely named "*.old" file in the same directory, and deleted
+		 * once the copy has taken its place. A crash between those two
+		 * renames leaves no dat under the original name; the constructor
+		 * puts the "*.old" file back, when it next opens the dat.
+		 * 
+		 * Only dats opened in "r+" or "w+" mode can be repacked.
+		 * 
+		 * @param threshold
+		 *            fraction of the file (0.0-1.0) that has to be reclaimable,
+		 *            for the repack to happen at all
+		 * @param monitor
+		 *            receives progress, and may cancel the repack, or null
+		 * @return the result, or null if cancelled. If the threshold
+		 *         wasn't reached, the result reports no change.
+		 * @throws IllegalStateException
+		 *             if the dat was opened read-only, or a batch is in progress
+		 * @see #getReclaimableBytes()
+		 */
+		public RepackResult repack(double threshold, RepackMonitor monitor) throws IOException {
+			lock.writeLock().lock();
+			try {
+				if (!mode.equals("r+") && !mode.equals("w+"))
+					throw new IllegalStateException(String.format("Cannot repack a dat opened in '%s' mode: %s", mode, getName()));
+				if (batchAdds != null)
+					throw new IllegalStateException("Cannot repack while a batch is in progress: " + getName());
+
+				long oldDatLength = raf.length();
+				long reclaimableBytes = getReclaimableBytes();
+				if (reclaimableBytes == 0 || reclaimableBytes < threshold * oldDatLength) {
+					return new RepackResult(oldDatLength, oldDatLength, 0);
+				}
+
+				// Build a list of used indeces, sorted in the order their data appears.
+				int[] order = getIndecesByEntryOffset();
+
+				for (int i = 0; i < order.length - 1; i++) {
+					int a = order[i];
+					int b = order[i + 1];
+					if (dataOffsets[a] + dataSizes[a] > entryOffsets[b]) {
+						throw new IOException(String.format("Cannot repack datfile with overlapping entries (\"%s\" and \"%s\").", innerPaths[a], innerPaths[b]));
+					}
+				}
+
+				// Lay out the new index.
+				long[] newEntryOffsets = new long[order.length];
+				long pendingEntryOffset = getHeaderIndexPosition(order.length);
+				for (int i = 0; i < order.length; i++) {
+					int n = order[i];
+					newEntryOffsets[i] = pendingEntryOffset;
+					pendingEntryOffset += (dataOffsets[n] - entryOffsets[n]) + dataSizes[n];
+				}
+				long newDatLength = pendingEntryOffset;
+
+				File dir = datFile.getAbsoluteFile().getParentFile();
+				File tmpFile = File.createTempFile(datFile.getName(), ".repack", dir);
+				boolean replaced = false;
+				RandomAccessFile tmpRaf = null;
+				try {
+					tmpRaf = new RandomAccessFile(tmpFile, "rw");
+					FileChannel src = raf.getChannel();
+					FileChannel dst = tmpRaf.getChannel();
+
+					ByteBuffer header = ByteBuffer.allocate((int) getHeaderIndexPosition(order.length));
+					header.order(ByteOrder.LITTLE_ENDIAN);
+					header.putInt(order.length);
+					for (int i = 0; i < order.length; i++)
+						header.putInt((int) (newEntryOffsets[i] & 0x00000000FFFFFFFFL));
+					header.flip();
+					long bytesWritten = writeFully(dst, header, 0);
+
+					// Copy runs of adjacent entries in as few transfers as possible.
+					int runStart = 0;
+					while (runStart < order.length) {
+						int runEnd = runStart + 1;
+						while (runEnd < order.length && entryOffsets[order[runEnd]] == dataOffsets[order[runEnd - 1]] + dataSizes[order[runEnd - 1]])
+							runEnd++;
+
+						long srcOffset = entryOffsets[order[runStart]];
+						long runLength = dataOffsets[order[runEnd - 1]] + dataSizes[order[runEnd - 1]] - srcOffset;
+						long dstOffset = newEntryOffsets[runStart];
+						long runDone = 0;
+						while (runDone < runLength) {
+							if (monitor != null && monitor.isCancelled())
+								return null;
+
+							long len = src.transferTo(srcOffset + runDone, Math.min(REPACK_TRANSFER_SIZE, runLength - runDone), dst.position(dstOffset + runDone));
+							if (len <= 0) {
+								throw new IOException("EOF prematurely reached reading innerPath: " + innerPaths[order[runStart]]);
+							}
+							runDone += len;
+							bytesWritten += len;
+							if (monitor != null)
+								monitor.progress(bytesWritten, newDatLength);
 						}
+						runStart = runEnd;
+					}
 
-						raf.seek(pendingEntryOffset + totalBytes - bytesRemaining);
-						raf.write(buf, 0, len);
-						bytesRemaining -= len;
+					dst.force(true);
+					tmpRaf.close();
+					tmpRaf = null;
+
+					// Swap the files. Where renameTo() replaces an existing file
+					// (POSIX), that alone swaps them atomically.
+					raf.close();
+					if (!tmpFile.renameTo(datFile)) {
+						// Elsewhere, move the original aside first. The aside file is only
+						// reserved to get a unique name; renameTo() may not replace it.
+						File asideFile = null;
+						try {
+							asideFile = File.createTempFile(datFile.getName(), ".old", dir);
+						}
+						finally {
+							if (asideFile == null)
+								raf = new RandomAccessFile(datFile, "rw");
+						}
+						asideFile.delete();
+						if (!datFile.renameTo(asideFile)) {
+							raf = new RandomAccessFile(datFile, "rw");
+							throw new IOException("Could not move the dat aside: " + datFile.getPath());
+						}
+						if (!tmpFile.renameTo(datFile)) {
+							if (!asideFile.renameTo(datFile))
+								throw new IOException(String.format("Could not replace the dat with its repacked copy, nor restore it: %s (original left at %s)", datFile.getPath(), asideFile.getPath()));
+							raf = new RandomAccessFile(datFile, "rw");
+							throw new IOException("Could not replace the dat with its repacked copy: " + datFile.getPath());
+						}
+						asideFile.delete();
+					}
+					replaced = true;
+					raf = new RandomAccessFile(datFile, "rw");
+				}
+				finally {
+					if (tmpRaf != null) {
+						try {
+							tmpRaf.close();
+						}
+						catch (IOException e) {
+						}
 					}
+					if (!replaced)
+						tmpFile.delete();
+				}
 
-					entry.dataOffset = pendingEntryOffset + (entry.dataOffset - entry.entryOffset);
-					entry.entryOffset = pendingEntryOffset;
-					bytesChanged += totalBytes;
+				// Rebuild the index to match.
+				long[] oldEntryOffsets = entryOffsets;
+				long[] oldDataOffsets = dataOffsets;
+				long[] oldDataSizes = dataSizes;
+				String[] oldInnerPaths = innerPaths;
+				String[] oldHashes = hashes;
+				allocateIndex(order.length);
+				for (int i = 0; i < order.length; i++) {
+					int n = order[i];
+					entryOffsets[i] = newEntryOffsets[i];
+					dataOffsets[i] = newEntryOffsets[i] + (oldDataOffsets[n] - oldEntryOffsets[n]);
+					dataSizes[i] = oldDataSizes[n];
+					innerPaths[i] = oldInnerPaths[n];
+					hashes[i] = oldHashes[n];
+					putPath(i);
 				}
+				firstVacancy = indexSize;
+
+				return new RepackResult(oldDatLength, newDatLength, newDatLength);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
 
-				pendingEntryOffset += (entry.dataOffset - entry.entryOffset) + entry.dataSize;
+		/**
+		 * An innerFile written by add() during a batch, to be listed in the header on commit.
+		 */
+		private static class BatchEntry {
+			private final long entryOffset;
+			private final long dataOffset;
+			private final long dataSize;
+
+			private BatchEntry(long entryOffset, long dataOffset, long dataSize) {
+				this.entryOffset = entryOffset;
+				this.dataOffset = dataOffset;
+				this.dataSize = dataSize;
 			}
+		}
 
-			entryList = tmpEntries;
+		/**
+		 * A copy of the index, to restore it after a failed commitBatch().
+		 */
+		private class IndexSnapshot {
+			private final int savedIndexSize;
+			private final long[] savedEntryOffsets;
+			private final long[] savedDataOffsets;
+			private final long[] savedDataSizes;
+			private final String[] savedInnerPaths;
+			private final String[] savedHashes;
+			private final int[] savedPathSlots;
+			private final int savedEntryCount;
+			private final int savedFirstVacancy;
+
+			private IndexSnapshot() {
+				savedIndexSize = indexSize;
+				savedEntryOffsets = Arrays.copyOf(entryOffsets, entryOffsets.length);
+				savedDataOffsets = Arrays.copyOf(dataOffsets, dataOffsets.length);
+				savedDataSizes = Arrays.copyOf(dataSizes, dataSizes.length);
+				savedInnerPaths = Arrays.copyOf(innerPaths, innerPaths.length);
+				savedHashes = Arrays.copyOf(hashes, hashes.length);
+				savedPathSlots = Arrays.copyOf(pathSlots, pathSlots.length);
+				savedEntryCount = entryCount;
+				savedFirstVacancy = firstVacancy;
+			}
 
-			long oldDatLength = raf.length();
-			long newDatLength = pendingEntryOffset;
-			raf.setLength(newDatLength);
-			return new RepackResult(oldDatLength, newDatLength, bytesChanged);
+			private void restore() {
+				indexSize = savedIndexSize;
+				entryOffsets = savedEntryOffsets;
+				dataOffsets = savedDataOffsets;
+				dataSizes = savedDataSizes;
+				innerPaths = savedInnerPaths;
+				hashes = savedHashes;
+				pathSlots = savedPathSlots;
+				entryCount = savedEntryCount;
+				firstVacancy = savedFirstVacancy;
+			}
 		}
 	}
 }
@@ -6,9 +6,22 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
-
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An InputStream that reads a region of a FileChannel.
+ *
+ * Reads are positional, so that any number of streams (on any
+ * number of threads) can read from the same channel at once.
+ *
+ * The buffer of a closed stream is kept for the next stream
+ * opened on the same thread, sparing repeated allocations
+ * when many small innerFiles are read one after another.
+ */
 public class FileChannelRegionInputStream extends InputStream {
 
+	private static final ThreadLocal<ByteBuffer> pooledBuffer = new ThreadLocal<ByteBuffer>();
+
 	private FileChannel channel;
 	private long regionOffset;
 	private long regionLength;
@@ -30,20 +43,32 @@ public class FileChannelRegionInputStream extends InputStream {
 		this.channel = channel;
 		this.regionOffset = offset;
 		this.regionLength = length;
-		buf = ByteBuffer.allocate(bufferSize);
+
+		ByteBuffer pooled = pooledBuffer.get();
+		if (pooled != null && pooled.capacity() == bufferSize) {
+			pooledBuffer.set(null);
+			buf = pooled;
+		} else {
+			buf = ByteBuffer.allocate(bufferSize);
+		}
 	}
 
-	@Override
-	public int available() throws IOException {
+	private void ensureOpen() throws IOException {
+		if (buf == null)
+			throw new IOException("Stream closed.");
 		if (!channel.isOpen())
 			throw new ClosedChannelException();
+	}
+
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
 		return bufLength;
 	}
 
 	@Override
 	public int read() throws IOException {
-		if (!channel.isOpen())
-			throw new ClosedChannelException();
+		ensureOpen();
 		if (intraPos >= regionLength)
 			return -1;
 
@@ -78,8 +103,7 @@ public class FileChannelRegionInputStream extends InputStream {
 			throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", bOff, bLen));
 		if (bOff + bLen > b.length)
 			throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", (bOff + bLen), bLen));
-		if (!channel.isOpen())
-			throw new ClosedChannelException();
+		ensureOpen();
 		if (intraPos >= regionLength)
 			return -1;
 
@@ -123,10 +147,41 @@ public class FileChannelRegionInputStream extends InputStream {
 		return bytesRead;
 	}
 
+	/**
+	 * Transfers the rest of the region to a channel, without copying
+	 * it through the heap, if the OS supports it.
+	 * 
+	 * @return the number of bytes transferred
+	 */
+	public long transferTo(WritableByteChannel dst) throws IOException {
+		ensureOpen();
+
+		long bytesTotal = Math.max(0, regionLength - intraPos);
+		while (intraPos < regionLength) {
+			long len = channel.transferTo(regionOffset + intraPos, regionLength - intraPos, dst);
+			if (len <= 0) {
+				if (regionOffset + intraPos >= channel.size())
+					throw new BufferUnderflowException();
+				// No progress (eg. a full non-blocking channel), copy the rest through the heap.
+				byte[] tmp = new byte[buf.capacity()];
+				ByteBuffer tmpBuf = ByteBuffer.wrap(tmp);
+				int read;
+				while ((read = read(tmp, 0, tmp.length)) > 0) {
+					tmpBuf.clear();
+					tmpBuf.limit(read);
+					while (tmpBuf.hasRemaining())
+						dst.write(tmpBuf);
+				}
+				break;
+			}
+			intraPos += len;
+		}
+		return bytesTotal;
+	}
+
 	@Override
 	public long skip(long n) throws IOException {
-		if (!channel.isOpen())
-			throw new ClosedChannelException();
+		ensureOpen();
 		if (intraPos >= regionLength)
 			return -1;
 
@@ -136,4 +191,16 @@ public class FileChannelRegionInputStream extends InputStream {
 		intraPos += n;
 		return n;
 	}
+
+	/**
+	 * Closes this stream, leaving the channel open.
+	 */
+	@Override
+	public void close() {
+		if (buf != null) {
+			if (pooledBuffer.get() == null)
+				pooledBuffer.set(buf);
+			buf = null;
+		}
+	}
 }
@@ -1,7 +1,11 @@
 package net.vhati.modmanager.core;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.List;
 
 import org.jdom2.Attribute;
@@ -31,7 +35,7 @@ import org.jdom2.util.NamespaceStack;
  * To use, construct an XMLOutputter with this as an arg.
  * Then call outputter.output( doc, writer ).
  *
- * Or just call the static sloppyPrint() method below.
+ * Or just call one of the static sloppyPrint() methods below.
  *
  * @see org.jdom2.output.XMLOutputter
  */
@@ -164,4 +168,22 @@ public class SloppyXMLOutputProcessor extends AbstractXMLOutputProcessor {
 		XMLOutputter outputter = new XMLOutputter( format, new SloppyXMLOutputProcessor() );
 		outputter.output( doc, writer );
 	}
+
+
+	/**
+	 * Creates an outputter and writes an XML tree to a stream.
+	 *
+	 * The text is encoded with the given encoding, which is also
+	 * named in the XML declaration. Characters it can't represent
+	 * are escaped. If encoding is null, the default is "UTF-8".
+	 *
+	 * The stream is flushed, but not closed.
+	 */
+	public static void sloppyPrint( Document doc, OutputStream out, String encoding ) throws IOException {
+		if ( encoding == null ) encoding = "UTF-8";
+
+		Writer writer = new BufferedWriter( new OutputStreamWriter( out, Charset.forName( encoding ) ) );
+		sloppyPrint( doc, writer, encoding );
+		writer.flush();
+	}
 }
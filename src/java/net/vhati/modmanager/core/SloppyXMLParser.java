@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,11 +51,45 @@ import org.xml.sax.SAXParseException;
  *
  * Only use this as a last resort, after a real parser fails.
  *
+ * Two engines are available, which build identical trees (see Engine).
+ * The regex engine is the default.
+ *
  * @see org.jdom2.input.JDOMParseException
  * @see org.jdom2.located.LocatedJDOMFactory
  */
 public class SloppyXMLParser {
 
+	/**
+	 * How the text is split into chunks (tags, comments, text, etc).
+	 *
+	 * REGEX tries each chunk's pattern in turn, at every position.
+	 * SCANNER tells chunks apart by their first characters, and reads
+	 *   each of them in a single pass. It's several times faster, and
+	 *   follows the same rules as REGEX, down to the quirks.
+	 */
+	public enum Engine { REGEX, SCANNER }
+
+	/**
+	 * Receives top-level elements from scan().
+	 */
+	public interface ElementHandler {
+		/**
+		 * Called once a top-level element's start tag has been read.
+		 *
+		 * The element has its attributes, but no content yet.
+		 *
+		 * @return true to build the element's subtree, false to skip it
+		 */
+		public boolean elementStarted( Element e );
+
+		/**
+		 * Called once a top-level element's subtree has been built.
+		 *
+		 * @return true to keep scanning, false to stop
+		 */
+		public boolean elementEnded( Element e );
+	}
+
 	private Pattern declPtn = Pattern.compile( "(\\s*)<[?]xml [^?]*[?]>" );
 	private Pattern emptyCommentPtn = Pattern.compile( "(\\s*)<!---->" );
 	private Pattern commentPtn = Pattern.compile( "(?s)(\\s*)<!--((?:.(?!-->))*.)-->" );
@@ -74,6 +109,7 @@ public class SloppyXMLParser {
 	private Map<String,String> entityMap = new HashMap<String,String>();
 
 	private JDOMFactory factory;
+	private Engine engine;
 
 	private int pos = -1;
 
@@ -83,8 +119,18 @@ public class SloppyXMLParser {
 	}
 
 	public SloppyXMLParser( JDOMFactory factory ) {
+		this( factory, null );
+	}
+
+	/**
+	 * @param factory a JDOMFactory, or null for a DefaultJDOMFactory
+	 * @param engine the engine to parse with, or null for REGEX
+	 */
+	public SloppyXMLParser( JDOMFactory factory, Engine engine ) {
 		if ( factory == null ) factory = new DefaultJDOMFactory();
+		if ( engine == null ) engine = Engine.REGEX;
 		this.factory = factory;
+		this.engine = engine;
 
 		chunkPtns.add( declPtn );
 		chunkPtns.add( emptyCommentPtn );
@@ -104,7 +150,54 @@ public class SloppyXMLParser {
 	}
 
 
+	public Engine getEngine() {
+		return engine;
+	}
+
+
 	public Document build( CharSequence s ) throws JDOMParseException {
+		if ( engine == Engine.SCANNER )
+			return buildWithScanner( s.toString() );
+		else
+			return buildWithRegex( s );
+	}
+
+
+	/**
+	 * Reads top-level elements with the given names, without building a Document.
+	 *
+	 * Top-level elements are the ones outside any other element, and the
+	 * children of such an element when its own name wasn't asked for
+	 * (eg, blueprints inside an <FTL> tag).
+	 *
+	 * Each of them is passed to the handler as soon as its start tag is
+	 * read, and again once its subtree is built, the same way build()
+	 * would have built it (but without a parent). Everything else is
+	 * only checked for malformed markup and nesting. No nodes are created
+	 * for it, so problems only a node would reveal (illegal names,
+	 * clashing namespaces) go unreported. An element left open at the
+	 * end of the text is passed to the handler as-is.
+	 *
+	 * This always uses the SCANNER engine.
+	 *
+	 * @param tagNames names of the elements to pass to the handler
+	 * @param handler receives the elements, in document order
+	 */
+	public void scan( CharSequence s, Set<String> tagNames, ElementHandler handler ) throws JDOMParseException {
+		if ( tagNames == null ) throw new IllegalArgumentException( "Tag names must not be null." );
+		if ( handler == null ) throw new IllegalArgumentException( "Handler must not be null." );
+
+		String str = s.toString();
+		try {
+			scanChunks( str, factory.element( "wrapper" ), tagNames, handler );
+		}
+		catch( IllegalAddException e ) {
+			throw createParseException( str, pos, null, e );
+		}
+	}
+
+
+	private Document buildWithRegex( CharSequence s ) throws JDOMParseException {
 		Element rootNode = factory.element( "wrapper" );
 		Document doc = factory.document( rootNode );
 
@@ -219,40 +312,11 @@ public class SloppyXMLParser {
 								attrValue = attrValue.substring( 1, attrValue.length()-1 );
 								attrValue = unescape( attrValue );
 
-								if ( attrPrefix != null ) {
-									if ( attrPrefix.equals( "xmlns" ) ) {
-										// This is a pseudo attribute declaring a namespace prefix.
-										// Move it to the root node.
-										Namespace attrNS = Namespace.getNamespace( attrName, attrName );  // URI? *shrug*
-										factory.addNamespaceDeclaration( rootNode, attrNS );
-									}
-									else {
-										Namespace attrNS = Namespace.getNamespace( attrPrefix, attrPrefix );  // URI? *shrug*
-										factory.addNamespaceDeclaration( rootNode, attrNS );
-										Attribute attrObj = factory.attribute( attrName, attrValue, AttributeType.UNDECLARED, attrNS );
-										factory.setAttribute( tagNode, attrObj );
-									}
-								} else if ( attrName.equals("xmlns") ) {
-									// New default namespace URI within this node.
-									Namespace attrNS = Namespace.getNamespace( attrValue );
-									factory.addNamespaceDeclaration( tagNode, attrNS );
-								} else {
-									// Normal attribute.
-									Attribute attrObj = factory.attribute( attrName, attrValue, AttributeType.UNDECLARED, Namespace.NO_NAMESPACE );
-									factory.setAttribute( tagNode, attrObj );
-								}
+								addAttribute( rootNode, tagNode, attrPrefix, attrName, attrValue );
 								am.region( am.end(), am.regionEnd() );
 							}
 							if ( am.regionStart() < attrString.length() ) {
-								int nonspacePos = findNextNonspace( s, pos );
-								int errorPos = ( (nonspacePos != -1) ? nonspacePos : pos );
-
-								int[] lineAndCol = getLineAndCol( s, errorPos );
-								int lineNum = lineAndCol[0];
-								int colNum = lineAndCol[1];
-
-								SAXParseException cause = new SAXParseException( String.format( "At line %d, column %d: Strange attributes.", lineNum, colNum ), null, null, lineNum, colNum );
-								throw new JDOMParseException( String.format( "Error on line %d: %s", lineNum, cause.getMessage() ), cause );
+								throw createParseException( s, pos, "Strange attributes.", null );
 							}
 						}
 
@@ -288,47 +352,588 @@ public class SloppyXMLParser {
 				}
 
 				if ( !matchedChunk ) {
-					int nonspacePos = findNextNonspace( s, pos );
-					int errorPos = ( (nonspacePos != -1) ? nonspacePos : pos );
+					throw createParseException( s, pos, "Unexpected characters.", null );
+				}
+			}
+
+			promoteOnlyChild( doc, rootNode );
+		}
+		catch( IllegalAddException e ) {
+			throw createParseException( s, pos, null, e );
+		}
+
+		return doc;
+	}
+
+
+	/**
+	 * Parses the same way as the regex engine, with the patterns' logic
+	 * written out by hand.
+	 *
+	 * Every chunk but an end tag or trailing space starts with optional
+	 * whitespace followed by '<', or is stray chars. So after skipping the
+	 * whitespace, the next char and a few startsWith() calls are enough to
+	 * tell which chunk is next, in the same order the patterns are tried.
+	 */
+	private Document buildWithScanner( String s ) throws JDOMParseException {
+		Element rootNode = factory.element( "wrapper" );
+		Document doc = factory.document( rootNode );
+
+		try {
+			scanChunks( s, rootNode, null, null );
+			promoteOnlyChild( doc, rootNode );
+		}
+		catch( IllegalAddException e ) {
+			throw createParseException( s, pos, null, e );
+		}
+
+		return doc;
+	}
 
-					int[] lineAndCol = getLineAndCol( s, errorPos );
-					int lineNum = lineAndCol[0];
-					int colNum = lineAndCol[1];
 
-					SAXParseException cause = new SAXParseException( String.format( "At line %d, column %d: Unexpected characters.", lineNum, colNum ), null, null, lineNum, colNum );
-					throw new JDOMParseException( String.format( "Error on line %d: %s", lineNum, cause.getMessage() ), cause );
+	/**
+	 * Parses the text into rootNode, or only its top-level elements.
+	 *
+	 * While filtering, parentNode is null outside of the elements being
+	 * captured, and nothing is added until a wanted element starts.
+	 *
+	 * @param rootNode the wrapper, which collects namespace declarations
+	 * @param tagNames names of the top-level elements to capture, or null to build everything
+	 * @param handler receives captured elements, or null
+	 */
+	private void scanChunks( String s, Element rootNode, Set<String> tagNames, ElementHandler handler ) throws JDOMParseException {
+		boolean filtering = ( tagNames != null );
+		Parent parentNode = ( filtering ? null : rootNode );
+		Element captureNode = null;  // The top-level element being built, while filtering.
+		boolean topClaimed = false;  // The open outermost element was asked for, so its children aren't top-level.
+		int depth = 0;
+		int sLen = s.length();
+		pos = 0;
+		int[] lastLineAndCol = new int[] {0, 0};  // Counts \n's and chars after the last \n.
+		int[] tagBounds = new int[5];
+
+		while ( pos < sLen ) {
+			int markupPos = skipSpace( s, pos, sLen );
+			boolean atMarkup = ( markupPos < sLen && s.charAt( markupPos ) == '<' );
+			int textEnd = ( atMarkup ? markupPos : s.indexOf( '<', markupPos ) );
+			int end = -1;
+			int closePos;
+
+			if ( atMarkup && (end = matchDecl( s, markupPos )) != -1 ) {
+				// Don't care.
+				addLineAndCol( lastLineAndCol, s, pos, end );
+			}
+			else if ( atMarkup && s.startsWith( "<!---->", markupPos ) ) {
+				end = markupPos + 7;
+				addSpace( parentNode, s, pos, markupPos );
+				addLineAndCol( lastLineAndCol, s, pos, end );
+			}
+			else if ( atMarkup && s.startsWith( "<!--", markupPos ) && (closePos = s.indexOf( "-->", markupPos+5 )) != -1 ) {
+				// The comment's text is the shortest non-empty run before a -->.
+				end = closePos + 3;
+				addSpace( parentNode, s, pos, markupPos );
+				if ( parentNode != null ) addComments( parentNode, s.substring( markupPos+4, closePos ) );
+				addLineAndCol( lastLineAndCol, s, pos, end );
+			}
+			else if ( atMarkup && s.startsWith( "<![CDATA[]]>", markupPos ) ) {
+				end = markupPos + 12;
+				addSpace( parentNode, s, pos, markupPos );
+				addLineAndCol( lastLineAndCol, s, pos, end );
+			}
+			else if ( atMarkup && s.startsWith( "<![CDATA[", markupPos ) && (closePos = s.indexOf( "]]>", markupPos+10 )) != -1 ) {
+				end = closePos + 3;
+				addSpace( parentNode, s, pos, markupPos );
+				if ( parentNode != null ) factory.addContent( parentNode, factory.cdata( s.substring( markupPos+9, closePos ) ) );
+				addLineAndCol( lastLineAndCol, s, pos, end );
+			}
+			else if ( atMarkup && (end = matchStartTag( s, markupPos, tagBounds )) != -1 ) {
+				addSpace( parentNode, s, pos, markupPos );
+
+				int nameStart = tagBounds[0];
+				int nameEnd = tagBounds[1];
+				int attrStart = tagBounds[2];
+				int attrEnd = tagBounds[3];
+				boolean selfClosing = ( tagBounds[4] != 0 );
+
+				addLineAndCol( lastLineAndCol, s, pos, end );
+
+				boolean capturing = false;
+				if ( parentNode == null && depth <= 1 ) {
+					boolean wanted = containsName( tagNames, s, nameStart, nameEnd );
+					if ( depth == 0 ) {
+						topClaimed = wanted;
+						capturing = wanted;
+					} else {
+						capturing = ( wanted && !topClaimed );
+					}
+				}
+
+				Element tagNode = null;
+				Element nsNode = rootNode;  // Where namespace declarations go.
+				if ( parentNode != null || capturing ) {
+					String nodeName = s.substring( nameStart, nameEnd );
+					if ( nameStart > markupPos+1 ) {
+						String nodePrefix = s.substring( markupPos+1, nameStart-1 );
+						Namespace nodeNS = Namespace.getNamespace( nodePrefix, nodePrefix );  // URI? *shrug*
+						tagNode = factory.element( lastLineAndCol[0]+1, lastLineAndCol[1]+1+1, nodeName, nodeNS );
+						if ( capturing ) captureNode = tagNode;
+						if ( filtering ) nsNode = captureNode;
+						factory.addNamespaceDeclaration( nsNode, nodeNS );
+					} else {
+						tagNode = factory.element( lastLineAndCol[0]+1, lastLineAndCol[1]+1+1, nodeName );
+						if ( capturing ) captureNode = tagNode;
+						if ( filtering ) nsNode = captureNode;
+					}
+				}
+
+				int attrPos = attrStart;
+				while ( attrPos < attrEnd ) {
+					int attrNext = matchAttribute( s, attrPos, attrEnd, tagBounds );
+					if ( attrNext == -1 ) break;
+
+					if ( tagNode != null ) {
+						String attrPrefix = ( tagBounds[0] != -1 ? s.substring( tagBounds[0], tagBounds[1]-1 ) : null );
+						String attrName = s.substring( tagBounds[1], tagBounds[2] );
+						String attrValue = unescape( s, tagBounds[3]+1, attrNext-1 );
+						addAttribute( nsNode, tagNode, attrPrefix, attrName, attrValue );
+					}
+
+					attrPos = attrNext;
+				}
+				if ( attrPos < attrEnd ) {
+					throw createParseException( s, pos, "Strange attributes.", null );
+				}
+
+				if ( !selfClosing ) depth++;
+
+				if ( capturing && !handler.elementStarted( captureNode ) ) {
+					// Skip it like any other unwanted element.
+					captureNode = null;
+				}
+				else if ( capturing ) {
+					if ( !selfClosing ) {
+						parentNode = captureNode;
+					}
+					else {
+						captureNode = null;
+						if ( !handler.elementEnded( tagNode ) ) return;
+					}
+				}
+				else if ( parentNode != null ) {
+					factory.addContent( parentNode, tagNode );
+					if ( !selfClosing ) parentNode = tagNode;
 				}
 			}
+			else if ( (end = matchEndTag( s, textEnd )) != -1 ) {
+				if ( parentNode != null ) {
+					factory.addContent( parentNode, factory.text( unescape( s, pos, textEnd ) ) );
+					parentNode = parentNode.getParent();
+				}
+				else if ( depth == 0 ) {
+					// This closes the wrapper. Like build(), only allow what a Document would after that.
+					parentNode = factory.document( rootNode );
+				}
+				depth--;
 
-			if ( rootNode.getChildren().size() == 1 ) {
-				// No need for the wrapper, promote its only child to root.
+				addLineAndCol( lastLineAndCol, s, pos, end );
 
-				Element newRoot = rootNode.getChildren().get( 0 );
-				newRoot.detach();
-				for ( Namespace ns : rootNode.getAdditionalNamespaces() ) {
-					factory.addNamespaceDeclaration( newRoot, ns );
+				if ( captureNode != null && parentNode == null ) {
+					// The captured element was closed, it has no parent.
+					Element tagNode = captureNode;
+					captureNode = null;
+					if ( !handler.elementEnded( tagNode ) ) return;
 				}
-				factory.setRoot( doc, newRoot );
+			}
+			else if ( markupPos > pos && (markupPos == sLen || (markupPos == sLen-1 && isLineTerminator( s.charAt( markupPos ) ))) ) {
+				// This is the end of the document.
+				// ($ also matches before a final line terminator.)
+				end = markupPos;
+			}
+			else if ( s.startsWith( "-->", markupPos ) || (markupPos < sLen && "-.>,".indexOf( s.charAt( markupPos ) ) != -1) ) {
+				// Non-space junk between an end tag and a start tag.
+				end = markupPos + ( s.startsWith( "-->", markupPos ) ? 3 : 1 );
+				addSpace( parentNode, s, pos, markupPos );
+				addLineAndCol( lastLineAndCol, s, pos, end );
+			}
+			else {
+				throw createParseException( s, pos, "Unexpected characters.", null );
 			}
 
+			pos = end;
 		}
-		catch( IllegalAddException e ) {
-			int nonspacePos = findNextNonspace( s, pos );
-			int errorPos = ( (nonspacePos != -1) ? nonspacePos : pos );
 
-			int[] lineAndCol = getLineAndCol( s, errorPos );
-			int lineNum = lineAndCol[0];
-			int colNum = lineAndCol[1];
+		if ( captureNode != null ) {
+			// Unclosed, like a sloppy tree would have it.
+			handler.elementEnded( captureNode );
+		}
+	}
+
+
+	/**
+	 * Returns the end of an xml declaration at pos, or -1.
+	 */
+	private int matchDecl( String s, int pos ) {
+		if ( !s.startsWith( "<?xml ", pos ) ) return -1;
+
+		int qPos = s.indexOf( '?', pos+6 );
+		if ( qPos == -1 || !s.startsWith( ">", qPos+1 ) ) return -1;
+		return qPos + 2;
+	}
+
+
+	/**
+	 * Returns the end of a start tag at pos, or -1.
+	 *
+	 * The bounds array receives the tag's name start/end, its attributes'
+	 * start/end (beginning with a space), and 1 if it is self-closing.
+	 * If the name start is past pos+1, the tag has a prefix.
+	 */
+	private int matchStartTag( String s, int pos, int[] bounds ) {
+		int sLen = s.length();
+		int nameStart = pos + 1;
+		int nameEnd = skipNameChars( s, nameStart, sLen );
+		if ( nameEnd > nameStart && nameEnd < sLen && s.charAt( nameEnd ) == ':' ) {
+			// That was the prefix.
+			nameStart = nameEnd + 1;
+			nameEnd = skipNameChars( s, nameStart, sLen );
+		}
+		if ( nameEnd == nameStart ) return -1;
+
+		bounds[0] = nameStart;
+		bounds[1] = nameEnd;
+
+		// The lazy attributes group tries to match nothing first.
+		int closePos = skipSpace( s, nameEnd, sLen );
+		if ( closePos < sLen && s.charAt( closePos ) == '>' ) {
+			bounds[2] = bounds[3] = nameEnd;
+			bounds[4] = 0;
+			return closePos + 1;
+		}
+		if ( s.startsWith( "/>", closePos ) ) {
+			bounds[2] = bounds[3] = nameEnd;
+			bounds[4] = 1;
+			return closePos + 2;
+		}
+
+		// Then a space and at least one char, up to the first '>'. The group
+		// is as short as possible, so it ends before any whitespace (and '/')
+		// preceding that '>'.
+		if ( nameEnd == sLen || s.charAt( nameEnd ) != ' ' ) return -1;
+
+		int gtPos = s.indexOf( '>', nameEnd+1 );
+		if ( gtPos < nameEnd+2 ) return -1;
+
+		closePos = ( (s.charAt( gtPos-1 ) == '/' && gtPos-1 >= nameEnd+2) ? gtPos-1 : gtPos );
+		int attrEnd = closePos;
+		while ( attrEnd > nameEnd+2 && isSpace( s.charAt( attrEnd-1 ) ) ) {
+			attrEnd--;
+		}
+		bounds[2] = nameEnd;
+		bounds[3] = attrEnd;
+		bounds[4] = ( closePos < gtPos ? 1 : 0 );
+		return gtPos + 1;
+	}
+
 
+	/**
+	 * Returns the end of an attribute at pos, not going past end, or -1.
+	 *
+	 * The bounds array receives the attribute's prefix start (or -1),
+	 * its name start/end, and the position of the value's opening quote.
+	 */
+	private int matchAttribute( String s, int pos, int end, int[] bounds ) {
+		int nameStart = skipSpace( s, pos, end );
+		int nameEnd = skipNameChars( s, nameStart, end );
+		bounds[0] = -1;
+		if ( nameEnd > nameStart && nameEnd < end && s.charAt( nameEnd ) == ':' ) {
+			// That was the prefix.
+			bounds[0] = nameStart;
+			nameStart = nameEnd + 1;
+			nameEnd = skipNameChars( s, nameStart, end );
+		}
+		if ( nameEnd == nameStart ) return -1;
+
+		int eqPos = skipSpace( s, nameEnd, end );
+		if ( eqPos == end || s.charAt( eqPos ) != '=' ) return -1;
+
+		int quotePos = skipSpace( s, eqPos+1, end );
+		if ( quotePos == end ) return -1;
+
+		char quote = s.charAt( quotePos );
+		if ( quote != '"' && quote != '\'' ) return -1;
+
+		int closeQuotePos = s.indexOf( quote, quotePos+1 );
+		if ( closeQuotePos == -1 || closeQuotePos >= end ) return -1;
+
+		bounds[1] = nameStart;
+		bounds[2] = nameEnd;
+		bounds[3] = quotePos;
+		return closeQuotePos + 1;
+	}
+
+
+	/**
+	 * Returns the end of an end tag at ltPos, or -1.
+	 *
+	 * @param ltPos the position of the first '<' after the text preceding the tag, or -1
+	 */
+	private int matchEndTag( String s, int ltPos ) {
+		if ( ltPos == -1 || !s.startsWith( "</", ltPos ) ) return -1;
+
+		// Whatever the name is, it can't be empty.
+		int gtPos = s.indexOf( '>', ltPos+2 );
+		if ( gtPos < ltPos+3 ) return -1;
+		return gtPos + 1;
+	}
+
+
+	private void addSpace( Parent parentNode, String s, int start, int end ) {
+		if ( parentNode != null && end > start )
+			factory.addContent( parentNode, factory.text( s.substring( start, end ) ) );
+	}
+
+
+	/**
+	 * Adds a comment's text as one or more comments, split at nested "<!--".
+	 */
+	private void addComments( Parent parentNode, String tmp ) {
+		int commentStart = 0;
+		int openPos;
+		while ( (openPos = tmp.indexOf( "<!--", commentStart )) != -1 ) {
+			int spaceStart = openPos;
+			while ( spaceStart > commentStart && isSpace( tmp.charAt( spaceStart-1 ) ) ) {
+				spaceStart--;
+			}
+
+			if ( spaceStart - commentStart > 0 ) {
+				String splicedChunk = stripDashes( tmp.substring( commentStart, spaceStart ) );
+				if ( splicedChunk.startsWith( " " ) ) splicedChunk += " ";
+				factory.addContent( parentNode, factory.comment( splicedChunk ) );
+			}
+			if ( openPos > spaceStart ) {
+				// Whitespace between comments.
+				factory.addContent( parentNode, factory.text( tmp.substring( spaceStart, openPos ) ) );
+			}
+			commentStart = openPos + 4;
+		}
+		if ( commentStart < tmp.length() ) {
+			factory.addContent( parentNode, factory.comment( stripDashes( tmp.substring( commentStart ) ) ) );
+		}
+	}
+
+
+	/**
+	 * Removes leading and trailing dashes, and collapses other runs of dashes.
+	 *
+	 * Same as replaceAll( "^-+|(?<=-)-+|-+$", "" ).
+	 */
+	private String stripDashes( String s ) {
+		if ( s.indexOf( '-' ) == -1 ) return s;
+
+		int sLen = s.length();
+		StringBuilder buf = new StringBuilder( sLen );
+		int i = 0;
+		while ( i < sLen && s.charAt( i ) == '-' ) i++;
+
+		while ( i < sLen ) {
+			char c = s.charAt( i );
+			if ( c != '-' ) {
+				buf.append( c );
+				i++;
+				continue;
+			}
+			int runEnd = i;
+			while ( runEnd < sLen && s.charAt( runEnd ) == '-' ) runEnd++;
+
+			// $ matches at the end, or before a final line terminator.
+			boolean atEnd = ( runEnd == sLen );
+			atEnd |= ( runEnd == sLen-1 && isLineTerminator( s.charAt( runEnd ) ) );
+			atEnd |= ( runEnd == sLen-2 && s.startsWith( "\r\n", runEnd ) );
+			if ( !atEnd ) buf.append( '-' );
+			i = runEnd;
+		}
+		return buf.toString();
+	}
+
+
+	/**
+	 * Unescapes entities between start and end, the way unescape( String ) does.
+	 */
+	private String unescape( String s, int start, int end ) {
+		int ampPos = s.indexOf( '&', start );
+		if ( ampPos == -1 || ampPos >= end ) return s.substring( start, end );
+
+		StringBuilder buf = new StringBuilder( end - start );
+		int copiedPos = start;
+		while ( ampPos != -1 && ampPos < end ) {
+			int semiPos = s.indexOf( ';', ampPos+1 );
+			if ( semiPos == -1 || semiPos >= end ) break;
+
+			if ( semiPos == ampPos+1 ) {
+				// "&;" isn't an entity.
+				ampPos = s.indexOf( '&', ampPos+1 );
+				continue;
+			}
+
+			buf.append( s, copiedPos, ampPos );
+			buf.append( decodeEntity( s.substring( ampPos+1, semiPos ) ) );
+			copiedPos = semiPos + 1;
+			ampPos = s.indexOf( '&', copiedPos );
+		}
+		buf.append( s, copiedPos, end );
+
+		return buf.toString();
+	}
+
+
+	/**
+	 * Returns the text an entity stands for, given what's between '&' and ';'.
+	 */
+	private String decodeEntity( String entName ) {
+		if ( entName.length() > 1 && entName.charAt( 0 ) == '#' && isDigits( entName, 1, 10 ) ) {
+			// Decimal character reference.
+			return Character.toString( (char)Integer.parseInt( entName.substring( 1 ) ) );
+		}
+		if ( entName.length() > 2 && entName.startsWith( "#x" ) && isDigits( entName, 2, 16 ) ) {
+			// Hex character reference.
+			return Character.toString( (char)Integer.parseInt( entName.substring( 2 ), 16 ) );
+		}
+
+		String entity = entityMap.get( entName );
+		if ( entity == null ) {
+			// Unknown entity, repeat it as-is.
+			entity = "&"+ entName +";";
+		}
+		return entity;
+	}
+
+
+	/**
+	 * Returns true if all chars from start onward are ASCII digits in the given radix (10 or 16).
+	 */
+	private static boolean isDigits( String s, int start, int radix ) {
+		for ( int i=start; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			boolean digit = ( c >= '0' && c <= '9' );
+			if ( radix == 16 ) digit |= ( c >= 'a' && c <= 'f' ) || ( c >= 'A' && c <= 'F' );
+			if ( !digit ) return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the position of the first char at or after pos that isn't
+	 * whitespace (as in \s), or end if there isn't one.
+	 */
+	private static int skipSpace( String s, int pos, int end ) {
+		while ( pos < end && isSpace( s.charAt( pos ) ) ) pos++;
+		return pos;
+	}
+
+
+	/**
+	 * Returns the position of the first char at or after pos that can't
+	 * be part of a name (as in [\w.-]), or end if there isn't one.
+	 */
+	private static int skipNameChars( String s, int pos, int end ) {
+		while ( pos < end ) {
+			char c = s.charAt( pos );
+			if ( !((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '.' || c == '-') ) break;
+			pos++;
+		}
+		return pos;
+	}
+
+
+	/**
+	 * Returns true if s, between start and end, equals one of the names.
+	 */
+	private static boolean containsName( Set<String> names, String s, int start, int end ) {
+		int len = end - start;
+		for ( String name : names ) {
+			if ( name.length() == len && s.regionMatches( start, name, 0, len ) ) return true;
+		}
+		return false;
+	}
+
+
+	private static boolean isSpace( char c ) {
+		return ( c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r' );
+	}
+
+
+	private static boolean isLineTerminator( char c ) {
+		return ( c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029' );
+	}
+
+
+	private void addAttribute( Element rootNode, Element tagNode, String attrPrefix, String attrName, String attrValue ) {
+		if ( attrPrefix != null ) {
+			if ( attrPrefix.equals( "xmlns" ) ) {
+				// This is a pseudo attribute declaring a namespace prefix.
+				// Move it to the root node.
+				Namespace attrNS = Namespace.getNamespace( attrName, attrName );  // URI? *shrug*
+				factory.addNamespaceDeclaration( rootNode, attrNS );
+			}
+			else {
+				Namespace attrNS = Namespace.getNamespace( attrPrefix, attrPrefix );  // URI? *shrug*
+				factory.addNamespaceDeclaration( rootNode, attrNS );
+				Attribute attrObj = factory.attribute( attrName, attrValue, AttributeType.UNDECLARED, attrNS );
+				factory.setAttribute( tagNode, attrObj );
+			}
+		} else if ( attrName.equals("xmlns") ) {
+			// New default namespace URI within this node.
+			Namespace attrNS = Namespace.getNamespace( attrValue );
+			factory.addNamespaceDeclaration( tagNode, attrNS );
+		} else {
+			// Normal attribute.
+			Attribute attrObj = factory.attribute( attrName, attrValue, AttributeType.UNDECLARED, Namespace.NO_NAMESPACE );
+			factory.setAttribute( tagNode, attrObj );
+		}
+	}
+
+
+	/**
+	 * If the wrapper has a single child element, makes that the root instead.
+	 */
+	private void promoteOnlyChild( Document doc, Element rootNode ) {
+		if ( rootNode.getChildren().size() == 1 ) {
+			// No need for the wrapper, promote its only child to root.
+
+			Element newRoot = rootNode.getChildren().get( 0 );
+			newRoot.detach();
+			for ( Namespace ns : rootNode.getAdditionalNamespaces() ) {
+				factory.addNamespaceDeclaration( newRoot, ns );
+			}
+			factory.setRoot( doc, newRoot );
+		}
+	}
+
+
+	/**
+	 * Returns an exception reporting the nearest non-whitespace char after pos.
+	 *
+	 * @param message what went wrong, or null to describe the cause
+	 * @param cause the exception that stopped the parser, or null
+	 */
+	private JDOMParseException createParseException( CharSequence s, int pos, String message, IllegalAddException cause ) {
+		int nonspacePos = findNextNonspace( s, pos );
+		int errorPos = ( (nonspacePos != -1) ? nonspacePos : pos );
+
+		int[] lineAndCol = getLineAndCol( s, errorPos );
+		int lineNum = lineAndCol[0];
+		int colNum = lineAndCol[1];
+
+		if ( message == null ) {
 			String hint = "";
-			if ( e.getMessage() != null && e.getMessage().indexOf( "not allowed at the document root" ) != -1 ) {
+			if ( cause.getMessage() != null && cause.getMessage().indexOf( "not allowed at the document root" ) != -1 ) {
 				hint = " (There's likely an extraneous closing tag before this point.)";
 			}
-			SAXParseException cause = new SAXParseException( String.format( "At line %d, column %d: %s%s", lineNum, colNum, e.getMessage(), hint ), null, null, lineNum, colNum, e );
-			throw new JDOMParseException( String.format( "Error on line %d: %s", lineNum, cause.getMessage() ), cause );
+			message = cause.getMessage() + hint;
 		}
-
-		return doc;
+		SAXParseException saxCause = new SAXParseException( String.format( "At line %d, column %d: %s", lineNum, colNum, message ), null, null, lineNum, colNum, cause );
+		return new JDOMParseException( String.format( "Error on line %d: %s", lineNum, saxCause.getMessage() ), saxCause );
 	}
 
 
@@ -368,7 +973,7 @@ public class SloppyXMLParser {
 					entity = "&"+ entName +";";
 				}
 			}
-			m.appendReplacement( buf, entity );
+			m.appendReplacement( buf, Matcher.quoteReplacement( entity ) );
 		}
 		m.appendTail( buf );
 
@@ -401,13 +1006,13 @@ public class SloppyXMLParser {
 	private void addLineAndCol( int[] lastLineAndCol, CharSequence s, int start, int end ) {
 		if ( s.length() == 0 || start == end ) return;
 
-		Matcher breakMatcher = breakPtn.matcher( s );
-		breakMatcher.region( start, end );
 		int breakCount = 0;
 		int lastBreakPos = -1;
-		while ( breakMatcher.find() ) {
-			lastBreakPos = breakMatcher.start();
-			breakCount++;
+		for ( int i=start; i < end; i++ ) {
+			if ( s.charAt( i ) == '\n' ) {
+				lastBreakPos = i;
+				breakCount++;
+			}
 		}
 		if ( lastBreakPos == -1 ) {
 			// Same line, a few more chars in. Increment col.
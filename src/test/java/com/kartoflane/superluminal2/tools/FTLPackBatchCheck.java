@@ -0,0 +1,315 @@
+package com.kartoflane.superluminal2.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.vhati.ftldat.FTLDat.FTLPack;
+
+import com.kartoflane.superluminal2.utils.IOUtils;
+
+/**
+ * Checks FTLPack's batch mode:
+ * <ul>
+ * <li>committed innerFiles read back correctly, before and after reopening the dat</li>
+ * <li>a rolled back batch leaves the dat as it was before the batch</li>
+ * <li>a commit that fails leaves the dat as it was before the batch</li>
+ * <li>reading a slow source stream doesn't keep readers of the dat waiting</li>
+ * </ul>
+ * To make a commit fail, the check runs a copy of itself with a limit on the size of files it
+ * may write (the shell's ulimit), so that growing the dat's index runs out of room. That part
+ * is skipped on Windows.<br>
+ * <br>
+ * This is a developer tool, and is not packaged with the editor. Usage:<br>
+ * <code>java -cp ... com.kartoflane.superluminal2.tools.FTLPackBatchCheck WORK_DIR</code>
+ *
+ * @author kartoFlane
+ *
+ */
+public class FTLPackBatchCheck {
+
+	/** Size of the innerFile that a failing commit's index growth has to move */
+	private static final int BIG_FILE_SIZE = 4 * 1024 * 1024;
+	/** Limit on the size of written files, in 512-byte blocks: more than the batch needs, less than moving BIG_FILE_SIZE */
+	private static final int FILE_SIZE_LIMIT_BLOCKS = 6 * 1024 * 2;
+
+	private int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals("-commit-failure")) {
+			FTLPackBatchCheck check = new FTLPackBatchCheck();
+			check.checkCommitFailure(new File(args[1]));
+			System.exit(check.failures == 0 ? 0 : 1);
+		}
+		if (args.length != 1) {
+			System.err.println("Usage: FTLPackBatchCheck WORK_DIR");
+			System.exit(2);
+		}
+
+		File dir = new File(args[0]);
+		dir.mkdirs();
+
+		FTLPackBatchCheck check = new FTLPackBatchCheck();
+		check.checkCommit(dir);
+		check.checkRollback(dir);
+		check.checkSlowSource(dir);
+		check.runCommitFailure(dir);
+
+		System.out.println(check.failures == 0 ? "All checks passed." : check.failures + " checks failed.");
+		System.exit(check.failures == 0 ? 0 : 1);
+	}
+
+	private void check(boolean condition, String description) {
+		if (condition) {
+			System.out.println("ok:   " + description);
+		} else {
+			System.out.println("FAIL: " + description);
+			failures++;
+		}
+	}
+
+	/**
+	 * @return the same bytes for the same innerPath and size, every time
+	 */
+	private static byte[] content(String innerPath, int size) {
+		byte[] result = new byte[size];
+		new Random(innerPath.hashCode()).nextBytes(result);
+		return result;
+	}
+
+	private static void add(FTLPack pack, Map<String, byte[]> expected, String innerPath, int size) throws IOException {
+		byte[] data = content(innerPath, size);
+		pack.add(innerPath, new ByteArrayInputStream(data));
+		if (expected != null)
+			expected.put(innerPath, data);
+	}
+
+	/**
+	 * @return every innerFile of the dat, by innerPath
+	 */
+	private static Map<String, byte[]> readAll(FTLPack pack) throws IOException {
+		Map<String, byte[]> result = new TreeMap<String, byte[]>();
+		for (String innerPath : pack.list()) {
+			InputStream is = pack.getInputStream(innerPath);
+			try {
+				result.put(innerPath, IOUtils.readStream(is));
+			} finally {
+				is.close();
+			}
+		}
+		return result;
+	}
+
+	private static boolean sameContents(Map<String, byte[]> a, Map<String, byte[]> b) {
+		if (!a.keySet().equals(b.keySet()))
+			return false;
+		for (String innerPath : a.keySet()) {
+			if (!Arrays.equals(a.get(innerPath), b.get(innerPath)))
+				return false;
+		}
+		return true;
+	}
+
+	private void checkReopened(File datFile, Map<String, byte[]> expected, String description) throws IOException {
+		FTLPack pack = new FTLPack(datFile, "r");
+		try {
+			check(sameContents(readAll(pack), expected), description);
+		} finally {
+			pack.close();
+		}
+	}
+
+	private FTLPack createDat(File datFile, int indexSize, Map<String, byte[]> expected) throws IOException {
+		datFile.delete();
+		FTLPack pack = new FTLPack(datFile, "w+", indexSize);
+		for (int i = 0; i < 6; i++)
+			add(pack, expected, "data/old" + i + ".txt", 1000 * i + 10);
+		return pack;
+	}
+
+	/**
+	 * Commits a batch that has to grow the index, with innerFiles small and large,
+	 * and removals of both old innerFiles and ones added during the batch.
+	 */
+	public void checkCommit(File dir) throws IOException {
+		System.out.println("Commit:");
+		File datFile = new File(dir, "commit.dat");
+		Map<String, byte[]> expected = new TreeMap<String, byte[]>();
+		FTLPack pack = createDat(datFile, 8, expected);
+
+		pack.beginBatch();
+		for (int i = 0; i < 40; i++)
+			add(pack, expected, "data/new" + i + ".bin", i % 5 == 0 ? 200000 : 100 + i * 37);
+		pack.remove("data/old1.txt");
+		expected.remove("data/old1.txt");
+		pack.remove("data/new3.bin");
+		expected.remove("data/new3.bin");
+		pack.remove("data/new39.bin");
+		expected.remove("data/new39.bin");
+		check(!pack.contains("data/new0.bin") && pack.contains("data/old1.txt"), "the batch is not visible before commit");
+
+		pack.commitBatch();
+		check(sameContents(readAll(pack), expected), "contents match after commit");
+		pack.close();
+		checkReopened(datFile, expected, "contents match after reopening");
+	}
+
+	/**
+	 * Rolls a batch back, and compares the dat to how it was before.
+	 */
+	public void checkRollback(File dir) throws IOException {
+		System.out.println("Rollback:");
+		File datFile = new File(dir, "rollback.dat");
+		Map<String, byte[]> expected = new TreeMap<String, byte[]>();
+		FTLPack pack = createDat(datFile, 8, expected);
+		long oldLength = datFile.length();
+
+		pack.beginBatch();
+		for (int i = 0; i < 20; i++)
+			add(pack, null, "data/new" + i + ".bin", 100000);
+		pack.remove("data/old2.txt");
+		pack.rollbackBatch();
+
+		check(datFile.length() == oldLength, "the file is truncated to its old length");
+		check(sameContents(readAll(pack), expected), "contents match after rollback");
+		pack.close();
+		checkReopened(datFile, expected, "contents match after reopening");
+	}
+
+	/**
+	 * Adds an innerFile from a stream that takes a second to read, while another thread reads the dat.
+	 */
+	public void checkSlowSource(File dir) throws Exception {
+		System.out.println("Slow source:");
+		File datFile = new File(dir, "slow.dat");
+		Map<String, byte[]> expected = new TreeMap<String, byte[]>();
+		final FTLPack pack = createDat(datFile, 8, expected);
+
+		final byte[] slowData = content("data/slow.bin", 10 * 1000);
+		final Object started = new Object();
+		final boolean[] reading = { false };
+		final InputStream slowStream = new ByteArrayInputStream(slowData) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				synchronized (started) {
+					reading[0] = true;
+					started.notifyAll();
+				}
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				return super.read(b, off, Math.min(len, 1000));
+			}
+		};
+
+		pack.beginBatch();
+		final Exception[] addError = { null };
+		Thread adder = new Thread(new Runnable() {
+			public void run() {
+				try {
+					pack.add("data/slow.bin", slowStream);
+				} catch (Exception e) {
+					addError[0] = e;
+				}
+			}
+		});
+		adder.start();
+		synchronized (started) {
+			while (!reading[0])
+				started.wait();
+		}
+
+		long longestRead = 0;
+		int reads = 0;
+		while (adder.isAlive() && reads < 20) {
+			long start = System.nanoTime();
+			InputStream is = pack.getInputStream("data/old3.txt");
+			try {
+				IOUtils.readStream(is);
+			} finally {
+				is.close();
+			}
+			longestRead = Math.max(longestRead, (System.nanoTime() - start) / 1000000);
+			reads++;
+			Thread.sleep(20);
+		}
+		boolean stillAdding = adder.isAlive();
+		adder.join();
+
+		check(addError[0] == null, "the slow add succeeds" + (addError[0] == null ? "" : ": " + addError[0]));
+		check(stillAdding && longestRead < 100, String.format("readers are not blocked by the slow add (%d reads, longest %d ms)", reads, longestRead));
+
+		pack.commitBatch();
+		expected.put("data/slow.bin", slowData);
+		check(sameContents(readAll(pack), expected), "contents match after commit");
+		pack.close();
+	}
+
+	/**
+	 * Runs checkCommitFailure() in a copy of this JVM, under a limit on the size of written files.
+	 */
+	public void runCommitFailure(File dir) throws Exception {
+		System.out.println("Failed commit:");
+		if (System.getProperty("os.name").startsWith("Windows")) {
+			System.out.println("skip: needs a POSIX shell's ulimit");
+			return;
+		}
+
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		// POSIX sh counts -f in 512-byte blocks
+		ProcessBuilder pb = new ProcessBuilder("sh", "-c", "ulimit -f " + FILE_SIZE_LIMIT_BLOCKS + " && exec \"$0\" -cp \"$1\" \"$2\" -commit-failure \"$3\"",
+				java, System.getProperty("java.class.path"), FTLPackBatchCheck.class.getName(), dir.getPath());
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		InputStream is = p.getInputStream();
+		byte[] buf = new byte[4096];
+		int len;
+		while ((len = is.read(buf)) != -1)
+			System.out.write(buf, 0, len);
+		System.out.flush();
+
+		if (p.waitFor() != 0)
+			failures++;
+	}
+
+	/**
+	 * Commits a batch that has to move a large innerFile to grow the index, which
+	 * the limit on the size of written files doesn't leave room for.
+	 */
+	public void checkCommitFailure(File dir) throws IOException {
+		File datFile = new File(dir, "failure.dat");
+		datFile.delete();
+		Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+		FTLPack pack = new FTLPack(datFile, "w+", 4);
+		add(pack, expected, "data/big.bin", BIG_FILE_SIZE);
+		for (int i = 0; i < 3; i++)
+			add(pack, expected, "data/old" + i + ".txt", 1000);
+		expected = new TreeMap<String, byte[]>(expected);
+		long oldLength = datFile.length();
+
+		pack.beginBatch();
+		for (int i = 0; i < 8; i++)
+			add(pack, null, "data/new" + i + ".bin", 64 * 1024);
+
+		boolean failed = false;
+		try {
+			pack.commitBatch();
+		} catch (IOException e) {
+			failed = true;
+			System.out.println("      (commit failed as intended: " + e + ")");
+		}
+		check(failed, "the commit fails under the file size limit");
+		check(!pack.isBatching(), "the batch is over");
+		check(datFile.length() == oldLength, "the file is truncated to its old length");
+		check(sameContents(readAll(pack), expected), "contents match after the failed commit");
+		pack.close();
+		checkReopened(datFile, expected, "contents match after reopening");
+	}
+}
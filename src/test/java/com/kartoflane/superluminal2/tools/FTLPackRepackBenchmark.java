@@ -0,0 +1,275 @@
+package com.kartoflane.superluminal2.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.vhati.ftldat.FTLDat.FTLPack;
+import net.vhati.ftldat.FTLDat.RepackResult;
+
+/**
+ * Compares FTLPack.repack() with the repack it replaced, on a synthetic dat.<br>
+ * <br>
+ * The dat is filled with innerFiles of random content, mostly small ones (like XML and
+ * images) and some large ones (like music), and then about a fifth of them are removed,
+ * leaving gaps and vacant indeces. Each implementation repacks its own copy of the dat.
+ * Afterward, both copies have to hold the same innerFiles as the original, and be of the
+ * same length.<br>
+ * <br>
+ * The old repack shifted each entry toward the start of the dat in place, 4 KB at a time.
+ * It's reproduced here, working directly on the file. It never flushed the file to disk,
+ * which the new repack does before swapping in its copy, so the time that takes is reported
+ * separately.<br>
+ * <br>
+ * This is a developer tool, and is not packaged with the editor. Usage:<br>
+ * <code>java -cp ... com.kartoflane.superluminal2.tools.FTLPackRepackBenchmark WORK_DIR [SIZE_MB]</code><br>
+ * SIZE_MB is the size of the dat before repacking, 200 by default. The benchmark needs
+ * about three times that much free space in WORK_DIR.
+ *
+ * @author kartoFlane
+ *
+ */
+public class FTLPackRepackBenchmark {
+
+	private static final int DEFAULT_SIZE_MB = 200;
+	private static final long SEED = 16;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: FTLPackRepackBenchmark WORK_DIR [SIZE_MB]");
+			System.exit(2);
+		}
+
+		File dir = new File(args[0]);
+		dir.mkdirs();
+		long targetSize = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SIZE_MB) * 1024L * 1024L;
+
+		File datFile = new File(dir, "synthetic.dat");
+		File oldCopy = new File(dir, "synthetic-old.dat");
+		File newCopy = new File(dir, "synthetic-new.dat");
+
+		System.out.println(String.format("Creating a fragmented dat of about %d MB...", targetSize / (1024 * 1024)));
+		createDat(datFile, targetSize);
+		Map<String, String> expected = readHashes(datFile);
+		FTLPack pack = new FTLPack(datFile, "r");
+		long reclaimable = pack.getReclaimableBytes();
+		pack.close();
+		System.out.println(String.format("  %d innerFiles, %d bytes, %d of them reclaimable", expected.size(), datFile.length(), reclaimable));
+
+		copyFile(datFile, oldCopy);
+		copyFile(datFile, newCopy);
+
+		long start = System.nanoTime();
+		long oldBytesChanged = oldRepack(oldCopy);
+		long oldMillis = (System.nanoTime() - start) / 1000000;
+		start = System.nanoTime();
+		syncFile(oldCopy);
+		long oldSyncMillis = (System.nanoTime() - start) / 1000000;
+		System.out.println(String.format("Old repack: %6d ms, %d bytes changed (+%d ms to flush it to disk)", oldMillis, oldBytesChanged, oldSyncMillis));
+
+		start = System.nanoTime();
+		pack = new FTLPack(newCopy, "r+");
+		RepackResult result = pack.repack();
+		pack.close();
+		long newMillis = (System.nanoTime() - start) / 1000000;
+		System.out.println(String.format("New repack: %6d ms, %d bytes changed", newMillis, result.bytesChanged));
+
+		boolean sameLength = oldCopy.length() == newCopy.length();
+		boolean oldIntact = expected.equals(readHashes(oldCopy));
+		boolean newIntact = expected.equals(readHashes(newCopy));
+		System.out.println(String.format("Lengths after repacking: %d (old), %d (new)", oldCopy.length(), newCopy.length()));
+		System.out.println("Old repack kept every innerFile: " + oldIntact);
+		System.out.println("New repack kept every innerFile: " + newIntact);
+		if (newMillis > 0) {
+			System.out.println(String.format("Speedup: %.2fx, or %.2fx against the old repack flushed to disk",
+					(double) oldMillis / newMillis, (double) (oldMillis + oldSyncMillis) / newMillis));
+		}
+
+		datFile.delete();
+		oldCopy.delete();
+		newCopy.delete();
+		System.exit(sameLength && oldIntact && newIntact ? 0 : 1);
+	}
+
+	/**
+	 * Fills a new dat with innerFiles until it reaches about 5/4 of the target size,
+	 * then removes every innerFile with a one in five chance.
+	 */
+	private static void createDat(File datFile, long targetSize) throws IOException {
+		datFile.delete();
+		Random rng = new Random(SEED);
+		FTLPack pack = new FTLPack(datFile, "w+");
+
+		List<String> innerPaths = new ArrayList<String>();
+		long written = 0;
+		for (int i = 0; written < targetSize * 5 / 4; i++) {
+			int size;
+			String innerPath;
+			if (rng.nextInt(50) == 0) {
+				size = 512 * 1024 + rng.nextInt(4 * 1024 * 1024);
+				innerPath = "audio/music/track" + i + ".ogg";
+			} else {
+				size = 100 + rng.nextInt(40 * 1024);
+				innerPath = (rng.nextBoolean() ? "data/file" : "img/image") + i + ".bin";
+			}
+
+			byte[] data = new byte[size];
+			rng.nextBytes(data);
+			pack.add(innerPath, new ByteArrayInputStream(data));
+			innerPaths.add(innerPath);
+			written += size;
+		}
+
+		for (String innerPath : innerPaths) {
+			if (rng.nextInt(5) == 0)
+				pack.remove(innerPath);
+		}
+		pack.close();
+	}
+
+	/**
+	 * @return the MD5 hash of every innerFile in the dat, by innerPath
+	 */
+	private static Map<String, String> readHashes(File datFile) throws IOException {
+		Map<String, String> result = new TreeMap<String, String>();
+		FTLPack pack = new FTLPack(datFile, "r");
+		try {
+			for (String innerPath : pack.list())
+				result.put(innerPath, pack.getHash(innerPath));
+		} finally {
+			pack.close();
+		}
+		return result;
+	}
+
+	private static void copyFile(File src, File dst) throws IOException {
+		InputStream is = new FileInputStream(src);
+		try {
+			OutputStream os = new FileOutputStream(dst);
+			try {
+				byte[] buf = new byte[64 * 1024];
+				int len;
+				while ((len = is.read(buf)) != -1)
+					os.write(buf, 0, len);
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Flushes the file to disk, as the new repack does with its copy before the swap.
+	 */
+	private static void syncFile(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long readLittleUInt(RandomAccessFile raf) throws IOException {
+		byte[] b = new byte[4];
+		raf.readFully(b);
+		return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0x00000000FFFFFFFFL;
+	}
+
+	private static void writeLittleUInt(RandomAccessFile raf, long n) throws IOException {
+		byte[] b = new byte[4];
+		ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).putInt((int) (n & 0x00000000FFFFFFFFL));
+		raf.write(b);
+	}
+
+	/**
+	 * The old repack: shrinks the index to the innerFiles in use, and shifts
+	 * each entry toward the start of the dat in place, in the order they appear.
+	 *
+	 * Entries are a 4-byte dataSize, a 4-byte innerPath length, the innerPath,
+	 * then the data. The header is a 4-byte index size, then 4-byte entryOffsets
+	 * (0 for vacant indeces). All numbers are little-endian.
+	 *
+	 * @return the number of bytes changed
+	 */
+	private static long oldRepack(File datFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(datFile, "rw");
+		try {
+			raf.seek(0);
+			int oldIndexSize = (int) readLittleUInt(raf);
+			List<long[]> entries = new ArrayList<long[]>(); // { entryOffset, entryLength }
+			for (int i = 0; i < oldIndexSize; i++) {
+				raf.seek(4 + i * 4);
+				long entryOffset = readLittleUInt(raf);
+				if (entryOffset == 0)
+					continue;
+
+				raf.seek(entryOffset);
+				long dataSize = readLittleUInt(raf);
+				long pathLength = readLittleUInt(raf);
+				entries.add(new long[] { entryOffset, 8 + pathLength + dataSize });
+			}
+			Collections.sort(entries, new Comparator<long[]>() {
+				@Override
+				public int compare(long[] a, long[] b) {
+					return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+				}
+			});
+
+			long bytesChanged = 0;
+			if (entries.size() != oldIndexSize) {
+				raf.seek(0);
+				writeLittleUInt(raf, entries.size());
+				bytesChanged += 4;
+			}
+
+			long pendingEntryOffset = 4 + entries.size() * 4;
+			byte[] buf = new byte[4096];
+			for (int i = 0; i < entries.size(); i++) {
+				long entryOffset = entries.get(i)[0];
+				long totalBytes = entries.get(i)[1];
+
+				raf.seek(4 + i * 4);
+				writeLittleUInt(raf, pendingEntryOffset);
+				bytesChanged += 4;
+
+				if (pendingEntryOffset != entryOffset) {
+					long bytesRemaining = totalBytes;
+					int len;
+					while (bytesRemaining > 0) {
+						raf.seek(entryOffset + totalBytes - bytesRemaining);
+						len = raf.read(buf, 0, (int) Math.min(buf.length, bytesRemaining));
+						if (len == -1)
+							throw new IOException("EOF prematurely reached reading the entry at " + entryOffset);
+
+						raf.seek(pendingEntryOffset + totalBytes - bytesRemaining);
+						raf.write(buf, 0, len);
+						bytesRemaining -= len;
+					}
+					bytesChanged += totalBytes;
+				}
+				pendingEntryOffset += totalBytes;
+			}
+
+			raf.setLength(pendingEntryOffset);
+			return bytesChanged;
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.kartoflane.superluminal2.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import net.vhati.ftldat.FTLDat.FTLPack;
+import net.vhati.modmanager.core.SloppyXMLParser;
+import net.vhati.modmanager.core.SloppyXMLParser.Engine;
+
+import org.jdom2.Attribute;
+import org.jdom2.Content;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+import com.kartoflane.superluminal2.utils.IOUtils;
+
+/**
+ * Checks that SloppyXMLParser's engines build identical trees, since IOUtils.parseXML()
+ * relies on the faster SCANNER engine following the same rules as the REGEX one.<br>
+ * <br>
+ * Each text is parsed by both engines, and the results are compared: every node's type,
+ * name, namespace, attributes and text, or the exception's type and message, when parsing fails.<br>
+ * <br>
+ * Arguments (any number, in any order):
+ * <ul>
+ * <li>DIR - every XML file beneath it</li>
+ * <li>FILE.dat - every XML file in an FTL dat (eg. the vanilla data.dat)</li>
+ * <li>FILE.ftl, FILE.zip - every XML file in a mod</li>
+ * <li>FILE - that file</li>
+ * <li>-fuzz SEED COUNT - COUNT generated texts: random runs of tags, comments, entities, etc,
+ * and well-formed-ish documents with a few random mutations</li>
+ * </ul>
+ * Each mismatch is printed, and the exit status is 1 if there were any.<br>
+ * <br>
+ * This is a developer tool, and is not packaged with the editor. Run it after any change to
+ * either engine, eg.:<br>
+ * <code>java -cp ... com.kartoflane.superluminal2.tools.SloppyXMLParserDiff -fuzz 1 200000 "FTL/resources/data.dat" mods/</code>
+ *
+ * @author kartoFlane
+ *
+ */
+public class SloppyXMLParserDiff {
+
+	private static final int MAX_REPORTED_DIFFS = 20;
+
+	/** Bits of XML, good and bad, for random texts */
+	private static final String[] FRAGMENTS = {
+			"<", ">", "/", "/>", "</a>", "</ >", "</>", "<a>", "<b x=\"1\">", "<p:c y='2' z=\"&amp;\"/>", "<a:b:c>",
+			" ", "\n", "\t", "\r\n", "<!--", "-->", "<!---->", "<!----->", "--", "-", ".", ",",
+			"<![CDATA[", "]]>", "<![CDATA[]]>", "<?xml version=\"1.0\"?>", "<?xml ?",
+			"&", "&lt;", "&#65;", "&#x41;", "&foo;", "&;", "&#x;", "&#12a;", ";", "&#36;", "&a$1;", "&#92;",
+			"text", "x=", "'", "\"", "=", "xmlns", "xmlns:q=\"u\"", " a=\"v\"", "a=\"b\"c=\"d\"", "\u0085", "\u00A0",
+			"<weaponBlueprint name=\"W\">", "</weaponBlueprint>", "<x\t/>", "<y / >", "< a>", "<a >", "<a/ >",
+			"<!-- a <!-- b --> c -->", "<!-- -- x -- -->"
+	};
+
+	private static final String[] NAMES = { "a", "weaponBlueprint", "p:q", "x.y-z_1", "title" };
+	private static final String[] SPACES = { "", " ", "\n", "\t", "\r\n", "  \n\t" };
+	private static final String[] TEXTS = { "", "Laser", "a &amp; b", "&lt;x&gt;", "&#65;&#x42;", "&foo; & bar", "1.5", "&#36;", "x &a$1; y", "multi\nline" };
+
+	private int textCount = 0;
+	private int diffCount = 0;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: SloppyXMLParserDiff [-fuzz SEED COUNT] [FILE|DIR|FILE.dat|FILE.ftl|FILE.zip]...");
+			System.exit(2);
+		}
+
+		SloppyXMLParserDiff diff = new SloppyXMLParserDiff();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-fuzz") && i + 2 < args.length) {
+				diff.checkFuzz(Long.parseLong(args[i + 1]), Integer.parseInt(args[i + 2]));
+				i += 2;
+			} else {
+				diff.checkPath(new File(args[i]));
+			}
+		}
+
+		System.out.println(String.format("Compared %d texts: %d mismatches.", diff.textCount, diff.diffCount));
+		System.exit(diff.diffCount == 0 ? 0 : 1);
+	}
+
+	private static boolean isXMLPath(String path) {
+		return path.endsWith(".xml") || path.endsWith(".xml.append") || path.endsWith(".xml.rawappend");
+	}
+
+	/**
+	 * Compares the engines on a file, the XML files of a dat or mod, or of a directory.
+	 */
+	public void checkPath(File f) throws IOException {
+		String name = f.getName().toLowerCase();
+
+		if (f.isDirectory()) {
+			File[] children = f.listFiles();
+			if (children == null)
+				return;
+			for (File child : children) {
+				if (child.isDirectory() || isXMLPath(child.getName()) || child.getName().endsWith(".ftl") || child.getName().endsWith(".zip"))
+					checkPath(child);
+			}
+		} else if (name.endsWith(".dat")) {
+			FTLPack pack = new FTLPack(f, "r");
+			try {
+				for (String innerPath : pack.list()) {
+					if (!isXMLPath(innerPath))
+						continue;
+
+					InputStream is = pack.getInputStream(innerPath);
+					try {
+						checkText(f.getPath() + ":" + innerPath, IOUtils.readStreamText(is, innerPath));
+					} finally {
+						is.close();
+					}
+				}
+			} finally {
+				pack.close();
+			}
+		} else if (name.endsWith(".ftl") || name.endsWith(".zip")) {
+			ZipFile zip = new ZipFile(f);
+			try {
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry entry = entries.nextElement();
+					if (entry.isDirectory() || !isXMLPath(entry.getName()))
+						continue;
+
+					InputStream is = zip.getInputStream(entry);
+					try {
+						checkText(f.getPath() + ":" + entry.getName(), IOUtils.readStreamText(is, entry.getName()));
+					} finally {
+						is.close();
+					}
+				}
+			} finally {
+				zip.close();
+			}
+		} else {
+			InputStream is = new FileInputStream(f);
+			try {
+				checkText(f.getPath(), IOUtils.readStreamText(is, f.getName()));
+			} finally {
+				is.close();
+			}
+		}
+	}
+
+	/**
+	 * Compares the engines on generated texts.<br>
+	 * <br>
+	 * Odd texts are random runs of fragments. Even ones are nested
+	 * elements, with up to two fragments inserted or chars deleted.
+	 */
+	public void checkFuzz(long seed, int count) {
+		Random rng = new Random(seed);
+		StringBuilder buf = new StringBuilder();
+
+		for (int i = 0; i < count; i++) {
+			buf.setLength(0);
+
+			if (i % 2 == 1) {
+				int len = 1 + rng.nextInt(25);
+				for (int j = 0; j < len; j++)
+					buf.append(FRAGMENTS[rng.nextInt(FRAGMENTS.length)]);
+			} else {
+				if (rng.nextBoolean())
+					buf.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+				appendElements(rng, buf, 0);
+				buf.append(SPACES[rng.nextInt(SPACES.length)]);
+
+				int mutations = rng.nextInt(3);
+				for (int m = 0; m < mutations && buf.length() > 0; m++) {
+					int pos = rng.nextInt(buf.length());
+					if (rng.nextBoolean())
+						buf.deleteCharAt(pos);
+					else
+						buf.insert(pos, FRAGMENTS[rng.nextInt(FRAGMENTS.length)]);
+				}
+			}
+
+			checkText(String.format("fuzz (seed %d, #%d)", seed, i), buf.toString());
+		}
+	}
+
+	/**
+	 * Compares the engines on a text, and reports any mismatch.
+	 *
+	 * @return true if the engines agreed
+	 */
+	public boolean checkText(String description, String text) {
+		textCount++;
+
+		String regexResult = describeBuild(Engine.REGEX, text);
+		String scannerResult = describeBuild(Engine.SCANNER, text);
+		if (regexResult.equals(scannerResult))
+			return true;
+
+		diffCount++;
+		if (diffCount <= MAX_REPORTED_DIFFS) {
+			String snippet = text.length() > 500 ? text.substring(0, 500) + "..." : text;
+			System.out.println("Mismatch: " + description);
+			System.out.println("  Text:    " + snippet.replace("\n", "\\n"));
+			System.out.println("  REGEX:   " + regexResult);
+			System.out.println("  SCANNER: " + scannerResult);
+		} else if (diffCount == MAX_REPORTED_DIFFS + 1) {
+			System.out.println("(Further mismatches are counted, but not printed.)");
+		}
+		return false;
+	}
+
+	/**
+	 * Builds a text with one engine, and describes the tree, or the exception.
+	 */
+	private String describeBuild(Engine engine, String text) {
+		try {
+			Document doc = new SloppyXMLParser(null, engine).build(text);
+			StringBuilder buf = new StringBuilder();
+			describeContent(doc.getContent(), buf);
+			return buf.toString();
+		} catch (Exception e) {
+			return "Exception " + e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+
+	private void describeContent(List<Content> contentList, StringBuilder buf) {
+		for (Content c : contentList) {
+			buf.append(c.getClass().getSimpleName()).append("[");
+			if (c instanceof Element) {
+				Element e = (Element) c;
+				buf.append(e.getQualifiedName()).append("|").append(e.getNamespaceURI()).append("|");
+				for (Attribute a : e.getAttributes())
+					buf.append(a.getQualifiedName()).append("=").append(a.getValue()).append(";");
+				for (Namespace ns : e.getAdditionalNamespaces())
+					buf.append(ns.getPrefix()).append("=").append(ns.getURI()).append(";");
+				describeContent(e.getContent(), buf);
+			} else {
+				buf.append(c.getValue());
+			}
+			buf.append("]");
+		}
+	}
+
+	/**
+	 * Appends a few random siblings: elements (nested up to a depth of 5),
+	 * comments, CDATA, and stray chars.
+	 */
+	private void appendElements(Random rng, StringBuilder buf, int depth) {
+		int kids = depth > 4 ? 0 : rng.nextInt(4);
+		for (int k = 0; k < kids; k++) {
+			buf.append(SPACES[rng.nextInt(SPACES.length)]);
+
+			int type = rng.nextInt(10);
+			if (type == 0) {
+				buf.append("<!--").append(rng.nextBoolean() ? " c -- d " : "--x--<!-- y ");
+				buf.append(rng.nextBoolean() ? "" : "-").append("-->");
+				continue;
+			} else if (type == 1) {
+				buf.append("<![CDATA[").append(rng.nextBoolean() ? "" : "z ]] >").append("]]>");
+				continue;
+			} else if (type == 2) {
+				buf.append(rng.nextBoolean() ? "-->" : ",");
+				continue;
+			}
+
+			String name = NAMES[rng.nextInt(NAMES.length)];
+			buf.append("<").append(name);
+			int attrCount = rng.nextInt(4);
+			for (int i = 0; i < attrCount; i++) {
+				buf.append(rng.nextInt(3) == 0 ? "" : " ");
+				buf.append(rng.nextInt(4) == 0 ? "q:" : "").append("k").append(i);
+				buf.append(rng.nextBoolean() ? "=" : " = ");
+				buf.append(rng.nextBoolean() ? "\"v&amp;" + i + "\"" : "'w" + i + "'");
+			}
+			buf.append(SPACES[rng.nextInt(SPACES.length)]);
+			if (rng.nextInt(4) == 0) {
+				buf.append("/>");
+				continue;
+			}
+			buf.append(">");
+
+			if (rng.nextBoolean())
+				buf.append(TEXTS[rng.nextInt(TEXTS.length)]);
+			else
+				appendElements(rng, buf, depth + 1);
+
+			buf.append("</").append(rng.nextInt(5) == 0 ? "wrong" : name).append(">");
+		}
+	}
+}